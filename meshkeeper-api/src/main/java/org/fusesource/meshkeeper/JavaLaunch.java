@@ -25,6 +25,7 @@ import org.fusesource.meshkeeper.MeshKeeper.Launcher;
 import org.fusesource.meshkeeper.MeshKeeper.Registry;
 import org.fusesource.meshkeeper.classloader.ClassLoaderFactory;
 import org.fusesource.meshkeeper.classloader.ClassLoaderServer;
+import org.fusesource.meshkeeper.launcher.ClassDataSharing;
 import org.fusesource.meshkeeper.launcher.LaunchAgent;
 
 import static org.fusesource.meshkeeper.Expression.*;
@@ -51,6 +52,7 @@ public class JavaLaunch {
     ArrayList<Expression> args = new ArrayList<Expression>();
     ArrayList<Expression> systemProperties = new ArrayList<Expression>();
     String bootStrapClassLoaderFactoryPath;
+    boolean classDataSharing = true;
 
     /**
      * @return The expression representing the current jvm for the launch.
@@ -206,6 +208,27 @@ public class JavaLaunch {
         this.bootStrapClassLoaderFactoryPath = bootStrapClassLoaderFactoryPath;
     }
 
+    /**
+     * Controls whether launches with a bootstrap classpath use a class data
+     * sharing archive. When enabled (the default) the {@link LaunchAgent}
+     * keeps an archive per jvm and bootstrap classpath: the first launch
+     * creates it and later launches start from it. Jvms that don't support
+     * dynamic archives are launched without it.
+     * 
+     * @param classDataSharing
+     *            True to use class data sharing archives.
+     */
+    public void setClassDataSharing(boolean classDataSharing) {
+        this.classDataSharing = classDataSharing;
+    }
+
+    /**
+     * @return True if class data sharing archives are used for the launch.
+     */
+    public boolean isClassDataSharing() {
+        return classDataSharing;
+    }
+
     /**
      * Sets the classpath for the {@link JavaLaunch}. The classpath when set is
      * appended to the bootstrap classpath (when present).
@@ -346,16 +369,36 @@ public class JavaLaunch {
      * @return A {@link LaunchDescription} for this {@link JavaLaunch}
      */
     public LaunchDescription toLaunchDescription() {
+        return toLaunchDescription(args);
+    }
+
+    /**
+     * Coverts this {@link JavaLaunch} into a {@link LaunchDescription} with
+     * the given program arguments in place of its own.
+     * 
+     * @param args
+     *            The program arguments.
+     * @return A {@link LaunchDescription} for this {@link JavaLaunch}
+     */
+    protected LaunchDescription toLaunchDescription(List<Expression> args) {
         LaunchDescription ld = new LaunchDescription();
         ld.setWorkingDirectory(workingDir);
         ld.add(jvm);
         ld.add(jvmArgs);
+        if (bootStrapClassLoaderFactoryPath != null && classDataSharing) {
+            // Set by the bootstrap task when an archive is available:
+            ld.add(property(ClassDataSharing.CDS_ARCHIVE_PROPERTY, string("")));
+        }
         ld.add(systemProperties);
         if (classpath != null || bootStrapClassLoaderFactoryPath != null) {
             ld.add(string("-cp"));
             Expression launchClasspath = null;
             if (bootStrapClassLoaderFactoryPath != null) {
-                ld.addPreLaunchTask(new LaunchDescription.BootstrapClassPathTask(bootStrapClassLoaderFactoryPath));
+                if (classDataSharing) {
+                    ld.addPreLaunchTask(new LaunchDescription.BootstrapClassPathTask(bootStrapClassLoaderFactoryPath, jvm, classpath));
+                } else {
+                    ld.addPreLaunchTask(new LaunchDescription.BootstrapClassPathTask(bootStrapClassLoaderFactoryPath));
+                }
                 launchClasspath = file(property(LaunchDescription.BootstrapClassPathTask.BOOTSTRAP_CP_PROPERTY, string("")));
             }
             if (classpath != null) {
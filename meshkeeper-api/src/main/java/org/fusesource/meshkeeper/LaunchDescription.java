@@ -19,6 +19,7 @@ package org.fusesource.meshkeeper;
 import org.fusesource.meshkeeper.Expression;
 import org.fusesource.meshkeeper.MeshKeeper.Launcher;
 import org.fusesource.meshkeeper.classloader.ClassLoaderFactory;
+import org.fusesource.meshkeeper.launcher.ClassDataSharing;
 import org.fusesource.meshkeeper.launcher.LocalProcess;
 
 import java.io.File;
@@ -99,20 +100,45 @@ public class LaunchDescription implements Serializable {
         public static final String BOOTSTRAP_CP_PROPERTY = "bootstrap.classpath";
         private static final long serialVersionUID = 1L;
         private final String classLoaderPath;
+        private Expression jvm;
+        private Expression classpath;
 
         public BootstrapClassPathTask(String classLoaderPath) {
             this.classLoaderPath = classLoaderPath;
         }
 
+        /**
+         * Creates a task that also sets up a class data sharing archive for
+         * the launched jvm.
+         * 
+         * @param classLoaderPath
+         *            The path of the bootstrap {@link ClassLoaderFactory}
+         * @param jvm
+         *            The jvm being launched.
+         * @param classpath
+         *            The classpath appended to the bootstrap classpath or null.
+         */
+        public BootstrapClassPathTask(String classLoaderPath, Expression jvm, Expression classpath) {
+            this.classLoaderPath = classLoaderPath;
+            this.jvm = jvm;
+            this.classpath = classpath;
+        }
+
         public void execute(LocalProcess process) throws Exception {
             ClassLoaderFactory clf = process.getProcessLauncher().getMeshKeeper().registry().getRegistryObject(this.classLoaderPath);
 
             process.getListener().onProcessInfo("Setting up bootstrap classpath from: " + classLoaderPath);
-            URLClassLoader classloader = (URLClassLoader) clf.createClassLoader(getClass().getClassLoader(), new File(process.getProcessLauncher().getHostProperties().getDirectory() + File.separator
-                    + "classloaer-cache"));
+            ClassLoader cl = clf.createClassLoader(getClass().getClassLoader(), MeshKeeperFactory.getDefaultClassLoaderCacheDirectory());
+            if (!(cl instanceof URLClassLoader)) {
+                // e.g. when lazy class loading is enabled on the agent:
+                throw new Exception("Can't bootstrap a classpath from a non URLClassLoader: " + cl);
+            }
+            URLClassLoader classloader = (URLClassLoader) cl;
             Expression classpath = null;
+            ArrayList<String> elements = new ArrayList<String>();
             for (URL url : classloader.getURLs()) {
                 if ("file".equals(url.getProtocol())) {
+                    elements.add(new File(url.toURI()).getAbsolutePath());
                     if (classpath == null) {
                         classpath = file(new File(url.toURI()).getAbsolutePath());
                     }
@@ -129,6 +155,13 @@ public class LaunchDescription implements Serializable {
                 process.getListener().onProcessInfo("No urls found to bootstrap for: " + classLoaderPath);
             }
 
+            if (jvm != null) {
+                if (this.classpath != null) {
+                    elements.add(this.classpath.evaluate(process.getProcessProperties()));
+                }
+                ClassDataSharing.configure(process.getProcessProperties(), jvm.evaluate(process.getProcessProperties()), elements);
+            }
+
         }
     }
 
@@ -0,0 +1,144 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * MeshEventFilter
+ * <p>
+ * Selects the events delivered to a listener by their type and source. An
+ * event matches if its type is one of the filter's types and its source is one
+ * of the filter's sources; a filter without types (or sources) matches any
+ * type (or source).
+ * </p>
+ * <p>
+ * Filters are applied by the event server where possible, so events a
+ * listener isn't interested in aren't sent to its process.
+ * </p>
+ * 
+ * @author cmacnaug
+ * @version 1.0
+ */
+public class MeshEventFilter implements Serializable {
+
+    private static final long serialVersionUID = 1;
+
+    private final int[] types;
+    private final String[] sources;
+
+    /**
+     * @param types
+     *            The event types to match, or null to match any type.
+     * @param sources
+     *            The event sources to match, or null to match any source.
+     */
+    public MeshEventFilter(int[] types, String[] sources) {
+        this.types = types == null || types.length == 0 ? null : types.clone();
+        this.sources = sources == null || sources.length == 0 ? null : sources.clone();
+    }
+
+    /**
+     * @return A filter matching events of the given types.
+     */
+    public static MeshEventFilter forTypes(int... types) {
+        return new MeshEventFilter(types, null);
+    }
+
+    /**
+     * @return A filter matching events from the given sources.
+     */
+    public static MeshEventFilter forSources(String... sources) {
+        return new MeshEventFilter(null, sources);
+    }
+
+    public boolean matches(MeshEvent event) {
+        if (types != null) {
+            boolean found = false;
+            for (int type : types) {
+                if (type == event.getType()) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        if (sources != null) {
+            for (String source : sources) {
+                if (source.equals(event.getSource())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Converts the filter to a JMS message selector over the given type and
+     * source properties.
+     * 
+     * @return The selector, or null if the filter matches every event.
+     */
+    public String toSelector(String typeProperty, String sourceProperty) {
+        StringBuilder selector = new StringBuilder();
+        if (types != null) {
+            selector.append("(");
+            for (int i = 0; i < types.length; i++) {
+                if (i > 0) {
+                    selector.append(" OR ");
+                }
+                selector.append(typeProperty).append(" = ").append(types[i]);
+            }
+            selector.append(")");
+        }
+        if (sources != null) {
+            if (selector.length() > 0) {
+                selector.append(" AND ");
+            }
+            selector.append(sourceProperty).append(" IN (");
+            for (int i = 0; i < sources.length; i++) {
+                if (i > 0) {
+                    selector.append(", ");
+                }
+                selector.append("'").append(sources[i].replace("'", "''")).append("'");
+            }
+            selector.append(")");
+        }
+        return selector.length() == 0 ? null : selector.toString();
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof MeshEventFilter)) {
+            return false;
+        }
+        MeshEventFilter other = (MeshEventFilter) o;
+        return Arrays.equals(types, other.types) && Arrays.equals(sources, other.sources);
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(types) * 31 + Arrays.hashCode(sources);
+    }
+
+    public String toString() {
+        return "MeshEventFilter: types=" + (types == null ? "any" : Arrays.toString(types)) + " sources="
+                + (sources == null ? "any" : Arrays.toString(sources));
+    }
+}
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -93,6 +94,14 @@ public interface MeshKeeper {
 
         /**
          * Opens a listener on the given event topic.
+         * <p>
+         * Topic names are hierarchical, with '.' separated segments, and a
+         * listener may use wildcards to receive the events sent to many
+         * topics: '*' matches any one segment and '>', as the last segment,
+         * matches one or more trailing segments. For example
+         * <code>stats.*.cpu</code> or <code>stats.&gt;</code>. Events can't be
+         * sent to wildcard topics.
+         * </p>
          * 
          * @param listener
          *            The listener
@@ -103,6 +112,23 @@ public interface MeshKeeper {
          */
         public void openEventListener(MeshEventListener listener, String topic) throws Exception;
 
+        /**
+         * Opens a listener for the events on the given topic that match a
+         * filter. Where the event implementation supports it, the filter is
+         * applied before events are sent to this process. Opening a listener
+         * that is already open on the topic replaces its filter.
+         *
+         * @param listener
+         *            The listener
+         * @param topic
+         *            The topic
+         * @param filter
+         *            The filter, or null to receive all of the topic's events.
+         * @throws Exception
+         *             If there is an error opening the listener
+         */
+        public void openEventListener(MeshEventListener listener, String topic, MeshEventFilter filter) throws Exception;
+
         /**
          * Stops listening to events on the given topic.
          * 
@@ -431,6 +457,37 @@ public interface MeshKeeper {
          */
         public void setKillTimeout(long killTimeout);
 
+        /**
+         * @return True if {@link MeshContainer}s are taken from the agents'
+         *         pools of started containers when one is ready.
+         */
+        public boolean isUseContainerPool();
+
+        /**
+         * Controls whether {@link MeshContainer}s are taken from the agents'
+         * pools of started containers. When enabled a container launch is
+         * handed a container the agent has already started for the same
+         * launch description, if there is one, and otherwise launches a new
+         * one. Pooling is disabled by default since each agent keeps idle
+         * jvms started for the pooled launches.
+         */
+        public void setUseContainerPool(boolean useContainerPool);
+
+        /**
+         * @return True if closed {@link MeshContainer}s taken from an agent's
+         *         pool are handed back to it for reuse.
+         */
+        public boolean isRecycleContainers();
+
+        /**
+         * Controls whether closing a {@link MeshContainer} taken from an
+         * agent's pool hands it back to the agent to be reused rather than
+         * killing it. A recycled container has all its hosted objects unhosted
+         * and is re-registered for the next launch, but it keeps its jvm, so
+         * static state left by earlier users remains. Disabled by default.
+         */
+        public void setRecycleContainers(boolean recycleContainers);
+
     }
 
     /**
@@ -535,6 +592,82 @@ public interface MeshKeeper {
          */
         public String addRegistryData(String path, boolean sequential, byte[] data) throws Exception;
 
+        /**
+         * Adds several objects to the registry. This is equivalent to calling
+         * {@link #addRegistryObject(String, boolean, Serializable)} for each
+         * path in turn, but allows the registry to pipeline the requests rather
+         * than waiting for each to complete before sending the next.
+         * 
+         * @param paths
+         *            The paths to add to.
+         * @param sequential
+         *            When true a unique child node is created at each path
+         * @param objects
+         *            The objects to add, one for each path.
+         * @return The paths at which the objects were added in the same order
+         *         as the given paths.
+         * @throws Exception
+         *             If there is an error adding any of the nodes.
+         */
+        public List<String> addRegistryObjects(List<String> paths, boolean sequential, List<? extends Serializable> objects) throws Exception;
+
+        /**
+         * Adds several pieces of data to the registry. This is equivalent to
+         * calling {@link #addRegistryData(String, boolean, byte[])} for each
+         * path in turn, but allows the registry to pipeline the requests rather
+         * than waiting for each to complete before sending the next.
+         * 
+         * @param paths
+         *            The paths to add to.
+         * @param sequential
+         *            When true a unique child node is created at each path
+         * @param data
+         *            The data to add, one element for each path.
+         * @return The paths at which the data was added in the same order as
+         *         the given paths.
+         * @throws Exception
+         *             If there is an error adding any of the nodes.
+         */
+        public List<String> addRegistryData(List<String> paths, boolean sequential, List<byte[]> data) throws Exception;
+
+        /**
+         * Gets the objects at several nodes at once.
+         * 
+         * @param <T>
+         *            The type of the objects expected.
+         * @param paths
+         *            The paths of the objects.
+         * @return A map of each path to its object, or to null if there is no
+         *         node at the path, iterated in the order of the given paths.
+         * @throws Exception
+         *             If the objects couldn't be retrieved.
+         */
+        public <T> Map<String, T> getRegistryObjects(Collection<String> paths) throws Exception;
+
+        /**
+         * Gets the data at several nodes at once.
+         * 
+         * @param paths
+         *            The paths of the data.
+         * @return A map of each path to its data, or to null if there is no
+         *         node at the path, iterated in the order of the given paths.
+         * @throws Exception
+         *             If the data couldn't be retrieved.
+         */
+        public Map<String, byte[]> getRegistryData(Collection<String> paths) throws Exception;
+
+        /**
+         * Removes several nodes from the registry at once.
+         * 
+         * @param paths
+         *            The paths to remove.
+         * @param recursive
+         *            If true then any children will also be removed.
+         * @throws Exception
+         *             If any of the paths couldn't be removed.
+         */
+        public void removeRegistryData(Collection<String> paths, boolean recursive) throws Exception;
+
         /**
          * Adds a listener for changes in a path's child elements. 
          * 
@@ -593,6 +726,19 @@ public interface MeshKeeper {
          * @throws Exception
          */
         public Collection<String> list(String path, boolean recursive, String ... filter) throws Exception;
+
+        /**
+         * Reads all the registry nodes at or below the given path that have
+         * data associated with them in one pass.
+         * 
+         * @param path
+         *            The path of the subtree to read.
+         * @return A map of the absolute path of each node to its data, sorted
+         *         by path, or an empty map if there are none.
+         * @throws Exception
+         *             If the subtree couldn't be read.
+         */
+        public Map<String, byte[]> snapshot(String path) throws Exception;
     }
 
     /**
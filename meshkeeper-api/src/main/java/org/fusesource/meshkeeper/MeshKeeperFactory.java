@@ -83,6 +83,13 @@ public class MeshKeeperFactory {
      * be "./data" relative to the current working directory. 
      */
     public static final String MESHKEEPER_BASE_PROPERTY = "meshkeeper.base";
+
+    /**
+     * This property specifies the host wide directory in which downloaded
+     * classpath elements are cached. When not specified the default value will
+     * be "classloader-cache" relative to the base directory.
+     */
+    public static final String MESHKEEPER_CLASSLOADER_CACHE_PROPERTY = "meshkeeper.classloader.cache";
     
     /**
      * When this property is set, created meshkeepers' UUID is set to the specified 
@@ -123,6 +130,20 @@ public class MeshKeeperFactory {
         return new File(getDefaultBaseDirectory(), "server");
     }
 
+    /**
+     * Gets the default host wide directory in which downloaded classpath
+     * elements are cached. It is shared by all agents and launched jvms that
+     * use the same base directory, and can be overridden with the
+     * {@link #MESHKEEPER_CLASSLOADER_CACHE_PROPERTY} system property.
+     */
+    public static File getDefaultClassLoaderCacheDirectory() {
+        String dir = System.getProperty(MESHKEEPER_CLASSLOADER_CACHE_PROPERTY);
+        if (dir != null) {
+            return new File(dir);
+        }
+        return new File(getDefaultBaseDirectory(), "classloader-cache");
+    }
+
     /**
      * Tests if the application is running in a {@link org.fusesource.meshkeeper.MeshContainer}
      * @return True if running in a MeshContainer
@@ -0,0 +1,218 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.meshkeeper.MeshKeeper.Registry;
+
+/**
+ * RegistryDiffWatcher
+ * <p>
+ * A {@link RegistryWatcher} that is told which children were added and removed
+ * since its last notification rather than being given the full list of
+ * children, so that watchers of large paths don't have to rescan every child
+ * on each change.
+ * </p>
+ * <p>
+ * When created with a debounce delay, changes are collected for that long
+ * before the watcher is notified, so a burst of registrations results in a
+ * single notification. A child that is added and removed again within the
+ * delay isn't reported at all.
+ * </p>
+ * <p>
+ * The first notification for a path reports all of its children as added.
+ * Notifications for a path are delivered one at a time and in order. A child
+ * that the watcher couldn't handle can be passed to
+ * {@link #retry(String, String)} to have it reported as added again on the
+ * next notification.
+ * </p>
+ * <p>
+ * The watcher forgets what it has reported for a path when it is removed from
+ * the path with {@link Registry#removeRegistryWatcher(String, RegistryWatcher)},
+ * so adding it again reports the current children as added.
+ * </p>
+ *
+ * @author cmacnaug
+ * @version 1.0
+ * @see Registry#addRegistryWatcher(String, RegistryWatcher)
+ */
+public abstract class RegistryDiffWatcher implements RegistryWatcher {
+
+    private final long debounce;
+    private final ScheduledExecutorService executor;
+    private final HashMap<String, PathState> paths = new HashMap<String, PathState>();
+
+    private static class PathState {
+        // The children last reported, guarded by itself:
+        final HashSet<String> children = new HashSet<String>();
+        // Children to report again, guarded by itself:
+        final HashSet<String> retries = new HashSet<String>();
+        // The latest children not yet reported, guarded by the state:
+        List<String> latest;
+        boolean scheduled;
+    }
+
+    /**
+     * Creates a watcher that is notified of each change as it happens.
+     */
+    public RegistryDiffWatcher() {
+        this(0, null);
+    }
+
+    /**
+     * Creates a watcher that coalesces changes.
+     *
+     * @param debounce
+     *            The number of milliseconds to collect changes for before
+     *            notifying the watcher, 0 to notify it immediately.
+     * @param executor
+     *            The executor used to deliver the delayed notifications, e.g.
+     *            {@link MeshKeeper#getExecutorService()}.
+     */
+    public RegistryDiffWatcher(long debounce, ScheduledExecutorService executor) {
+        if (debounce > 0 && executor == null) {
+            throw new IllegalArgumentException("An executor is required to debounce notifications");
+        }
+        this.debounce = debounce;
+        this.executor = executor;
+    }
+
+    /**
+     * Called when children have been added to or removed from the path.
+     *
+     * @param path
+     *            The path being watched.
+     * @param added
+     *            The children added since the last notification.
+     * @param removed
+     *            The children removed since the last notification.
+     */
+    public abstract void onChildrenChanged(String path, List<String> added, List<String> removed);
+
+    /**
+     * Forgets that a child was reported so that it is reported as added again
+     * on the next notification for the path, e.g. after the watcher failed to
+     * look it up.
+     *
+     * @param path
+     *            The path being watched.
+     * @param child
+     *            The child to report again.
+     */
+    protected void retry(String path, String child) {
+        PathState state;
+        synchronized (paths) {
+            state = paths.get(path);
+        }
+        if (state != null) {
+            // Applied by the next delivery, so this can be called while one
+            // is in progress:
+            synchronized (state.retries) {
+                state.retries.add(child);
+            }
+        }
+    }
+
+    /**
+     * Forgets what has been reported for the path. Called by the registry when
+     * the watcher is removed from the path.
+     *
+     * @param path
+     *            The path that is no longer watched.
+     */
+    public void reset(String path) {
+        synchronized (paths) {
+            paths.remove(path);
+        }
+    }
+
+    public final void onChildrenChanged(final String path, List<String> children) {
+        final PathState state;
+        synchronized (paths) {
+            PathState s = paths.get(path);
+            if (s == null) {
+                s = new PathState();
+                paths.put(path, s);
+            }
+            state = s;
+        }
+
+        if (debounce <= 0) {
+            deliver(path, state, children);
+            return;
+        }
+
+        synchronized (state) {
+            state.latest = children;
+            if (state.scheduled) {
+                return;
+            }
+            state.scheduled = true;
+        }
+        executor.schedule(new Runnable() {
+            public void run() {
+                List<String> latest;
+                synchronized (state) {
+                    latest = state.latest;
+                    state.latest = null;
+                    state.scheduled = false;
+                }
+                synchronized (paths) {
+                    // Dropped if the watcher was reset in the meantime:
+                    if (paths.get(path) != state) {
+                        return;
+                    }
+                }
+                deliver(path, state, latest);
+            }
+        }, debounce, TimeUnit.MILLISECONDS);
+    }
+
+    private void deliver(String path, PathState state, List<String> children) {
+        synchronized (state.children) {
+            synchronized (state.retries) {
+                state.children.removeAll(state.retries);
+                state.retries.clear();
+            }
+            HashSet<String> current = new HashSet<String>(children);
+            ArrayList<String> removed = new ArrayList<String>();
+            for (Iterator<String> i = state.children.iterator(); i.hasNext();) {
+                String child = i.next();
+                if (!current.contains(child)) {
+                    removed.add(child);
+                    i.remove();
+                }
+            }
+            ArrayList<String> added = new ArrayList<String>();
+            for (String child : children) {
+                if (state.children.add(child)) {
+                    added.add(child);
+                }
+            }
+            if (!added.isEmpty() || !removed.isEmpty()) {
+                onChildrenChanged(path, added, removed);
+            }
+        }
+    }
+}
@@ -31,6 +31,9 @@ public interface ClassLoaderServer extends Distributable {
 
     /**
      * Exposes the specified classloader so it can be downloaded remotely.
+     * URLClassLoaders export their urls, the system class loader exports the
+     * java.class.path and jdk.module.path it was started with, and other class
+     * loaders export the code sources their resources are loaded from.
      *
      * @param classLoader
      * @param registryPath the path at which to register the factory.
@@ -27,7 +27,6 @@ import java.net.URLClassLoader;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -38,6 +37,13 @@ public class BasicClassLoaderFactory implements ClassLoaderFactory {
     private static final int CHUNK_SIZE = 1024 * 64;
     private static final Log LOG = LogFactory.getLog(BasicClassLoaderFactory.class);
 
+    /**
+     * When this system property is set to true, created class loaders fetch
+     * classes and resources from the server on first use instead of
+     * downloading the whole classpath up front.
+     */
+    public static final String LAZY_PROPERTY = "meshkeeper.classloader.lazy";
+
     private BasicClassLoaderServer.IServer server;
     private String registryPath;
     private final long id;
@@ -55,40 +61,27 @@ public class BasicClassLoaderFactory implements ClassLoaderFactory {
         return registryPath;
     }
 
-    //    TODO: We may need to implement a custom classloader to stream resources directly
-    //    if we want to support non URLClassLoaders...
-    //
-    //    public class RemoteClassLoader extends ClassLoader {
-    //
-    //        @SuppressWarnings("unchecked")
-    //        public Class findClass(String name) throws ClassNotFoundException {
-    //            String path = name.replace('.', '/').concat(".class");
-    //            try {
-    //                byte data[] = server.findResource(path);
-    //                if (data == null) {
-    //                    throw new ClassNotFoundException(name);
-    //                }
-    //                return defineClass(name, data, 0, data.length);
-    //            } catch (Exception e) {
-    //                throw new ClassNotFoundException(name);
-    //            }
-    //        }
-    //    }
-
     public ClassLoader createClassLoader(ClassLoader parent, File cacheDir) throws Exception {
 
-        //        parent = createRemoteClassLoader(server.getParent(), cacheDir, depth - 1, parent);
+        if (Boolean.getBoolean(LAZY_PROPERTY)) {
+            // Load classes on demand rather than downloading the jars:
+            BasicClassLoaderServer.ResourceIndex index = server.getResourceIndex(id);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Created lazy class loader with: " + index.elements.size() + " elements");
+            }
+            return new RemoteClassLoader(parent, server, index);
+        }
+
         List<BasicClassLoaderServer.PathElement> elements = server.getPathElements(id);
         if (elements == null) {
-            // That classloader was not URL classloader based, so we could not import it
-            // by downloading it's jars.. we will have to use dynamically.
-            // return new RemoteClassLoader(parent, server);
             throw new IOException("Unexpected Remote Response");
         }
 
         // We can build stadard URLClassLoader by downloading all the
         // jars or using the same URL elements as the original classloader.
         ArrayList<URL> urls = new ArrayList<URL>();
+        ArrayList<BasicClassLoaderServer.PathElement> downloads = new ArrayList<BasicClassLoaderServer.PathElement>();
+        ArrayList<File> files = new ArrayList<File>();
         for (BasicClassLoaderServer.PathElement element : elements) {
 
             if (element.url != null) {
@@ -109,54 +102,25 @@ public class BasicClassLoaderFactory implements ClassLoaderFactory {
                     name = HexSupport.toHexFromBytes(element.fingerprint) + ".jar";
                 }
                 File file = new File(cacheDir, name);
-
-                if (!file.exists()) {
-                    LOG.debug("Downloading: " + file);
-                    // We need to download it...
-                    File tmp = null;
-                    FileOutputStream out = null;
-                    try {
-                        tmp = File.createTempFile(name, ".part", cacheDir);
-                        out = new FileOutputStream(tmp);
-                        int pos = 0;
-                        while (true) {
-                            byte[] data = server.download(element.id, pos, CHUNK_SIZE);
-                            out.write(data);
-                            if (data.length < CHUNK_SIZE) {
-                                break;
-                            }
-                            pos += CHUNK_SIZE;
-                        }
-                    } finally {
-                        try {
-                            out.close();
-                        } catch (Throwable e) {
-                        }
-                    }
-                    if (!tmp.renameTo(file)) {
-                        tmp.delete();
-                    }
-                }
-
-                // It may be in the cache dir already...
-                if (file.exists()) {
-                    if (!Arrays.equals(element.fingerprint, fingerprint(new FileInputStream(file))) || element.length != file.length()) {
-                        throw new IOException("fingerprint missmatch: " + name);
-                    }
-
-                    urls.add(file.toURI().toURL());
-                } else {
-                    throw new IOException("Could not download: " + name);
-                }
+                downloads.add(element);
+                files.add(file);
+                urls.add(file.toURI().toURL());
             }
         }
 
+        // Fetch the missing jars in parallel rather than one chunk at a time:
+        JarCache cache = null;
+        if (!downloads.isEmpty()) {
+            cache = JarCache.getInstance(cacheDir);
+            cache.resolve(downloads, files, new ClassPathDownloader(server, CHUNK_SIZE));
+        }
+
         URL t[] = new URL[urls.size()];
         urls.toArray(t);
         if (LOG.isDebugEnabled()) {
             LOG.debug("Created URL class loader with: " + urls);
         }
-        return new URLClassLoader(t, parent) {
+        URLClassLoader loader = new URLClassLoader(t, parent) {
 
             protected Class<?> findClass(String name) throws ClassNotFoundException {
                 try {
@@ -178,6 +142,12 @@ public class BasicClassLoaderFactory implements ClassLoaderFactory {
                 return c;
             }
         };
+
+        // Keep the jars from being evicted while the loader is in use:
+        if (cache != null) {
+            cache.retain(loader, files);
+        }
+        return loader;
     }
 
     static byte[] fingerprint(InputStream is) throws IOException {
@@ -16,22 +16,29 @@
  */
 package org.fusesource.meshkeeper.classloader.basic;
 
-import static org.fusesource.meshkeeper.util.internal.FileSupport.jar;
-import static org.fusesource.meshkeeper.util.internal.FileSupport.read;
-
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
+import java.util.zip.Deflater;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -39,6 +46,7 @@ import org.fusesource.meshkeeper.Distributable;
 import org.fusesource.meshkeeper.MeshKeeper;
 import org.fusesource.meshkeeper.classloader.ClassLoaderFactory;
 import org.fusesource.meshkeeper.classloader.ClassLoaderServer;
+import org.fusesource.meshkeeper.util.internal.IOSupport;
 
 /**
  * @author chirino
@@ -48,6 +56,11 @@ public class BasicClassLoaderServer implements ClassLoaderServer {
     private static final Log LOG = LogFactory.getLog(BasicClassLoaderServer.class);
 
     static final long ROUNDUP_MILLIS = 1999;
+
+    /**
+     * Files up to this size are memory mapped when served.
+     */
+    static final long MAX_MAPPED_SIZE = 1024 * 1024 * 256;
     private final MeshKeeper meshKeeper;
 
     public static class PathElement implements Serializable {
@@ -59,10 +72,57 @@ public class BasicClassLoaderServer implements ClassLoaderServer {
         public URL url;
     }
 
+    /**
+     * Lists the entries of every element of an exported classloader so that
+     * clients can load classes and resources on demand.
+     */
+    public static class ResourceIndex implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public List<PathElement> elements;
+        /**
+         * The names of the entries held by each of the elements, or null for
+         * url elements.
+         */
+        public String[][] entries;
+    }
+
+    /**
+     * A range of an exported file returned by a batched download.
+     */
+    public static class Chunk implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public long fileId;
+        public long pos;
+        /**
+         * The uncompressed length of the range.
+         */
+        public int length;
+        /**
+         * True if the data has been deflated.
+         */
+        public boolean deflated;
+        public byte[] data;
+    }
+
     public interface IServer extends Distributable {
         List<PathElement> getPathElements(long classLoaderId) throws Exception;
 
         byte[] download(long fileId, int pos, int length) throws IOException;
+
+        /**
+         * Downloads several ranges in one call. Range i starts at positions[i]
+         * of file fileIds[i] and is at most length bytes long. When deflate is
+         * set, chunks that compress are returned deflated.
+         */
+        Chunk[] download(long[] fileIds, long[] positions, int length, boolean deflate) throws IOException;
+
+        ResourceIndex getResourceIndex(long classLoaderId) throws Exception;
+
+        /**
+         * @return The contents of the named entries of a file, null for the
+         *         entries that don't exist.
+         */
+        byte[][] getResources(long fileId, String[] names) throws IOException;
     }
 
     public class Server implements IServer {
@@ -87,17 +147,162 @@ public class BasicClassLoaderServer implements ClassLoaderServer {
             if (exportedFile == null) {
                 throw new IllegalArgumentException("Requested file not found: " + fileId);
             }
-            File file = exportedFile.jared == null ? exportedFile.file : exportedFile.jared;
-            LOG.debug("Client downloading from: " + file + " starting at " + pos);
-            return read(file, pos, length);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Client downloading from: " + exportedFile.getSource() + " starting at " + pos);
+            }
+            return exportedFile.read(pos, length);
+        }
+
+        public Chunk[] download(long[] fileIds, long[] positions, int length, boolean deflate) throws IOException {
+            Chunk[] rc = new Chunk[fileIds.length];
+            Deflater deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+            try {
+                for (int i = 0; i < fileIds.length; i++) {
+                    ExportedFile exportedFile = exportedFiles.get(fileIds[i]);
+                    if (exportedFile == null) {
+                        throw new IllegalArgumentException("Requested file not found: " + fileIds[i]);
+                    }
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Client downloading from: " + exportedFile.getSource() + " starting at " + positions[i]);
+                    }
+                    rc[i] = readChunk(exportedFile, fileIds[i], positions[i], length, deflater);
+                }
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+            return rc;
+        }
+
+        public ResourceIndex getResourceIndex(long classLoaderId) throws Exception {
+            LOG.debug("Client is downloading the resource index for " + classLoaderId);
+            ArrayList<ExportedFile> files = exportedClassLoaders.get(classLoaderId);
+            if (files == null) {
+                throw new IllegalArgumentException("Requested class loader not found.");
+            }
+            ResourceIndex rc = new ResourceIndex();
+            rc.elements = new ArrayList<PathElement>(files.size());
+            rc.entries = new String[files.size()][];
+            for (int i = 0; i < files.size(); i++) {
+                ExportedFile file = files.get(i);
+                file.setPathElementName();
+                rc.elements.add(file.element);
+                rc.entries[i] = file.getEntryNames();
+            }
+            return rc;
+        }
+
+        public byte[][] getResources(long fileId, String[] names) throws IOException {
+            ExportedFile exportedFile = exportedFiles.get(fileId);
+            if (exportedFile == null) {
+                throw new IllegalArgumentException("Requested file not found: " + fileId);
+            }
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Client downloading " + names.length + " entries from: " + exportedFile.file);
+            }
+            return exportedFile.readEntries(names);
         }
     }
 
+    /**
+     * Reads a chunk of an exported file, deflating it if a deflater is given
+     * and the data compresses.
+     */
+    static Chunk readChunk(ExportedFile exportedFile, long fileId, long pos, int length, Deflater deflater) throws IOException {
+        Chunk chunk = new Chunk();
+        chunk.fileId = fileId;
+        chunk.pos = pos;
+        chunk.data = exportedFile.read(pos, length);
+        chunk.length = chunk.data.length;
+        if (deflater != null && chunk.length > 0) {
+            deflater.reset();
+            deflater.setInput(chunk.data);
+            deflater.finish();
+            // Only keep the deflated form if it is smaller:
+            byte[] buffer = new byte[chunk.length];
+            int size = deflater.deflate(buffer);
+            if (deflater.finished() && size < chunk.length) {
+                chunk.data = new byte[size];
+                System.arraycopy(buffer, 0, chunk.data, 0, size);
+                chunk.deflated = true;
+            }
+        }
+        return chunk;
+    }
+
     static class ExportedFile {
         final public PathElement element = new PathElement();;
         public File file;
         public File jared;
 
+        private JarFile jarFile;
+        private String[] entryNames;
+        private RandomAccessFile raf;
+        private ByteBuffer mapped;
+
+        public File getSource() {
+            return jared == null ? file : jared;
+        }
+
+        /**
+         * Reads a range of the file through a cached channel, or a memory
+         * mapped view for files that are not too large, so that the file is
+         * not reopened on every request.
+         */
+        public byte[] read(long pos, int length) throws IOException {
+            ByteBuffer buffer;
+            FileChannel channel;
+            synchronized (this) {
+                if (raf == null) {
+                    raf = new RandomAccessFile(getSource(), "r");
+                    FileChannel c = raf.getChannel();
+                    if (c.size() <= MAX_MAPPED_SIZE) {
+                        mapped = c.map(FileChannel.MapMode.READ_ONLY, 0, c.size());
+                    }
+                }
+                buffer = mapped == null ? null : mapped.duplicate();
+                channel = raf.getChannel();
+            }
+
+            long size = buffer != null ? buffer.capacity() : channel.size();
+            long remaining = Math.max(0, size - pos);
+            byte rc[] = new byte[(int) Math.min(remaining, length)];
+            if (rc.length == 0) {
+                return rc;
+            }
+            if (buffer != null) {
+                buffer.position((int) pos);
+                buffer.get(rc);
+            } else {
+                ByteBuffer target = ByteBuffer.wrap(rc);
+                while (target.hasRemaining()) {
+                    if (channel.read(target, pos + target.position()) < 0) {
+                        throw new EOFException("Unexpected end of file: " + getSource());
+                    }
+                }
+            }
+            return rc;
+        }
+
+        public synchronized void close() {
+            mapped = null;
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignore) {
+                }
+                raf = null;
+            }
+            if (jarFile != null) {
+                try {
+                    jarFile.close();
+                } catch (IOException ignore) {
+                }
+                jarFile = null;
+            }
+        }
+
         public void setPathElementName() {
             if (element.name != null) {
                 return;
@@ -107,6 +312,46 @@ public class BasicClassLoaderServer implements ClassLoaderServer {
                 element.name = file.getName();
             }
         }
+
+        private JarFile getJarFile() throws IOException {
+            if (jarFile == null) {
+                jarFile = new JarFile(jared == null ? file : jared);
+            }
+            return jarFile;
+        }
+
+        public synchronized String[] getEntryNames() throws IOException {
+            if (entryNames == null && element.url == null) {
+                ArrayList<String> names = new ArrayList<String>();
+                for (Enumeration<JarEntry> e = getJarFile().entries(); e.hasMoreElements();) {
+                    JarEntry entry = e.nextElement();
+                    if (!entry.isDirectory()) {
+                        names.add(entry.getName());
+                    }
+                }
+                entryNames = names.toArray(new String[names.size()]);
+            }
+            return entryNames;
+        }
+
+        public synchronized byte[][] readEntries(String[] names) throws IOException {
+            JarFile jar = getJarFile();
+            byte[][] rc = new byte[names.length][];
+            for (int i = 0; i < names.length; i++) {
+                JarEntry entry = jar.getJarEntry(names[i]);
+                if (entry != null) {
+                    InputStream is = jar.getInputStream(entry);
+                    try {
+                        ByteArrayOutputStream os = new ByteArrayOutputStream(entry.getSize() > 0 ? (int) entry.getSize() : 1024);
+                        IOSupport.copy(is, os);
+                        rc[i] = os.toByteArray();
+                    } finally {
+                        IOSupport.close(is);
+                    }
+                }
+            }
+            return rc;
+        }
     }
 
     private final ConcurrentHashMap<ClassLoader, ClassLoaderFactory> factories = new ConcurrentHashMap<ClassLoader, ClassLoaderFactory>();
@@ -135,6 +380,10 @@ public class BasicClassLoaderServer implements ClassLoaderServer {
 
             meshKeeper.remoting().unexport(proxy);
             proxy = null;
+
+            for (ExportedFile file : exportedFiles.values()) {
+                file.close();
+            }
         }
     }
 
@@ -185,10 +434,103 @@ public class BasicClassLoaderServer implements ClassLoaderServer {
     }
 
     private static void addExportedFiles(ClassLoader classLoader, ArrayList<ExportedFile> elements) throws IOException {
-        if (!(classLoader instanceof URLClassLoader)) {
-            throw new IOException("Encountered a non URLClassLoader classloader.");
+        if (classLoader instanceof URLClassLoader) {
+            addExportedURLs(((URLClassLoader) classLoader).getURLs(), elements);
+        } else if (classLoader == ClassLoader.getSystemClassLoader()) {
+            // The application class loader isn't a URLClassLoader on newer
+            // jvms, so export what it was started with:
+            addExportedPath(System.getProperty("java.class.path"), elements, false);
+            addExportedPath(System.getProperty("jdk.module.path"), elements, true);
+        } else if (isSystemClassLoaderAncestor(classLoader)) {
+            // The platform class loader's modules are part of every jvm.
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Not exporting platform class loader: " + classLoader);
+            }
+        } else {
+            addExportedCodeSources(classLoader, elements);
+        }
+    }
+
+    private static boolean isSystemClassLoaderAncestor(ClassLoader classLoader) {
+        for (ClassLoader cl = ClassLoader.getSystemClassLoader().getParent(); cl != null; cl = cl.getParent()) {
+            if (cl == classLoader) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Exports the elements of a path such as java.class.path. Module path
+     * entries may also be directories holding modular jars.
+     */
+    private static void addExportedPath(String path, ArrayList<ExportedFile> elements, boolean modulePath) throws IOException {
+        if (path == null || path.trim().length() == 0) {
+            return;
+        }
+        for (String entry : path.split(File.pathSeparator)) {
+            if (entry.length() == 0) {
+                continue;
+            }
+            File file = new File(entry);
+            if (modulePath && file.isDirectory() && !new File(file, "module-info.class").exists()) {
+                File[] jars = file.listFiles();
+                if (jars != null) {
+                    for (File jar : jars) {
+                        if (jar.getName().endsWith(".jar")) {
+                            addExportedFile(elements, jar);
+                        }
+                    }
+                }
+            } else {
+                addExportedFile(elements, file);
+            }
+        }
+    }
+
+    /**
+     * Exports any other kind of class loader by locating the code sources it
+     * can load from: the jars holding its manifests and the directories
+     * holding its classes. Resource lookups also return those of the parent
+     * loaders, which are left to be exported by depth, so the parent's code
+     * sources are left out.
+     */
+    private static void addExportedCodeSources(ClassLoader classLoader, ArrayList<ExportedFile> elements) throws IOException {
+        ArrayList<URL> roots = findCodeSourceRoots(classLoader);
+        if (classLoader.getParent() != null) {
+            roots.removeAll(findCodeSourceRoots(classLoader.getParent()));
+        }
+        if (roots.isEmpty()) {
+            throw new IOException("Could not locate the code sources of class loader: " + classLoader);
+        }
+        addExportedURLs(roots.toArray(new URL[roots.size()]), elements);
+    }
+
+    private static ArrayList<URL> findCodeSourceRoots(ClassLoader classLoader) throws IOException {
+        ArrayList<URL> roots = new ArrayList<URL>();
+        for (Enumeration<URL> e = classLoader.getResources("META-INF/MANIFEST.MF"); e.hasMoreElements();) {
+            addCodeSourceRoot(e.nextElement(), "META-INF/MANIFEST.MF", roots);
+        }
+        for (Enumeration<URL> e = classLoader.getResources(""); e.hasMoreElements();) {
+            addCodeSourceRoot(e.nextElement(), "", roots);
+        }
+        return roots;
+    }
+
+    private static void addCodeSourceRoot(URL resource, String name, ArrayList<URL> roots) throws MalformedURLException {
+        URL root = null;
+        String url = resource.toExternalForm();
+        if ("jar".equals(resource.getProtocol())) {
+            int sep = url.indexOf("!/");
+            if (sep > 0 && url.startsWith("jar:file:")) {
+                root = new URL(url.substring(4, sep));
+            }
+        } else if ("file".equals(resource.getProtocol()) && url.endsWith(name)) {
+            root = new URL(url.substring(0, url.length() - name.length()));
+        }
+        if (root != null && !roots.contains(root)) {
+            roots.add(root);
         }
-        addExportedURLs(((URLClassLoader) classLoader).getURLs(), elements);
     }
         
     private static void addExportedURLs( URL[] urls, ArrayList<ExportedFile> elements) throws IOException
@@ -236,18 +578,17 @@ public class BasicClassLoaderServer implements ClassLoaderServer {
         }
 
         ArrayList<URL> manifestClasspath = null;
+        ExportIndex.Entry indexed = null;
 
         // if it's a directory, then jar it up..
         if (file.isDirectory()) {
             if (file.list().length <= 0) {
                 return;
             }
+            indexed = ExportIndex.getInstance().getDirectoryEntry(file);
+            exportedFile.jared = indexed.file;
             if (LOG.isDebugEnabled())
-                LOG.debug("Jaring: " + file);
-            File jar = exportedFile.jared = jar(file);
-            if (LOG.isDebugEnabled())
-                LOG.debug("Jared: " + file + " as: " + jar);
-            file = jar;
+                LOG.debug("Exporting: " + file + " as: " + indexed.file);
         } else {
             // if it's a file then it needs to be eaither a zip or jar file.
             String name = file.getName();
@@ -259,8 +600,9 @@ public class BasicClassLoaderServer implements ClassLoaderServer {
 
             //Parse the manifest, and include entries in the exported
             //classpath:
+            JarFile jar = null;
             try {
-                JarFile jar = new JarFile(file);
+                jar = new JarFile(file);
                 Manifest manifest = jar.getManifest();
                 if (manifest != null) {
                     String classpath = (String) manifest.getMainAttributes().get(java.util.jar.Attributes.Name.CLASS_PATH);
@@ -274,13 +616,31 @@ public class BasicClassLoaderServer implements ClassLoaderServer {
                 }
             } catch (Exception e) {
                 LOG.warn("Error reading jar manifest for: " + file);
+            } finally {
+                if (jar != null) {
+                    try {
+                        jar.close();
+                    } catch (IOException ignore) {
+                    }
+                }
             }
 
+            indexed = ExportIndex.getInstance().getFileEntry(file);
+        }
+
+        // The same content may be on the path more than once, e.g. a jar
+        // copied into several lib directories:
+        for (ExportedFile element : elements) {
+            if (element.element.length == indexed.length && Arrays.equals(indexed.fingerprint, element.element.fingerprint)) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("duplicate content :" + file + " on classpath, already exported as: " + element.file);
+                return;
+            }
         }
 
         exportedFile.element.id = ids.incrementAndGet();
-        exportedFile.element.length = file.length();
-        exportedFile.element.fingerprint = BasicClassLoaderFactory.fingerprint(new FileInputStream(file));
+        exportedFile.element.length = indexed.length;
+        exportedFile.element.fingerprint = indexed.fingerprint;
         elements.add(exportedFile);
 
         //Add in any manifest entries:
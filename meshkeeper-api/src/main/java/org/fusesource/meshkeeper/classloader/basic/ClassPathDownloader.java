@@ -0,0 +1,398 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.classloader.basic;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fusesource.meshkeeper.util.internal.HexSupport;
+
+/**
+ * ClassPathDownloader
+ * <p>
+ * Downloads the files of an exported classpath into a cache directory. Files
+ * are fetched concurrently and each file keeps several chunk requests in
+ * flight so that the round trip latency to the {@link BasicClassLoaderServer}
+ * is overlapped rather than paid once per chunk. Each request asks for a
+ * batch of chunks which the server may return deflated. Files held by a peer
+ * agent are downloaded from the peer rather than from the exporting server.
+ * </p>
+ *
+ * @author chirino
+ */
+class ClassPathDownloader {
+
+    private static final Log LOG = LogFactory.getLog(ClassPathDownloader.class);
+
+    /**
+     * System property used to set the maximum number of concurrent download
+     * requests.
+     */
+    public static final String DOWNLOAD_THREADS_PROPERTY = "meshkeeper.classloader.download.threads";
+
+    /**
+     * System property used to set the maximum number of chunk requests kept in
+     * flight for a single file.
+     */
+    public static final String DOWNLOAD_PIPELINE_PROPERTY = "meshkeeper.classloader.download.pipeline";
+
+    /**
+     * System property used to set the number of chunks requested in each
+     * call to the server.
+     */
+    public static final String DOWNLOAD_BATCH_PROPERTY = "meshkeeper.classloader.download.batch";
+
+    /**
+     * System property used to disable compression of downloaded chunks.
+     */
+    public static final String DOWNLOAD_COMPRESS_PROPERTY = "meshkeeper.classloader.download.compress";
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger(0);
+
+    private final BasicClassLoaderServer.IServer server;
+    private final int chunkSize;
+    private int maxConcurrentRequests = Integer.getInteger(DOWNLOAD_THREADS_PROPERTY, 8);
+    private int maxChunksInFlight = Integer.getInteger(DOWNLOAD_PIPELINE_PROPERTY, 4);
+    private int chunksPerRequest = Integer.getInteger(DOWNLOAD_BATCH_PROPERTY, 4);
+    private boolean compress = !"false".equals(System.getProperty(DOWNLOAD_COMPRESS_PROPERTY));
+    private PeerBlobServer peers;
+
+    ClassPathDownloader(BasicClassLoaderServer.IServer server, int chunkSize) {
+        this.server = server;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Downloads the given elements to the given files. Elements whose file
+     * already exists are not downloaded. Every file is checked against its
+     * element's fingerprint once it is in place.
+     *
+     * @param elements
+     *            The elements to download.
+     * @param files
+     *            The target files, in the same order as the elements.
+     * @throws IOException
+     *             If any of the files could not be downloaded or verified.
+     */
+    public void download(List<BasicClassLoaderServer.PathElement> elements, List<File> files) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, maxConcurrentRequests), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "MeshKeeper ClassLoader Download-" + THREAD_COUNTER.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        ArrayList<Download> downloads = new ArrayList<Download>(elements.size());
+        try {
+            int workers = 0;
+            for (int i = 0; i < elements.size(); i++) {
+                Download download = new Download(elements.get(i), files.get(i));
+                downloads.add(download);
+                workers += download.prepare();
+            }
+
+            if (peers != null) {
+                lookupPeers(executor, downloads);
+            }
+
+            // Schedule the first chunk of every file before any pipelined
+            // requests so that all files make progress concurrently:
+            CountDownLatch done = new CountDownLatch(workers);
+            for (int pass = 0; pass < Math.max(1, maxChunksInFlight); pass++) {
+                for (Download download : downloads) {
+                    if (pass < download.workers) {
+                        executor.execute(download.createWorker(done));
+                        download.scheduled = true;
+                    }
+                }
+            }
+
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while downloading classpath");
+            }
+
+            for (Download download : downloads) {
+                download.complete();
+            }
+        } finally {
+            executor.shutdownNow();
+            // No worker will finish the downloads that never started:
+            for (Download download : downloads) {
+                if (!download.scheduled) {
+                    download.abort();
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks up peers for all the files being downloaded at once.
+     */
+    private void lookupPeers(ExecutorService executor, List<Download> downloads) throws IOException {
+        final CountDownLatch done = new CountDownLatch(downloads.size());
+        for (final Download download : downloads) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (download.workers > 0) {
+                            download.peer = peers.findPeer(download.element);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading classpath");
+        }
+    }
+
+    private int getRequestSize() {
+        return chunkSize * Math.max(1, chunksPerRequest);
+    }
+
+    /**
+     * Sets the peer server used to find peers to download files from. The
+     * exporting server is used for files that no peer has.
+     */
+    public void setPeers(PeerBlobServer peers) {
+        this.peers = peers;
+    }
+
+    public int getChunksPerRequest() {
+        return chunksPerRequest;
+    }
+
+    public void setChunksPerRequest(int chunksPerRequest) {
+        this.chunksPerRequest = chunksPerRequest;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    public int getMaxChunksInFlight() {
+        return maxChunksInFlight;
+    }
+
+    public void setMaxChunksInFlight(int maxChunksInFlight) {
+        this.maxChunksInFlight = maxChunksInFlight;
+    }
+
+    private class Download {
+        final BasicClassLoaderServer.PathElement element;
+        final File file;
+        final AtomicLong nextPos = new AtomicLong();
+        final AtomicInteger running = new AtomicInteger();
+        int workers;
+        File tmp;
+        RandomAccessFile raf;
+        FileChannel channel;
+        volatile IOException error;
+        volatile PeerBlobServer.IPeer peer;
+        boolean scheduled;
+
+        Download(BasicClassLoaderServer.PathElement element, File file) {
+            this.element = element;
+            this.file = file;
+        }
+
+        /**
+         * @return The number of workers needed to download the file.
+         */
+        int prepare() throws IOException {
+            if (file.exists()) {
+                return 0;
+            }
+
+            LOG.debug("Downloading: " + file);
+            tmp = File.createTempFile(file.getName(), ".part", file.getParentFile());
+            raf = new RandomAccessFile(tmp, "rw");
+            raf.setLength(element.length);
+            channel = raf.getChannel();
+
+            long chunks = (element.length + getRequestSize() - 1) / getRequestSize();
+            workers = (int) Math.max(1, Math.min(chunks, Math.max(1, maxChunksInFlight)));
+            running.set(workers);
+            return workers;
+        }
+
+        Runnable createWorker(final CountDownLatch done) {
+            return new Runnable() {
+                public void run() {
+                    try {
+                        Inflater inflater = new Inflater();
+                        try {
+                            while (error == null) {
+                                long pos = nextPos.getAndAdd(getRequestSize());
+                                if (pos >= element.length && !(pos == 0 && element.length == 0)) {
+                                    break;
+                                }
+                                if (!fetch(pos, inflater)) {
+                                    break;
+                                }
+                            }
+                        } finally {
+                            inflater.end();
+                        }
+                    } catch (Throwable e) {
+                        IOException ioe = e instanceof IOException ? (IOException) e : new IOException("Error downloading: " + file);
+                        if (ioe != e) {
+                            ioe.initCause(e);
+                        }
+                        error = ioe;
+                    } finally {
+                        if (running.decrementAndGet() == 0) {
+                            finish();
+                        }
+                        done.countDown();
+                    }
+                }
+            };
+        }
+
+        /**
+         * Fetches the chunks of one request starting at the given position.
+         *
+         * @return false once the end of the file has been reached.
+         */
+        private boolean fetch(long pos, Inflater inflater) throws IOException, DataFormatException {
+            int count = (int) Math.max(1, Math.min(Math.max(1, chunksPerRequest), (element.length - pos + chunkSize - 1) / chunkSize));
+            long[] ids = new long[count];
+            long[] positions = new long[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = element.id;
+                positions[i] = pos + (long) i * chunkSize;
+            }
+
+            BasicClassLoaderServer.Chunk[] chunks = null;
+            PeerBlobServer.IPeer peer = this.peer;
+            if (peer != null) {
+                try {
+                    chunks = peer.download(HexSupport.toHexFromBytes(element.fingerprint), positions, chunkSize, compress);
+                } catch (Throwable e) {
+                    // Fall back to the exporting server:
+                    LOG.info("Error downloading " + file.getName() + " from peer, using the origin: " + e);
+                    this.peer = null;
+                }
+            }
+            if (chunks == null) {
+                chunks = server.download(ids, positions, chunkSize, compress);
+            }
+            boolean more = true;
+            for (BasicClassLoaderServer.Chunk chunk : chunks) {
+                byte[] data = chunk.data;
+                if (chunk.deflated) {
+                    data = new byte[chunk.length];
+                    inflater.reset();
+                    inflater.setInput(chunk.data);
+                    if (inflater.inflate(data) != chunk.length || !inflater.finished()) {
+                        throw new IOException("Corrupt compressed chunk at " + chunk.pos + " for: " + file);
+                    }
+                }
+                if (data.length != Math.min(chunkSize, element.length - chunk.pos)) {
+                    throw new IOException("Unexpected chunk length at " + chunk.pos + " for: " + file);
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, chunk.pos + buffer.position());
+                }
+                if (data.length < chunkSize) {
+                    more = false;
+                }
+            }
+            return more;
+        }
+
+        private void finish() {
+            try {
+                raf.close();
+            } catch (Throwable e) {
+            }
+            if (error != null || !tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        }
+
+        /**
+         * Cleans up a prepared download that won't be run.
+         */
+        void abort() {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (Throwable e) {
+                }
+            }
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+
+        void complete() throws IOException {
+            if (error != null) {
+                throw error;
+            }
+
+            // It may be in the cache dir already...
+            if (file.exists()) {
+                if (!Arrays.equals(element.fingerprint, BasicClassLoaderFactory.fingerprint(new FileInputStream(file))) || element.length != file.length()) {
+                    throw new IOException("fingerprint missmatch: " + file.getName());
+                }
+            } else {
+                throw new IOException("Could not download: " + file.getName());
+            }
+        }
+    }
+}
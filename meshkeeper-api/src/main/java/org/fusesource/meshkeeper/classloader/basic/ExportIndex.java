@@ -0,0 +1,338 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.classloader.basic;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fusesource.meshkeeper.MeshKeeperFactory;
+import org.fusesource.meshkeeper.util.internal.FileSupport;
+import org.fusesource.meshkeeper.util.internal.HexSupport;
+import org.fusesource.meshkeeper.util.internal.IOSupport;
+
+/**
+ * ExportIndex
+ * <p>
+ * A persistent index of the fingerprints of exported classpath elements and
+ * of the jar images built for exported directories. Entries are keyed by
+ * canonical path and are reused for as long as the size and modification
+ * time of the file (or of every file under the directory) are unchanged, so
+ * that exporting the same classpath again does not re-hash every jar or
+ * re-jar every directory.
+ * </p>
+ * <p>
+ * The index may be shared by several jvms, so it is read and written under a
+ * file lock and entries written by other jvms are merged in rather than
+ * overwritten. Unreferenced images are only removed once they are older than
+ * a grace period since another jvm may still be serving them.
+ * </p>
+ *
+ * @author chirino
+ */
+class ExportIndex {
+
+    private static final Log LOG = LogFactory.getLog(ExportIndex.class);
+
+    /**
+     * System property used to override the directory in which the index and
+     * the jared directory images are kept.
+     */
+    public static final String EXPORT_INDEX_DIR_PROPERTY = "meshkeeper.classloader.export.index";
+
+    private static final String INDEX_FILE = "index.properties";
+    private static final String LOCK_FILE = "index.lock";
+
+    // Unreferenced images younger than this may be in use by another jvm:
+    private static final long IMAGE_GRACE_PERIOD = 1000 * 60 * 60 * 24;
+
+    private static ExportIndex instance;
+
+    /**
+     * An indexed classpath element.
+     */
+    static class Entry {
+        /**
+         * The file to serve, either the original jar or the jared directory
+         * image.
+         */
+        File file;
+        byte[] fingerprint;
+        long length;
+    }
+
+    private final File directory;
+    private final Properties index = new Properties();
+
+    ExportIndex(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return The index shared by every exporter in this vm.
+     */
+    static synchronized ExportIndex getInstance() {
+        if (instance == null) {
+            String dir = System.getProperty(EXPORT_INDEX_DIR_PROPERTY);
+            File directory = dir != null ? new File(dir) : new File(MeshKeeperFactory.getDefaultClientDirectory(), "classloader-export-index");
+            instance = new ExportIndex(directory);
+            instance.load();
+        }
+        return instance;
+    }
+
+    /**
+     * Gets the index entry for the given jar file, fingerprinting it if it
+     * was not indexed or has changed since it was indexed.
+     */
+    synchronized Entry getFileEntry(File file) throws IOException {
+        String key = file.getCanonicalPath();
+        String stamp = file.length() + ":" + file.lastModified();
+
+        Entry entry = lookup(key, stamp);
+        if (entry == null) {
+            entry = new Entry();
+            entry.length = file.length();
+            entry.fingerprint = BasicClassLoaderFactory.fingerprint(new FileInputStream(file));
+            store(key, stamp, entry, false);
+        }
+        entry.file = file;
+        return entry;
+    }
+
+    /**
+     * Gets the index entry for the given directory, jaring it up if it was
+     * not indexed or if any of the files beneath it have changed since it was
+     * jared.
+     */
+    synchronized Entry getDirectoryEntry(File dir) throws IOException {
+        String key = dir.getCanonicalPath();
+        String stamp = directoryStamp(dir);
+
+        Entry entry = lookup(key, stamp);
+        if (entry == null) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("Jaring: " + dir);
+            directory.mkdirs();
+            File tmp = File.createTempFile(dir.getName(), ".part", directory);
+            try {
+                FileSupport.jar(dir, tmp);
+                entry = new Entry();
+                entry.length = tmp.length();
+                entry.fingerprint = BasicClassLoaderFactory.fingerprint(new FileInputStream(tmp));
+                entry.file = new File(directory, dir.getName() + "_" + HexSupport.toHexFromBytes(entry.fingerprint) + ".jar");
+                if (!entry.file.exists() && !tmp.renameTo(entry.file)) {
+                    throw new IOException("Could not store jared image of " + dir + " as: " + entry.file);
+                }
+            } finally {
+                tmp.delete();
+            }
+            store(key, stamp, entry, true);
+        }
+        return entry;
+    }
+
+    private Entry lookup(String key, String stamp) {
+        String value = index.getProperty(key);
+        if (value == null) {
+            return null;
+        }
+        // value format: stamp|fingerprint|length|image
+        String[] parts = value.split("\\|", -1);
+        if (parts.length != 4 || !parts[0].equals(stamp)) {
+            return null;
+        }
+        try {
+            Entry entry = new Entry();
+            entry.fingerprint = HexSupport.toBytesFromHex(parts[1]);
+            entry.length = Long.parseLong(parts[2]);
+            entry.file = parts[3].length() == 0 ? new File(key) : new File(directory, parts[3]);
+            if (!entry.file.exists() || entry.file.length() != entry.length) {
+                return null;
+            }
+            return entry;
+        } catch (RuntimeException e) {
+            LOG.warn("Ignoring corrupt export index entry for: " + key);
+            return null;
+        }
+    }
+
+    private void store(String key, String stamp, Entry entry, boolean image) {
+        String imageName = image ? entry.file.getName() : "";
+        String value = stamp + "|" + HexSupport.toHexFromBytes(entry.fingerprint) + "|" + entry.length + "|" + imageName;
+        index.setProperty(key, value);
+
+        // Merge in what other jvms have written since we last read the index:
+        FileLock lock = lock();
+        try {
+            read();
+            index.setProperty(key, value);
+            save();
+        } finally {
+            release(lock);
+        }
+    }
+
+    private void load() {
+        FileLock lock = lock();
+        try {
+            read();
+
+            // Drop jared images that are no longer referenced:
+            HashSet<String> referenced = new HashSet<String>();
+            for (Map.Entry<Object, Object> entry : index.entrySet()) {
+                String value = (String) entry.getValue();
+                referenced.add(value.substring(value.lastIndexOf('|') + 1));
+            }
+            long expired = System.currentTimeMillis() - IMAGE_GRACE_PERIOD;
+            File[] images = directory.listFiles();
+            if (images != null) {
+                for (File image : images) {
+                    if (image.getName().endsWith(".jar") && !referenced.contains(image.getName()) && image.lastModified() < expired) {
+                        image.delete();
+                    }
+                }
+            }
+        } finally {
+            release(lock);
+        }
+    }
+
+    private void read() {
+        File file = new File(directory, INDEX_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            index.load(is);
+        } catch (IOException e) {
+            LOG.warn("Could not read the classloader export index: " + file, e);
+        } finally {
+            IOSupport.close(is);
+        }
+    }
+
+    private void save() {
+        File file = new File(directory, INDEX_FILE);
+        try {
+            File tmp = File.createTempFile(INDEX_FILE, ".part", directory);
+            try {
+                FileOutputStream os = new FileOutputStream(tmp);
+                try {
+                    index.store(os, "MeshKeeper classloader export index");
+                } finally {
+                    IOSupport.close(os);
+                }
+                if (!tmp.renameTo(file)) {
+                    file.delete();
+                    tmp.renameTo(file);
+                }
+            } finally {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not write the classloader export index: " + file, e);
+        }
+    }
+
+    /**
+     * Takes the host wide lock on the index, blocking until any other jvm
+     * holding it releases it. Callers hold this object's monitor, so it is
+     * never requested twice by this vm.
+     * 
+     * @return The lock, or null if it couldn't be taken.
+     */
+    private FileLock lock() {
+        directory.mkdirs();
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+            return raf.getChannel().lock();
+        } catch (IOException e) {
+            LOG.warn("Could not lock the classloader export index: " + directory, e);
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignore) {
+                }
+            }
+            return null;
+        }
+    }
+
+    private static void release(FileLock lock) {
+        if (lock == null) {
+            return;
+        }
+        try {
+            lock.release();
+        } catch (Throwable e) {
+        }
+        try {
+            lock.channel().close();
+        } catch (Throwable e) {
+        }
+    }
+
+    /**
+     * Computes a stamp for a directory tree from the names, sizes and
+     * modification times of everything beneath it. This is much cheaper than
+     * jaring up the tree, and changes whenever the jared image would.
+     */
+    private static String directoryStamp(File dir) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            directoryStamp(md, dir, "");
+            return HexSupport.toHexFromBytes(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    private static void directoryStamp(MessageDigest md, File file, String path) {
+        md.update(path.getBytes());
+        md.update((byte) 0);
+        md.update(Long.toString(file.lastModified()).getBytes());
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                // listFiles() order is unspecified:
+                Arrays.sort(files);
+                for (File child : files) {
+                    directoryStamp(md, child, path + "/" + child.getName());
+                }
+            }
+        } else {
+            md.update((byte) 0);
+            md.update(Long.toString(file.length()).getBytes());
+        }
+        md.update((byte) '\n');
+    }
+}
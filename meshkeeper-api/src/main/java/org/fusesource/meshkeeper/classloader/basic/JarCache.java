@@ -0,0 +1,463 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.classloader.basic;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fusesource.meshkeeper.util.internal.IOSupport;
+
+/**
+ * JarCache
+ * <p>
+ * A content addressed store for downloaded classpath elements. The store is
+ * meant to be shared by every agent and bootstrapped jvm on a host: files are
+ * named by fingerprint, a manifest records the files that have already been
+ * verified so that cache hits do not need to be re-hashed, concurrent
+ * requests for the same file wait on a single download (both within a jvm
+ * and across jvms), and the least recently used files are evicted once the
+ * store grows beyond its size cap.
+ * </p>
+ * <p>
+ * Files used by a live class loader in this jvm are never evicted. Other jvms
+ * sharing the store can't be seen, so only files that haven't been used for
+ * the eviction grace period are evicted.
+ * </p>
+ *
+ * @author chirino
+ */
+class JarCache {
+
+    private static final Log LOG = LogFactory.getLog(JarCache.class);
+
+    /**
+     * System property used to set the maximum size of a cache directory in
+     * megabytes.
+     */
+    public static final String MAX_SIZE_PROPERTY = "meshkeeper.classloader.cache.maxsize";
+
+    /**
+     * System property used to set how long, in minutes, a file must have gone
+     * unused before it can be evicted.
+     */
+    public static final String GRACE_PROPERTY = "meshkeeper.classloader.cache.grace";
+
+    private static final String MANIFEST_FILE = "manifest.properties";
+    private static final String LOCK_FILE = "cache.lock";
+    private static final String LOCK_DIR = "locks";
+
+    private static final HashMap<File, JarCache> CACHES = new HashMap<File, JarCache>();
+
+    private final File directory;
+    private final ConcurrentHashMap<String, CountDownLatch> inflight = new ConcurrentHashMap<String, CountDownLatch>();
+    // Guards the manifest within this vm, FileLocks are per process:
+    private final ReentrantLock manifestLock = new ReentrantLock();
+    // The files used by each live class loader:
+    private final WeakHashMap<ClassLoader, Collection<String>> loaders = new WeakHashMap<ClassLoader, Collection<String>>();
+    private long maxSize = Long.getLong(MAX_SIZE_PROPERTY, 2048) * 1024 * 1024;
+    private long evictionGrace = Long.getLong(GRACE_PROPERTY, 24 * 60) * 60 * 1000;
+
+    JarCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return The cache for the given directory, shared by everything in this
+     *         vm that uses that directory.
+     */
+    static JarCache getInstance(File directory) throws IOException {
+        File dir = directory.getCanonicalFile();
+        synchronized (CACHES) {
+            JarCache cache = CACHES.get(dir);
+            if (cache == null) {
+                cache = new JarCache(dir);
+                CACHES.put(dir, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Makes sure that each of the given files is in the cache and matches its
+     * element, downloading the ones that are missing.
+     *
+     * @param elements
+     *            The elements to resolve.
+     * @param files
+     *            The cache files for the elements, in the same order.
+     * @param downloader
+     *            Used to download missing elements.
+     */
+    void resolve(List<BasicClassLoaderServer.PathElement> elements, final List<File> files, ClassPathDownloader downloader) throws IOException {
+        directory.mkdirs();
+
+        // Claim the files nobody else in this vm is fetching:
+        ArrayList<Integer> owned = new ArrayList<Integer>();
+        ArrayList<CountDownLatch> waits = new ArrayList<CountDownLatch>();
+        CountDownLatch latch = new CountDownLatch(1);
+        for (int i = 0; i < files.size(); i++) {
+            CountDownLatch other = inflight.putIfAbsent(files.get(i).getName(), latch);
+            if (other == null) {
+                owned.add(i);
+            } else {
+                waits.add(other);
+            }
+        }
+        // Locked in name order so that jvms resolving overlapping classpaths
+        // in different orders can't deadlock:
+        Collections.sort(owned, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return files.get(a).getName().compareTo(files.get(b).getName());
+            }
+        });
+
+        ArrayList<FileLock> locks = new ArrayList<FileLock>();
+        try {
+            // Take the host wide lock on each file we own, then fetch the
+            // ones that are missing or don't verify:
+            Map<String, String> manifest = readManifest();
+            ArrayList<BasicClassLoaderServer.PathElement> missing = new ArrayList<BasicClassLoaderServer.PathElement>();
+            ArrayList<File> missingFiles = new ArrayList<File>();
+            for (int i : owned) {
+                File file = files.get(i);
+                locks.add(lockFile(file.getName()));
+                if (!isValid(elements.get(i), file, manifest)) {
+                    file.delete();
+                    missing.add(elements.get(i));
+                    missingFiles.add(file);
+                }
+            }
+
+            PeerBlobServer peers = PeerBlobServer.getInstance(directory);
+            if (!missing.isEmpty()) {
+                downloader.setPeers(peers);
+                downloader.download(missing, missingFiles);
+            }
+
+            ArrayList<File> verified = new ArrayList<File>();
+            for (int i : owned) {
+                verified.add(files.get(i));
+            }
+            HashSet<String> used = new HashSet<String>();
+            for (File file : files) {
+                used.add(file.getName());
+            }
+            updateManifest(verified, used);
+
+            // Let other hosts download what we now hold:
+            if (peers != null) {
+                for (int i : owned) {
+                    peers.advertise(elements.get(i), files.get(i));
+                }
+            }
+        } finally {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                release(locks.get(i));
+            }
+            for (int i : owned) {
+                inflight.remove(files.get(i).getName());
+            }
+            latch.countDown();
+        }
+
+        // Wait for the files being fetched by other threads:
+        for (CountDownLatch wait : waits) {
+            try {
+                wait.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a classpath download");
+            }
+        }
+        if (!waits.isEmpty()) {
+            Map<String, String> manifest = readManifest();
+            for (int i = 0; i < files.size(); i++) {
+                if (!isValid(elements.get(i), files.get(i), manifest)) {
+                    throw new IOException("Could not download: " + files.get(i).getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Protects the given files from eviction for as long as the class loader
+     * is reachable.
+     */
+    void retain(ClassLoader loader, List<File> files) {
+        ArrayList<String> names = new ArrayList<String>(files.size());
+        for (File file : files) {
+            names.add(file.getName());
+        }
+        synchronized (loaders) {
+            loaders.put(loader, names);
+        }
+    }
+
+    /**
+     * Checks that a cached file matches the element. Files that the manifest
+     * records as verified with the same size and modification time are
+     * trusted, others are re-hashed.
+     */
+    private static boolean isValid(BasicClassLoaderServer.PathElement element, File file, Map<String, String> manifest) throws IOException {
+        if (!file.exists() || file.length() != element.length) {
+            return false;
+        }
+        String entry = manifest.get(file.getName());
+        if (entry != null && entry.startsWith(stamp(file) + "|")) {
+            return true;
+        }
+        if (Arrays.equals(element.fingerprint, BasicClassLoaderFactory.fingerprint(new FileInputStream(file)))) {
+            return true;
+        }
+        LOG.warn("Discarding corrupt cache entry: " + file);
+        return false;
+    }
+
+    private static String stamp(File file) {
+        return file.length() + ":" + file.lastModified();
+    }
+
+    /**
+     * Records the downloaded files as verified, marks every used file as
+     * recently used and evicts the least recently used files if the cache has
+     * grown too big.
+     */
+    private void updateManifest(List<File> verified, HashSet<String> used) throws IOException {
+        synchronized (loaders) {
+            for (Collection<String> names : loaders.values()) {
+                used.addAll(names);
+            }
+        }
+
+        manifestLock.lock();
+        FileLock lock = null;
+        try {
+            lock = lockFile(LOCK_FILE);
+            Map<String, String> manifest = readManifest();
+            long now = System.currentTimeMillis();
+            for (File file : verified) {
+                manifest.put(file.getName(), stamp(file) + "|" + now);
+            }
+            for (String name : used) {
+                String entry = manifest.get(name);
+                if (entry != null) {
+                    manifest.put(name, entry.substring(0, entry.lastIndexOf('|') + 1) + now);
+                }
+            }
+
+            // Drop entries for files that were removed:
+            for (String name : new ArrayList<String>(manifest.keySet())) {
+                if (!new File(directory, name).exists()) {
+                    manifest.remove(name);
+                }
+            }
+
+            evict(manifest, used, now);
+            writeManifest(manifest);
+        } finally {
+            if (lock != null) {
+                release(lock);
+            }
+            manifestLock.unlock();
+        }
+    }
+
+    private void evict(final Map<String, String> manifest, HashSet<String> used, long now) {
+        long size = 0;
+        ArrayList<String> candidates = new ArrayList<String>();
+        for (String name : manifest.keySet()) {
+            size += new File(directory, name).length();
+            // Files used recently may still be open in another jvm:
+            if (!used.contains(name) && now - lastUsed(manifest.get(name)) >= evictionGrace) {
+                candidates.add(name);
+            }
+        }
+        if (size <= maxSize) {
+            return;
+        }
+
+        Collections.sort(candidates, new Comparator<String>() {
+            public int compare(String o1, String o2) {
+                long l1 = lastUsed(manifest.get(o1));
+                long l2 = lastUsed(manifest.get(o2));
+                return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+            }
+        });
+
+        for (String name : candidates) {
+            if (size <= maxSize) {
+                break;
+            }
+            // Skip files that are being fetched or verified right now:
+            FileLock lock = tryLockFile(name);
+            if (lock == null) {
+                continue;
+            }
+            File file = new File(directory, name);
+            long length = file.length();
+            boolean deleted;
+            try {
+                deleted = file.delete();
+            } finally {
+                release(lock);
+            }
+            if (deleted) {
+                PeerBlobServer peers = PeerBlobServer.getInstance(directory);
+                if (peers != null) {
+                    peers.withdraw(file);
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Evicted from classloader cache: " + file);
+                }
+                size -= length;
+                manifest.remove(name);
+            }
+        }
+    }
+
+    private static long lastUsed(String entry) {
+        try {
+            return Long.parseLong(entry.substring(entry.lastIndexOf('|') + 1));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, String> readManifest() {
+        HashMap<String, String> rc = new HashMap<String, String>();
+        File file = new File(directory, MANIFEST_FILE);
+        if (file.exists()) {
+            Properties props = new Properties();
+            FileInputStream is = null;
+            try {
+                is = new FileInputStream(file);
+                props.load(is);
+                rc.putAll((Map) props);
+            } catch (IOException e) {
+                LOG.warn("Could not read the classloader cache manifest: " + file, e);
+            } finally {
+                IOSupport.close(is);
+            }
+        }
+        return rc;
+    }
+
+    private void writeManifest(Map<String, String> manifest) throws IOException {
+        Properties props = new Properties();
+        props.putAll(manifest);
+        File file = new File(directory, MANIFEST_FILE);
+        File tmp = File.createTempFile(MANIFEST_FILE, ".part", directory);
+        try {
+            FileOutputStream os = new FileOutputStream(tmp);
+            try {
+                props.store(os, "MeshKeeper classloader cache manifest");
+            } finally {
+                IOSupport.close(os);
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                tmp.renameTo(file);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Takes a host wide lock, blocking until any other jvm holding it releases
+     * it.
+     */
+    private FileLock lockFile(String name) throws IOException {
+        File dir = new File(directory, LOCK_DIR);
+        dir.mkdirs();
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, name), "rw");
+        try {
+            return raf.getChannel().lock();
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private FileLock tryLockFile(String name) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(new File(new File(directory, LOCK_DIR), name), "rw");
+            FileLock lock = raf.getChannel().tryLock();
+            if (lock != null) {
+                return lock;
+            }
+        } catch (Exception e) {
+            // Locked by this vm.
+        }
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ignore) {
+            }
+        }
+        return null;
+    }
+
+    private static void release(FileLock lock) {
+        try {
+            lock.release();
+        } catch (Throwable e) {
+        }
+        try {
+            lock.channel().close();
+        } catch (Throwable e) {
+        }
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public long getEvictionGrace() {
+        return evictionGrace;
+    }
+
+    public void setEvictionGrace(long evictionGrace) {
+        this.evictionGrace = evictionGrace;
+    }
+}
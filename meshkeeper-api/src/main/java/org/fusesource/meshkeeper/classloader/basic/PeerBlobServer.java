@@ -0,0 +1,272 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.classloader.basic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fusesource.meshkeeper.Distributable;
+import org.fusesource.meshkeeper.MeshKeeper;
+import org.fusesource.meshkeeper.MeshKeeper.Registry;
+import org.fusesource.meshkeeper.util.internal.HexSupport;
+
+/**
+ * PeerBlobServer
+ * <p>
+ * Serves the classpath elements held in a host's jar cache to other hosts.
+ * Each cached element is advertised in the registry under its fingerprint so
+ * that agents downloading the same classpath can fetch it from a peer instead
+ * of from the exporting {@link BasicClassLoaderServer}, spreading the load of
+ * large fan outs across all the agents that already have the files.
+ * </p>
+ *
+ * @author chirino
+ */
+public class PeerBlobServer {
+
+    private static final Log LOG = LogFactory.getLog(PeerBlobServer.class);
+
+    public static final String PEER_REGISTRY_PATH = Registry.MESH_KEEPER_ROOT + "/classloader/peers";
+
+    private static PeerBlobServer instance;
+
+    /**
+     * A peer as advertised in the registry.
+     */
+    public static class Peer implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public String name;
+        public String host;
+        public IPeer proxy;
+    }
+
+    public interface IPeer extends Distributable {
+        /**
+         * Downloads several ranges of the element with the given fingerprint.
+         *
+         * @see BasicClassLoaderServer.IServer#download(long[], long[], int,
+         *      boolean)
+         */
+        BasicClassLoaderServer.Chunk[] download(String fingerprint, long[] positions, int length, boolean deflate) throws IOException;
+    }
+
+    private class Server implements IPeer {
+        public BasicClassLoaderServer.Chunk[] download(String fingerprint, long[] positions, int length, boolean deflate) throws IOException {
+            BasicClassLoaderServer.ExportedFile exportedFile = advertised.get(fingerprint);
+            if (exportedFile == null || !exportedFile.file.exists()) {
+                throw new IOException("Element no longer available: " + fingerprint);
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Peer downloading from: " + exportedFile.file + " starting at " + positions[0]);
+            }
+            BasicClassLoaderServer.Chunk[] rc = new BasicClassLoaderServer.Chunk[positions.length];
+            Deflater deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+            try {
+                for (int i = 0; i < positions.length; i++) {
+                    rc[i] = BasicClassLoaderServer.readChunk(exportedFile, -1, positions[i], length, deflater);
+                }
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+            return rc;
+        }
+    }
+
+    private final MeshKeeper meshKeeper;
+    private final String name;
+    private final File directory;
+    private final ConcurrentHashMap<String, BasicClassLoaderServer.ExportedFile> advertised = new ConcurrentHashMap<String, BasicClassLoaderServer.ExportedFile>();
+    private final ConcurrentHashMap<String, String> registrations = new ConcurrentHashMap<String, String>();
+    private final Random random = new Random();
+    private Peer peer;
+
+    /**
+     * @param meshKeeper
+     *            The meshkeeper used to advertise elements.
+     * @param name
+     *            The unique name of this peer, e.g. the agent id.
+     * @param directory
+     *            The jar cache directory served by this peer.
+     */
+    public PeerBlobServer(MeshKeeper meshKeeper, String name, File directory) throws IOException {
+        this.meshKeeper = meshKeeper;
+        this.name = name;
+        this.directory = directory.getCanonicalFile();
+    }
+
+    /**
+     * @return The peer server started in this vm for the given cache
+     *         directory, or null if there isn't one.
+     */
+    static synchronized PeerBlobServer getInstance(File directory) {
+        if (instance != null && instance.directory.equals(directory)) {
+            return instance;
+        }
+        return null;
+    }
+
+    public void start() throws Exception {
+        synchronized (this) {
+            if (peer != null) {
+                return;
+            }
+            peer = new Peer();
+            peer.name = name;
+            peer.host = java.net.InetAddress.getLocalHost().getHostName();
+            peer.proxy = (IPeer) meshKeeper.remoting().export(new Server());
+        }
+        synchronized (PeerBlobServer.class) {
+            instance = this;
+        }
+    }
+
+    public void stop() throws Exception {
+        synchronized (PeerBlobServer.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+        IPeer proxy;
+        synchronized (this) {
+            if (peer == null) {
+                return;
+            }
+            proxy = peer.proxy;
+            peer = null;
+        }
+        for (String path : registrations.values()) {
+            try {
+                meshKeeper.registry().removeRegistryData(path, false);
+            } catch (Exception e) {
+                LOG.debug("Error removing peer registration: " + path, e);
+            }
+        }
+        registrations.clear();
+        for (BasicClassLoaderServer.ExportedFile file : advertised.values()) {
+            file.close();
+        }
+        advertised.clear();
+        meshKeeper.remoting().unexport(proxy);
+    }
+
+    /**
+     * Advertises a verified cache file so that other peers can download it.
+     */
+    void advertise(BasicClassLoaderServer.PathElement element, File file) {
+        Peer peer = this.peer;
+        if (peer == null) {
+            return;
+        }
+        String fingerprint = HexSupport.toHexFromBytes(element.fingerprint);
+        BasicClassLoaderServer.ExportedFile exportedFile = new BasicClassLoaderServer.ExportedFile();
+        exportedFile.file = file;
+        exportedFile.element.fingerprint = element.fingerprint;
+        exportedFile.element.length = element.length;
+        if (advertised.putIfAbsent(fingerprint, exportedFile) == null) {
+            try {
+                registrations.put(fingerprint, meshKeeper.registry().addRegistryObject(PEER_REGISTRY_PATH + "/" + fingerprint + "/" + name, false, peer));
+            } catch (Exception e) {
+                advertised.remove(fingerprint);
+                LOG.warn("Error advertising " + file + " to peers: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops advertising a cache file, e.g. once it has been evicted.
+     */
+    void withdraw(File file) {
+        for (Map.Entry<String, BasicClassLoaderServer.ExportedFile> entry : advertised.entrySet()) {
+            if (entry.getValue().file.equals(file)) {
+                String fingerprint = entry.getKey();
+                advertised.remove(fingerprint);
+                entry.getValue().close();
+                String path = registrations.remove(fingerprint);
+                if (path != null) {
+                    try {
+                        meshKeeper.registry().removeRegistryData(path, false);
+                    } catch (Exception e) {
+                        LOG.debug("Error removing peer registration: " + path, e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds a peer other than this one holding the given element, preferring
+     * peers on the same host.
+     *
+     * @return The peer or null if no peer advertises the element.
+     */
+    IPeer findPeer(BasicClassLoaderServer.PathElement element) {
+        String fingerprint = HexSupport.toHexFromBytes(element.fingerprint);
+        Peer self = this.peer;
+        if (self == null) {
+            return null;
+        }
+
+        // The element's node outlives the registrations of the peers that
+        // held it, so look at what's registered under it now:
+        Collection<Peer> peers;
+        try {
+            Map<String, byte[]> registered = meshKeeper.registry().snapshot(PEER_REGISTRY_PATH + "/" + fingerprint);
+            if (registered.isEmpty()) {
+                return null;
+            }
+            Map<String, Peer> objects = meshKeeper.registry().getRegistryObjects(registered.keySet());
+            peers = objects.values();
+        } catch (Exception e) {
+            LOG.debug("Error looking up peers for " + fingerprint, e);
+            return null;
+        }
+
+        ArrayList<Peer> local = new ArrayList<Peer>();
+        ArrayList<Peer> remote = new ArrayList<Peer>();
+        for (Peer peer : peers) {
+            if (peer == null || self.name.equals(peer.name)) {
+                continue;
+            }
+            if (self.host.equals(peer.host)) {
+                local.add(peer);
+            } else {
+                remote.add(peer);
+            }
+        }
+        ArrayList<Peer> candidates = local.isEmpty() ? remote : local;
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        // Pick at random to spread the load between the peers:
+        Peer rc = candidates.get(random.nextInt(candidates.size()));
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Downloading " + fingerprint + " from peer: " + rc.name);
+        }
+        return rc.proxy;
+    }
+}
@@ -0,0 +1,295 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.classloader.basic;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * RemoteClassLoader
+ * <p>
+ * A class loader that loads classes and resources from a
+ * {@link BasicClassLoaderServer} on first use rather than downloading every
+ * element of the classpath up front. The server's resource index is used to
+ * find the element holding each entry, and when a class is loaded the other
+ * classes in its package are prefetched in the background since they are
+ * likely to be needed next. Prefetched classes are held until they are loaded,
+ * up to a limit, and dropped if they were loaded on demand in the meantime.
+ * </p>
+ *
+ * @author chirino
+ */
+class RemoteClassLoader extends ClassLoader {
+
+    private static final Log LOG = LogFactory.getLog(RemoteClassLoader.class);
+
+    /**
+     * System property used to set the maximum number of classes prefetched
+     * when a package is first used.
+     */
+    public static final String PREFETCH_LIMIT_PROPERTY = "meshkeeper.classloader.lazy.prefetch";
+
+    private static final String PROTOCOL = "meshkeeper";
+
+    // Shared by all loaders so that they don't each hold a thread:
+    private static final ExecutorService PREFETCHER = Executors.newFixedThreadPool(2, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "MeshKeeper ClassLoader Prefetch");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final BasicClassLoaderServer.IServer server;
+    private final HashMap<String, Long> entries = new HashMap<String, Long>();
+    private final HashMap<String, ArrayList<String>> packageClasses = new HashMap<String, ArrayList<String>>();
+    private final ConcurrentHashMap<String, byte[]> prefetched = new ConcurrentHashMap<String, byte[]>();
+    private final ConcurrentHashMap<String, byte[]> resources = new ConcurrentHashMap<String, byte[]>();
+    private final ConcurrentHashMap<String, Boolean> requested = new ConcurrentHashMap<String, Boolean>();
+    // Entries that have been fetched, so needn't be held once prefetched:
+    private final ConcurrentHashMap<String, Boolean> loaded = new ConcurrentHashMap<String, Boolean>();
+    private final HashSet<String> definedPackages = new HashSet<String>();
+    private final int prefetchLimit = Integer.getInteger(PREFETCH_LIMIT_PROPERTY, 64);
+    // The most prefetched classes held waiting to be loaded:
+    private final int maxPrefetched = prefetchLimit * 16;
+
+    private final URLStreamHandler handler = new URLStreamHandler() {
+        protected URLConnection openConnection(final URL u) throws IOException {
+            return new URLConnection(u) {
+                public void connect() throws IOException {
+                }
+
+                public InputStream getInputStream() throws IOException {
+                    String name = u.getPath().substring(1);
+                    byte[] data = resources.get(name);
+                    if (data == null) {
+                        data = fetch(name);
+                        if (data == null) {
+                            throw new IOException("Resource not found: " + name);
+                        }
+                        resources.put(name, data);
+                    }
+                    return new ByteArrayInputStream(data);
+                }
+            };
+        }
+    };
+
+    RemoteClassLoader(ClassLoader parent, BasicClassLoaderServer.IServer server, BasicClassLoaderServer.ResourceIndex index) {
+        super(createURLParent(parent, index));
+        this.server = server;
+
+        // The first element holding an entry wins, as it would on a
+        // classpath:
+        for (int i = 0; i < index.elements.size(); i++) {
+            if (index.entries[i] == null) {
+                continue;
+            }
+            Long id = index.elements.get(i).id;
+            for (String name : index.entries[i]) {
+                if (!entries.containsKey(name)) {
+                    entries.put(name, id);
+                    if (name.endsWith(".class")) {
+                        String pkg = packageOf(name);
+                        ArrayList<String> classes = packageClasses.get(pkg);
+                        if (classes == null) {
+                            classes = new ArrayList<String>();
+                            packageClasses.put(pkg, classes);
+                        }
+                        classes.add(name);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Elements exported as urls are loaded by a URLClassLoader between the
+     * parent and this class loader.
+     */
+    private static ClassLoader createURLParent(ClassLoader parent, BasicClassLoaderServer.ResourceIndex index) {
+        ArrayList<URL> urls = new ArrayList<URL>();
+        for (BasicClassLoaderServer.PathElement element : index.elements) {
+            if (element.url != null) {
+                urls.add(element.url);
+            }
+        }
+        if (urls.isEmpty()) {
+            return parent;
+        }
+        return new URLClassLoader(urls.toArray(new URL[urls.size()]), parent);
+    }
+
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        String path = name.replace('.', '/').concat(".class");
+        byte[] data;
+        try {
+            data = fetch(path);
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+        if (data == null) {
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Couldn't find class: " + name);
+            }
+            throw new ClassNotFoundException(name);
+        }
+
+        int i = name.lastIndexOf('.');
+        if (i > 0) {
+            String pkg = name.substring(0, i);
+            synchronized (this) {
+                if (definedPackages.add(pkg)) {
+                    try {
+                        definePackage(pkg, null, null, null, null, null, null, null);
+                    } catch (IllegalArgumentException alreadyDefined) {
+                    }
+                }
+            }
+        }
+        prefetch(path);
+        Class<?> c = defineClass(name, data, 0, data.length);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Loaded class: " + c.getName());
+        }
+        return c;
+    }
+
+    protected URL findResource(String name) {
+        if (!entries.containsKey(name)) {
+            return null;
+        }
+        try {
+            return new URL(PROTOCOL, null, -1, "/" + name, handler);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    protected Enumeration<URL> findResources(String name) throws IOException {
+        URL url = findResource(name);
+        if (url == null) {
+            return Collections.enumeration(Collections.<URL> emptyList());
+        }
+        return Collections.enumeration(Collections.singletonList(url));
+    }
+
+    private byte[] fetch(String path) throws IOException {
+        // Marked first so that a prefetch finishing later drops its copy:
+        loaded.put(path, Boolean.TRUE);
+        byte[] data = prefetched.remove(path);
+        if (data != null) {
+            return data;
+        }
+        Long id = entries.get(path);
+        if (id == null) {
+            return null;
+        }
+        requested.put(path, Boolean.TRUE);
+        return server.getResources(id, new String[] { path })[0];
+    }
+
+    /**
+     * Fetches the rest of the classes in the package of the given class in the
+     * background.
+     */
+    private void prefetch(String path) {
+        ArrayList<String> classes = packageClasses.get(packageOf(path));
+        if (classes == null || prefetchLimit <= 0) {
+            return;
+        }
+
+        final HashMap<Long, List<String>> batches = new HashMap<Long, List<String>>();
+        int count = 0;
+        for (String name : classes) {
+            if (count >= prefetchLimit) {
+                break;
+            }
+            if (requested.putIfAbsent(name, Boolean.TRUE) == null) {
+                Long id = entries.get(name);
+                List<String> batch = batches.get(id);
+                if (batch == null) {
+                    batch = new ArrayList<String>();
+                    batches.put(id, batch);
+                }
+                batch.add(name);
+                count++;
+            }
+        }
+        if (batches.isEmpty()) {
+            return;
+        }
+
+        PREFETCHER.execute(new Runnable() {
+            public void run() {
+                for (Long id : batches.keySet()) {
+                    List<String> batch = batches.get(id);
+                    try {
+                        byte[][] data = server.getResources(id, batch.toArray(new String[batch.size()]));
+                        for (int i = 0; i < data.length; i++) {
+                            String name = batch.get(i);
+                            if (data[i] == null || loaded.containsKey(name)) {
+                                // Missing, or fetched on demand since:
+                                continue;
+                            }
+                            if (prefetched.size() >= maxPrefetched) {
+                                // Full, so leave it for a later prefetch:
+                                requested.remove(name);
+                                continue;
+                            }
+                            prefetched.put(name, data[i]);
+                            if (loaded.containsKey(name)) {
+                                // Lost the race with fetch():
+                                prefetched.remove(name);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        // The classes will be fetched on demand instead:
+                        for (String name : batch) {
+                            requested.remove(name);
+                        }
+                        LOG.debug("Error prefetching classes", e);
+                    }
+                }
+            }
+        });
+    }
+
+    private static String packageOf(String path) {
+        int i = path.lastIndexOf('/');
+        return i < 0 ? "" : path.substring(0, i);
+    }
+}
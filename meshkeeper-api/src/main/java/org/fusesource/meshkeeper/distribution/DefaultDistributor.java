@@ -25,6 +25,9 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -861,6 +864,14 @@ class DefaultDistributor implements MeshKeeper {
             return client.addRegistryObject(path, sequential, o);
         }
 
+        public final List<String> addRegistryData(List<String> paths, boolean sequential, List<byte[]> data) throws Exception {
+            return client.addRegistryData(doPathSubstitutions(paths), sequential, data);
+        }
+
+        public final List<String> addRegistryObjects(List<String> paths, boolean sequential, List<? extends Serializable> objects) throws Exception {
+            return client.addRegistryObjects(doPathSubstitutions(paths), sequential, objects);
+        }
+
         public final void addRegistryWatcher(String path, RegistryWatcher watcher) throws Exception {
             path = doPathSubstitutions(path);
             client.addRegistryWatcher(path, watcher);
@@ -885,6 +896,15 @@ class DefaultDistributor implements MeshKeeper {
             return (T) client.getRegistryObject(path);
         }
 
+        public final Map<String, byte[]> getRegistryData(Collection<String> paths) throws Exception {
+            return unsubstitute(paths, client.getRegistryData(doPathSubstitutions(paths)));
+        }
+
+        public final <T> Map<String, T> getRegistryObjects(Collection<String> paths) throws Exception {
+            Map<String, T> results = client.getRegistryObjects(doPathSubstitutions(paths));
+            return unsubstitute(paths, results);
+        }
+
         public final ClassLoader getUserClassLoader() {
             return client.getUserClassLoader();
         }
@@ -917,6 +937,14 @@ class DefaultDistributor implements MeshKeeper {
             client.removeRegistryData(path, recursive);
         }
 
+        public final Map<String, byte[]> snapshot(String path) throws Exception {
+            return client.snapshot(doPathSubstitutions(path));
+        }
+
+        public final void removeRegistryData(Collection<String> paths, boolean recursive) throws Exception {
+            client.removeRegistryData(doPathSubstitutions(paths), recursive);
+        }
+
         public final void removeRegistryWatcher(String path, RegistryWatcher watcher) throws Exception {
             path = doPathSubstitutions(path);
             client.removeRegistryWatcher(path, watcher);
@@ -962,6 +990,25 @@ class DefaultDistributor implements MeshKeeper {
 
             return path;
         }
+
+        private final ArrayList<String> doPathSubstitutions(Collection<String> paths) {
+            ArrayList<String> rc = new ArrayList<String>(paths.size());
+            for (String path : paths) {
+                rc.add(doPathSubstitutions(path));
+            }
+            return rc;
+        }
+
+        /**
+         * Keys batch results by the paths the caller passed in.
+         */
+        private final <T> Map<String, T> unsubstitute(Collection<String> paths, Map<String, T> results) {
+            LinkedHashMap<String, T> rc = new LinkedHashMap<String, T>();
+            for (String path : paths) {
+                rc.put(path, results.get(doPathSubstitutions(path)));
+            }
+            return rc;
+        }
     }
 
 }
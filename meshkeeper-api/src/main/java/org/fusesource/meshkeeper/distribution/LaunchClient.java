@@ -16,6 +16,7 @@
  */
 package org.fusesource.meshkeeper.distribution;
 
+import static org.fusesource.meshkeeper.Expression.property;
 import static org.fusesource.meshkeeper.Expression.string;
 import static org.fusesource.meshkeeper.Expression.sysProperty;
 
@@ -27,12 +28,14 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.fusesource.meshkeeper.Expression;
 import org.fusesource.meshkeeper.HostProperties;
 import org.fusesource.meshkeeper.JavaLaunch;
 import org.fusesource.meshkeeper.LaunchDescription;
@@ -41,15 +44,18 @@ import org.fusesource.meshkeeper.MeshKeeper;
 import org.fusesource.meshkeeper.MeshKeeperFactory;
 import org.fusesource.meshkeeper.MeshProcess;
 import org.fusesource.meshkeeper.MeshProcessListener;
+import org.fusesource.meshkeeper.RegistryDiffWatcher;
 import org.fusesource.meshkeeper.RegistryWatcher;
 import org.fusesource.meshkeeper.MeshKeeper.DistributionRef;
 import org.fusesource.meshkeeper.MeshKeeper.Launcher;
 import org.fusesource.meshkeeper.classloader.ClassLoaderFactory;
 import org.fusesource.meshkeeper.classloader.ClassLoaderServer;
 import org.fusesource.meshkeeper.classloader.ClassLoaderServerFactory;
+import org.fusesource.meshkeeper.distribution.registry.RegistryWatcherDispatcher;
 import org.fusesource.meshkeeper.launcher.LaunchAgent;
 import org.fusesource.meshkeeper.launcher.LaunchAgentService;
 import org.fusesource.meshkeeper.launcher.LaunchClientService;
+import org.fusesource.meshkeeper.launcher.MeshContainerPool;
 import org.fusesource.meshkeeper.launcher.MeshContainerService;
 import org.fusesource.meshkeeper.util.DefaultProcessListener;
 
@@ -72,6 +78,8 @@ class LaunchClient extends AbstractPluginClient implements MeshKeeper.Launcher,
     private long killTimeout = 1000 * 5;
     private long launchTimeout = 1000 * 60;
     private long bindTimeout = 1000 * 10;
+    private boolean useContainerPool = false;
+    private boolean recycleContainers = false;
     private HashMap<String, LaunchAgentService> knownAgents = new HashMap<String, LaunchAgentService>();
     private HashMap<String, HostProperties> agentProps = new HashMap<String, HostProperties>();
 
@@ -91,29 +99,83 @@ class LaunchClient extends AbstractPluginClient implements MeshKeeper.Launcher,
     public void start() throws Exception {
         distributionRef = meshKeeper.distribute(LAUNCHER_REGISTRY_PATH + "/" + System.getProperty("user.name"), true, (LaunchClientService) this, LaunchClientService.class);
         name = distributionRef.getRegistryPath().substring(distributionRef.getRegistryPath().lastIndexOf("/") + 1);
-        agentWatcher = new RegistryWatcher() {
+        agentWatcher = new RegistryDiffWatcher() {
 
-            public void onChildrenChanged(String path, List<String> children) {
+            public void onChildrenChanged(String path, List<String> added, List<String> removed) {
                 synchronized (LaunchClient.this) {
-                    for (String agentId : children) {
-                        if (!knownAgents.containsKey(agentId)) {
+                    knownAgents.keySet().removeAll(removed);
+                    agentProps.keySet().removeAll(removed);
+                    LaunchClient.this.notifyAll();
+                }
+                if (added.isEmpty()) {
+                    return;
+                }
+
+                //Look up the new agents and their properties in parallel and
+                //without holding the client's lock:
+                ArrayList<String> paths = new ArrayList<String>(added.size());
+                for (String agentId : added) {
+                    paths.add(path + "/" + agentId);
+                }
+                Map<String, LaunchAgentService> agents;
+                try {
+                    agents = meshKeeper.registry().getRegistryObjects(paths);
+                } catch (Exception e) {
+                    //Fall back to looking them up one at a time so that one bad
+                    //agent doesn't hide the others:
+                    log.warn("Error looking up launch agents at " + path + ", retrying individually", e);
+                    agents = new HashMap<String, LaunchAgentService>();
+                    for (String agentId : added) {
+                        try {
+                            LaunchAgentService agent = meshKeeper.registry().getRegistryObject(path + "/" + agentId);
+                            agents.put(path + "/" + agentId, agent);
+                        } catch (Exception e2) {
+                            log.warn("Error looking up launch agent " + agentId, e2);
+                            retry(path, agentId);
+                        }
+                    }
+                }
+
+                final CountDownLatch discovered = new CountDownLatch(added.size());
+                final String agentPath = path;
+                for (final String agentId : added) {
+                    final LaunchAgentService pl = agents.get(path + "/" + agentId);
+                    if (pl == null) {
+                        discovered.countDown();
+                        continue;
+                    }
+                    synchronized (LaunchClient.this) {
+                        knownAgents.put(agentId, pl);
+                    }
+                    RegistryWatcherDispatcher.getExecutor().execute(new Runnable() {
+                        public void run() {
                             try {
-                                LaunchAgentService pl = meshKeeper.registry().getRegistryObject(path + "/" + agentId);
-                                knownAgents.put(agentId, pl);
                                 HostProperties props = pl.getHostProperties();
-                                agentProps.put(agentId, props);
+                                synchronized (LaunchClient.this) {
+                                    if (knownAgents.get(agentId) == pl) {
+                                        agentProps.put(agentId, props);
+                                    }
+                                    LaunchClient.this.notifyAll();
+                                }
 
                                 if (log.isDebugEnabled()) {
                                     log.debug("DISCOVERED: " + props.getAgentId());
                                 }
                             } catch (Exception e) {
-                                e.printStackTrace();
+                                log.warn("Error getting host properties for launch agent " + agentId, e);
+                                retry(agentPath, agentId);
+                            } finally {
+                                discovered.countDown();
                             }
                         }
-                    }
-                    knownAgents.keySet().retainAll(children);
-                    agentProps.keySet().retainAll(children);
-                    LaunchClient.this.notifyAll();
+                    });
+                }
+
+                //Finish before handling later changes so they're applied in order:
+                try {
+                    discovered.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
             }
         };
@@ -324,6 +386,22 @@ class LaunchClient extends AbstractPluginClient implements MeshKeeper.Launcher,
 
     public static class MeshContainerLaunch extends JavaLaunch {
         private String regPath;
+        private Expression pathArg;
+
+        /**
+         * @return A launch description for the container that takes its
+         *         registry path from the agent's container pool, or null if
+         *         the path argument has been removed.
+         */
+        LaunchDescription toPooledLaunchDescription() {
+            int i = args().indexOf(pathArg);
+            if (i < 0) {
+                return null;
+            }
+            ArrayList<Expression> pooledArgs = new ArrayList<Expression>(args());
+            pooledArgs.set(i, property(MeshContainerPool.CONTAINER_PATH_PROPERTY, string("")));
+            return toLaunchDescription(pooledArgs);
+        }
     }
 
     public LaunchDescription createLaunchDescription() {
@@ -337,7 +415,9 @@ class LaunchClient extends AbstractPluginClient implements MeshKeeper.Launcher,
     public JavaLaunch createMeshContainerLaunch() throws Exception {
         MeshContainerLaunch launch = new MeshContainerLaunch();
         launch.regPath = MESHCONTAINER_REGISTRY_PATH + "/" + name + "/" + ++meshContainerCounter;
-        setupBootstrapJavaLaunch(launch, org.fusesource.meshkeeper.launcher.MeshContainer.class.getName(), launch.regPath);
+        launch.pathArg = string(launch.regPath);
+        setupBootstrapJavaLaunch(launch, org.fusesource.meshkeeper.launcher.MeshContainer.class.getName());
+        launch.addArgs(launch.pathArg);
         return launch;
     }
 
@@ -382,6 +462,13 @@ class LaunchClient extends AbstractPluginClient implements MeshKeeper.Launcher,
             throw new IllegalStateException("Invalid JavaLaunch, not created via createMeshContainerLaunch");
         }
 
+        if (useContainerPool) {
+            MeshContainer mc = acquirePooledMeshContainer(agentId, (MeshContainerLaunch) launch, listener);
+            if (mc != null) {
+                return mc;
+            }
+        }
+
         String regPath = ((MeshContainerLaunch) launch).regPath;
         MeshProcess proc = launchProcess(agentId, launch.toLaunchDescription(), listener);
         try {
@@ -395,6 +482,46 @@ class LaunchClient extends AbstractPluginClient implements MeshKeeper.Launcher,
 
     }
 
+    /**
+     * Takes a container started for the launch from the agent's pool.
+     * 
+     * @return The container or null if the agent has none ready.
+     */
+    private MeshContainer acquirePooledMeshContainer(String agentId, MeshContainerLaunch launch, MeshProcessListener listener) throws Exception {
+        checkNotClosed();
+
+        LaunchDescription ld = launch.toPooledLaunchDescription();
+        if (ld == null) {
+            return null;
+        }
+
+        LaunchAgentService agent = getAgent(agentId);
+        MeshProcessWatcher watcher = new MeshProcessWatcher(listener, agentId);
+        addWatchedProcess(watcher);
+        MeshContainerPool.Lease lease = null;
+        try {
+            lease = agent.acquireMeshContainer(ld, distributionRef.getRegistryPath(), watcher.getProxy());
+        } catch (Exception e) {
+            // e.g. an agent without a container pool:
+            if (log.isDebugEnabled()) {
+                log.debug("Unable to acquire a pooled container from " + agentId, e);
+            }
+        }
+        if (lease == null) {
+            watcher.cleanup();
+            return null;
+        }
+
+        watcher.setProcess(lease.process);
+        try {
+            MeshContainerService proxy = meshKeeper.registry().waitForRegistration(lease.registryPath, launchTimeout);
+            return new MeshContainerImpl(lease.process, proxy, agent, lease.registryPath, watcher);
+        } catch (Exception e) {
+            lease.process.kill();
+            throw e;
+        }
+    }
+
     public void println(MeshProcess process, String line) {
         byte[] data = (line + "\n").getBytes();
         try {
@@ -510,6 +637,22 @@ class LaunchClient extends AbstractPluginClient implements MeshKeeper.Launcher,
         this.launchTimeout = launchTimeout;
     }
 
+    public boolean isUseContainerPool() {
+        return useContainerPool;
+    }
+
+    public void setUseContainerPool(boolean useContainerPool) {
+        this.useContainerPool = useContainerPool;
+    }
+
+    public boolean isRecycleContainers() {
+        return recycleContainers;
+    }
+
+    public void setRecycleContainers(boolean recycleContainers) {
+        this.recycleContainers = recycleContainers;
+    }
+
     public long getKillTimeout() {
         return killTimeout;
     }
@@ -521,11 +664,21 @@ class LaunchClient extends AbstractPluginClient implements MeshKeeper.Launcher,
     private class MeshContainerImpl implements MeshContainer {
         private final MeshProcess process;
         private final MeshContainerService container;
+        // Set for containers taken from an agent's pool:
+        private final LaunchAgentService agent;
+        private final String registryPath;
+        private final MeshProcessWatcher watcher;
 
         MeshContainerImpl(MeshProcess processProxy, MeshContainerService containerProxy) {
+            this(processProxy, containerProxy, null, null, null);
+        }
+
+        MeshContainerImpl(MeshProcess processProxy, MeshContainerService containerProxy, LaunchAgentService agent, String registryPath, MeshProcessWatcher watcher) {
             this.process = processProxy;
             this.container = containerProxy;
-
+            this.agent = agent;
+            this.registryPath = registryPath;
+            this.watcher = watcher;
         }
 
         /*
@@ -574,6 +727,16 @@ class LaunchClient extends AbstractPluginClient implements MeshKeeper.Launcher,
         }
 
         public void close() {
+            if (agent != null && recycleContainers) {
+                try {
+                    if (agent.releaseMeshContainer(registryPath)) {
+                        watcher.cleanup();
+                        return;
+                    }
+                } catch (Exception e) {
+                    log.debug("error releasing meshcontainer", e);
+                }
+            }
             try {
                 kill();
             } catch (Exception e) {
@@ -21,6 +21,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.fusesource.meshkeeper.MeshEvent;
+import org.fusesource.meshkeeper.MeshEventFilter;
 import org.fusesource.meshkeeper.MeshEventListener;
 import org.fusesource.meshkeeper.distribution.event.AbstractEventClient;
 import org.fusesource.meshkeeper.distribution.event.EventClient;
@@ -39,7 +40,7 @@ public class VMEventClient extends AbstractEventClient implements EventClient {
     private static final VMEventServer server = new VMEventServer();
     private final HashMap<String, HashSet<MeshEventListener>> eventListeners = new HashMap<String, HashSet<MeshEventListener>>();
 
-    private boolean closed = false;
+    private volatile boolean closed = false;
 
     public void start() {
         //No-Op
@@ -51,9 +52,7 @@ public class VMEventClient extends AbstractEventClient implements EventClient {
      * @see org.fusesource.meshkeeper.distribution.event.EventClient#close()
      */
     public void destroy() throws Exception {
-        synchronized (this) {
-            closed = true;
-        }
+        closed = true;
 
         for (Map.Entry<String, HashSet<MeshEventListener>> entry : eventListeners.entrySet()) {
             for (MeshEventListener l : entry.getValue()) {
@@ -99,7 +98,10 @@ public class VMEventClient extends AbstractEventClient implements EventClient {
      * java.lang.String)
      */
     public void openEventListener(MeshEventListener listener, String topic) throws Exception {
-        boolean added = false;
+        openEventListener(listener, topic, null);
+    }
+
+    public void openEventListener(MeshEventListener listener, String topic, MeshEventFilter filter) throws Exception {
         synchronized (this) {
             checkClosed();
             HashSet<MeshEventListener> listeners = eventListeners.get(topic);
@@ -107,14 +109,11 @@ public class VMEventClient extends AbstractEventClient implements EventClient {
                 listeners = new HashSet<MeshEventListener>(1);
                 eventListeners.put(topic, listeners);
             }
-            if (listeners.add(listener)) {
-                added = true;
-            }
+            listeners.add(listener);
         }
 
-        if (added) {
-            server.openEventListener(listener, topic);
-        }
+        //Reopening a listener replaces its filter:
+        server.openEventListener(listener, topic, filter);
     }
 
     /*
@@ -129,7 +128,7 @@ public class VMEventClient extends AbstractEventClient implements EventClient {
         server.sendEvent(event, topic);
     }
 
-    private synchronized void checkClosed() {
+    private void checkClosed() {
         if (closed) {
             throw new IllegalStateException("closed");
         }
@@ -16,13 +16,16 @@
  */
 package org.fusesource.meshkeeper.distribution.event.vm;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.fusesource.meshkeeper.MeshEvent;
+import org.fusesource.meshkeeper.MeshEventFilter;
 import org.fusesource.meshkeeper.MeshEventListener;
 import org.fusesource.meshkeeper.control.ControlService;
 import org.fusesource.meshkeeper.distribution.DistributorFactory;
@@ -31,7 +34,15 @@ import org.fusesource.meshkeeper.distribution.DistributorFactory;
  * VMEventServer
  * <p>
  * Description: An in memory event server. This class queues and dispatches
- * events, on a separate thread.
+ * events, on a separate thread. Events sent to a topic are delivered to its
+ * listeners in the order they were sent.
+ * </p>
+ * <p>
+ * Topic names are hierarchical, with '.' separated segments. Listeners may
+ * subscribe with wildcards: '*' matches any one segment and '>', which must be
+ * the last segment, matches one or more trailing segments. Wildcard
+ * subscriptions are kept in a trie so that matching a sent event costs about
+ * the same however many of them there are.
  * </p>
  * 
  * @author cmacnaug
@@ -39,7 +50,18 @@ import org.fusesource.meshkeeper.distribution.DistributorFactory;
  */
 public class VMEventServer implements ControlService{
 
-    private final HashMap<String, EventQueue> EVENT_QUEUES = new HashMap<String, EventQueue>();
+    private static final Log LOG = LogFactory.getLog(VMEventServer.class);
+
+    /**
+     * The maximum number of events a topic dispatches before giving up its
+     * executor thread to other topics.
+     */
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    private final ConcurrentHashMap<String, EventQueue> EVENT_QUEUES = new ConcurrentHashMap<String, EventQueue>();
+    // The subscriptions with wildcards, which are also in EVENT_QUEUES:
+    private final TopicNode WILDCARDS = new TopicNode();
+    private volatile int wildcardCount = 0;
     private final ExecutorService EXECUTOR = DistributorFactory.getExecutorService();
     /*
      * (non-Javadoc)
@@ -52,9 +74,12 @@ public class VMEventServer implements ControlService{
     public synchronized void closeEventListener(MeshEventListener listener, String topic) throws Exception {
         EventQueue queue = EVENT_QUEUES.get(topic);
         if (queue != null) {
-            queue.removeListener(listener);
-            if (queue.canBeRemoved()) {
+            if (queue.removeListener(listener)) {
                 EVENT_QUEUES.remove(topic);
+                if (isWildcard(topic)) {
+                    WILDCARDS.remove(split(topic), 0);
+                    wildcardCount--;
+                }
             }
         }
     }
@@ -67,14 +92,32 @@ public class VMEventServer implements ControlService{
      * (org.fusesource.meshkeeper.distribution.event.EventListener,
      * java.lang.String)
      */
-    public synchronized void openEventListener(MeshEventListener listener, String topic) throws Exception {
+    public void openEventListener(MeshEventListener listener, String topic) throws Exception {
+        openEventListener(listener, topic, null);
+    }
+
+    /**
+     * Opens a listener for the events on the topic that match the filter.
+     * Events that don't match any of the topic's listeners aren't queued.
+     */
+    public synchronized void openEventListener(MeshEventListener listener, String topic, MeshEventFilter filter) throws Exception {
         EventQueue queue = EVENT_QUEUES.get(topic);
         if (queue == null) {
             queue = new EventQueue(topic);
+            if (isWildcard(topic)) {
+                String[] segments = split(topic);
+                for (int i = 0; i < segments.length - 1; i++) {
+                    if (segments[i].equals(">")) {
+                        throw new IllegalArgumentException("'>' must be the last segment of " + topic);
+                    }
+                }
+                WILDCARDS.add(segments, 0, queue);
+                wildcardCount++;
+            }
             EVENT_QUEUES.put(topic, queue);
         }
 
-        queue.addListener(listener);
+        queue.addListener(listener, filter);
     }
 
     /*
@@ -84,17 +127,116 @@ public class VMEventServer implements ControlService{
      * org.fusesource.meshkeeper.distribution.event.EventClient#sendEvent(org
      * .fusesource.meshkeeper.distribution.event.Event, java.lang.String)
      */
-    public synchronized void sendEvent(final MeshEvent event, String topic) throws Exception {
+    public void sendEvent(final MeshEvent event, String topic) throws Exception {
+        if (isWildcard(topic)) {
+            throw new IllegalArgumentException("Can't send to a wildcard topic: " + topic);
+        }
         EventQueue queue = EVENT_QUEUES.get(topic);
 
         if (queue != null) {
             queue.add(event);
         }
+        if (wildcardCount > 0) {
+            WILDCARDS.match(split(topic), 0, event);
+        }
+    }
+
+    private static boolean isWildcard(String topic) {
+        return topic.indexOf('*') >= 0 || topic.indexOf('>') >= 0;
+    }
+
+    private static String[] split(String topic) {
+        return topic.split("\\.");
+    }
+
+    /**
+     * A node in the trie of wildcard subscriptions. Children are keyed by
+     * segment, including the "*" and ">" wildcards. Modified only while
+     * holding the server's lock; matched without locking.
+     */
+    private static class TopicNode {
+        final ConcurrentHashMap<String, TopicNode> children = new ConcurrentHashMap<String, TopicNode>();
+        // The subscription whose pattern ends at this node:
+        volatile EventQueue queue;
+
+        void add(String[] segments, int index, EventQueue queue) {
+            if (index == segments.length) {
+                this.queue = queue;
+                return;
+            }
+            TopicNode child = children.get(segments[index]);
+            if (child == null) {
+                child = new TopicNode();
+                children.put(segments[index], child);
+            }
+            child.add(segments, index + 1, queue);
+        }
+
+        /**
+         * @return True if this node is no longer needed.
+         */
+        boolean remove(String[] segments, int index) {
+            if (index == segments.length) {
+                queue = null;
+            } else {
+                TopicNode child = children.get(segments[index]);
+                if (child != null && child.remove(segments, index + 1)) {
+                    children.remove(segments[index]);
+                }
+            }
+            return queue == null && children.isEmpty();
+        }
+
+        void match(String[] segments, int index, MeshEvent event) {
+            if (index == segments.length) {
+                EventQueue q = queue;
+                if (q != null) {
+                    q.add(event);
+                }
+                return;
+            }
+            TopicNode child = children.get(segments[index]);
+            if (child != null) {
+                child.match(segments, index + 1, event);
+            }
+            child = children.get("*");
+            if (child != null) {
+                child.match(segments, index + 1, event);
+            }
+            child = children.get(">");
+            if (child != null) {
+                EventQueue q = child.queue;
+                if (q != null) {
+                    q.add(event);
+                }
+            }
+        }
+    }
+
+    private static class Subscription {
+        final MeshEventListener listener;
+        final MeshEventFilter filter;
+
+        Subscription(MeshEventListener listener, MeshEventFilter filter) {
+            this.listener = listener;
+            this.filter = filter;
+        }
+
+        boolean matches(MeshEvent event) {
+            return filter == null || filter.matches(event);
+        }
     }
 
+    /**
+     * The events queued for a topic. Senders append to a lock free queue and
+     * at most one executor thread at a time drains it, in batches, to a copy
+     * on write snapshot of the topic's listeners.
+     */
     private class EventQueue implements Runnable {
-        final HashSet<MeshEventListener> listeners = new HashSet<MeshEventListener>(1);
-        final LinkedBlockingQueue<Runnable> eventQueue = new LinkedBlockingQueue<Runnable>();
+        private volatile Subscription[] subscriptions = new Subscription[0];
+        // True if some subscription has no filter:
+        private volatile boolean unfiltered;
+        final ConcurrentLinkedQueue<MeshEvent> eventQueue = new ConcurrentLinkedQueue<MeshEvent>();
         final AtomicBoolean scheduled = new AtomicBoolean(false);
         final String topic;
 
@@ -102,60 +244,88 @@ public class VMEventServer implements ControlService{
             this.topic = topic;
         }
 
-        public synchronized boolean canBeRemoved() {
-            return listeners.isEmpty() && eventQueue.isEmpty();
+        public synchronized void addListener(MeshEventListener listener, MeshEventFilter filter) {
+            ArrayList<Subscription> updated = new ArrayList<Subscription>(subscriptions.length + 1);
+            for (Subscription s : subscriptions) {
+                if (!s.listener.equals(listener)) {
+                    updated.add(s);
+                }
+            }
+            updated.add(new Subscription(listener, filter));
+            update(updated);
         }
 
-        public synchronized void addListener(MeshEventListener listener) {
-            listeners.add(listener);
+        /**
+         * @return True if the topic has no more listeners.
+         */
+        public synchronized boolean removeListener(MeshEventListener listener) {
+            ArrayList<Subscription> updated = new ArrayList<Subscription>(subscriptions.length);
+            for (Subscription s : subscriptions) {
+                if (!s.listener.equals(listener)) {
+                    updated.add(s);
+                }
+            }
+            update(updated);
+            return subscriptions.length == 0;
         }
 
-        public synchronized void removeListener(MeshEventListener listener) {
-            listeners.remove(listener);
+        private void update(ArrayList<Subscription> updated) {
+            boolean anyUnfiltered = false;
+            for (Subscription s : updated) {
+                anyUnfiltered |= s.filter == null;
+            }
+            unfiltered = anyUnfiltered;
+            subscriptions = updated.toArray(new Subscription[updated.size()]);
         }
 
         public void add(final MeshEvent event) {
-            synchronized (this) {
-                if (listeners.isEmpty()) {
-                    return;
-                }
-
-                final MeshEventListener[] targets = (MeshEventListener[]) listeners.toArray();
-                eventQueue.add(new Runnable() {
-
-                    public void run() {
-                        for (MeshEventListener t : targets) {
-                            t.onEvent(event);
-                        }
-                    }
-                });
+            if (!unfiltered && !isWanted(event)) {
+                return;
+            }
+            eventQueue.add(event);
+            if (scheduled.compareAndSet(false, true)) {
+                EXECUTOR.execute(this);
             }
-            schedule();
         }
 
-        public void run() {
-            Runnable r = eventQueue.poll();
-            if (r != null) {
-                r.run();
+        private boolean isWanted(MeshEvent event) {
+            for (Subscription s : subscriptions) {
+                if (s.matches(event)) {
+                    return true;
+                }
             }
-            scheduled.set(false);
+            return false;
+        }
 
-            if (canBeRemoved()) {
-                synchronized (VMEventServer.this) {
-                    if (canBeRemoved()) {
-                        EVENT_QUEUES.remove(topic);
+        public void run() {
+            while (true) {
+                Subscription[] targets = subscriptions;
+                int dispatched = 0;
+                MeshEvent event;
+                while (dispatched < MAX_BATCH_SIZE && (event = eventQueue.poll()) != null) {
+                    dispatched++;
+                    for (Subscription t : targets) {
+                        if (!t.matches(event)) {
+                            continue;
+                        }
+                        try {
+                            t.listener.onEvent(event);
+                        } catch (Throwable thrown) {
+                            LOG.error("Error dispatching event on " + topic, thrown);
+                        }
                     }
                 }
-            } else {
-                //Reschedule if the queue isn't empty:
-                schedule();
-            }
-        }
 
-        private void schedule() {
-            if (!eventQueue.isEmpty() || listeners.isEmpty()) {
-                if (!scheduled.compareAndSet(false, true)) {
+                if (dispatched == MAX_BATCH_SIZE) {
+                    //Let other topics have the thread:
                     EXECUTOR.execute(this);
+                    return;
+                }
+
+                scheduled.set(false);
+                //Pick up events added after the queue was found empty:
+                if (eventQueue.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                    return;
                 }
             }
         }
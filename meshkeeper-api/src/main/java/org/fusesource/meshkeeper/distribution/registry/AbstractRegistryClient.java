@@ -16,7 +16,12 @@
  */
 package org.fusesource.meshkeeper.distribution.registry;
 
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeoutException;
 
 import org.fusesource.meshkeeper.distribution.AbstractPluginClient;
@@ -31,6 +36,63 @@ import org.fusesource.meshkeeper.distribution.AbstractPluginClient;
  */
 public abstract class AbstractRegistryClient extends AbstractPluginClient implements RegistryClient{
 
+    //Shares one watcher per path between threads waiting for registrations:
+    private final RegistrationWaiters waiters = new RegistrationWaiters(this);
+
+    /**
+     * Adds each object in turn. Registries that can pipeline requests should
+     * override this.
+     */
+    public List<String> addRegistryObjects(List<String> paths, boolean sequential, List<? extends Serializable> objects) throws Exception {
+        checkBatchSize(paths, objects);
+        ArrayList<String> results = new ArrayList<String>(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            results.add(addRegistryObject(paths.get(i), sequential, objects.get(i)));
+        }
+        return results;
+    }
+
+    /**
+     * Adds each piece of data in turn. Registries that can pipeline requests
+     * should override this.
+     */
+    public List<String> addRegistryData(List<String> paths, boolean sequential, List<byte[]> data) throws Exception {
+        checkBatchSize(paths, data);
+        ArrayList<String> results = new ArrayList<String>(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            results.add(addRegistryData(paths.get(i), sequential, data.get(i)));
+        }
+        return results;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> Map<String, T> getRegistryObjects(Collection<String> paths) throws Exception {
+        LinkedHashMap<String, T> results = new LinkedHashMap<String, T>();
+        for (String path : paths) {
+            results.put(path, (T) getRegistryObject(path));
+        }
+        return results;
+    }
+
+    public Map<String, byte[]> getRegistryData(Collection<String> paths) throws Exception {
+        LinkedHashMap<String, byte[]> results = new LinkedHashMap<String, byte[]>();
+        for (String path : paths) {
+            results.put(path, getRegistryData(path));
+        }
+        return results;
+    }
+
+    public void removeRegistryData(Collection<String> paths, boolean recursive) throws Exception {
+        for (String path : paths) {
+            removeRegistryData(path, recursive);
+        }
+    }
+
+    protected static void checkBatchSize(List<String> paths, List<?> values) {
+        if (paths.size() != values.size()) {
+            throw new IllegalArgumentException("Got " + values.size() + " values for " + paths.size() + " paths");
+        }
+    }
     
     /**
      * Convenience method that waits for a minimum number of objects to be registered at the given
@@ -45,7 +107,7 @@ public abstract class AbstractRegistryClient extends AbstractPluginClient implem
      */
     public <T> Collection<T> waitForRegistrations(String path, int min, long timeout) throws TimeoutException, Exception
     {
-        return RegistryHelper.waitForRegistrations(this, path, min, timeout);
+        return waiters.waitForRegistrations(path, min, timeout);
     }
     
     /**
@@ -60,6 +122,6 @@ public abstract class AbstractRegistryClient extends AbstractPluginClient implem
     @SuppressWarnings("unchecked")
     public <T> T waitForRegistration(String path, long timeout) throws TimeoutException, Exception
     {
-        return (T) RegistryHelper.waitForRegistration(this, path, timeout);
+        return (T) waiters.waitForRegistration(path, timeout);
     }
 }
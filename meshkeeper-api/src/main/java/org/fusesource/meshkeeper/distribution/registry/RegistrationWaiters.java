@@ -0,0 +1,297 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.distribution.registry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fusesource.meshkeeper.RegistryDiffWatcher;
+
+/**
+ * RegistrationWaiters
+ * <p>
+ * Description: Waits for nodes to be registered on behalf of a
+ * {@link RegistryClient}. All the threads waiting on the same parent path
+ * share a single registry watcher and a cache of the parent's children and
+ * their objects, rather than each adding and removing a watcher of its own.
+ * Each waiter is completed as soon as the node (or number of nodes) it is
+ * waiting for appears, without waking the others.
+ * </p>
+ * <p>
+ * The shared watcher is removed when the last waiter on its path is done.
+ * </p>
+ *
+ * @author cmacnaug
+ * @version 1.0
+ */
+class RegistrationWaiters {
+
+    private static final Log LOG = LogFactory.getLog(RegistrationWaiters.class);
+
+    private final RegistryClient registry;
+    private final HashMap<String, ParentWatch> watches = new HashMap<String, ParentWatch>();
+
+    RegistrationWaiters(RegistryClient registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * A waiter for a single node, or for a minimum number of children when the
+     * node is null.
+     */
+    private static class Waiter {
+        final String node;
+        final int min;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Waiter(String node, int min) {
+            this.node = node;
+            this.min = min;
+        }
+    }
+
+    /**
+     * The watch shared by the waiters on a parent path. Guarded by itself.
+     */
+    private class ParentWatch extends RegistryDiffWatcher {
+        final String path;
+        final HashSet<String> children = new HashSet<String>();
+        final HashMap<String, Object> objects = new HashMap<String, Object>();
+        final HashMap<String, List<Waiter>> nodeWaiters = new HashMap<String, List<Waiter>>();
+        final ArrayList<Waiter> countWaiters = new ArrayList<Waiter>();
+        // Set once the initial children have been reported:
+        boolean initialized;
+        // Set if the watcher couldn't be added:
+        Exception failure;
+        int waiters;
+
+        ParentWatch(String path) {
+            this.path = path;
+        }
+
+        public synchronized void onChildrenChanged(String path, List<String> added, List<String> removed) {
+            initialized = true;
+            children.removeAll(removed);
+            objects.keySet().removeAll(removed);
+            children.addAll(added);
+
+            for (String node : added) {
+                List<Waiter> list = nodeWaiters.get(node);
+                if (list != null) {
+                    for (Waiter waiter : list) {
+                        waiter.done.countDown();
+                    }
+                }
+            }
+            for (Waiter waiter : countWaiters) {
+                if (children.size() >= waiter.min) {
+                    waiter.done.countDown();
+                }
+            }
+        }
+
+        synchronized void add(Waiter waiter) {
+            waiters++;
+            if (waiter.node != null) {
+                List<Waiter> list = nodeWaiters.get(waiter.node);
+                if (list == null) {
+                    list = new ArrayList<Waiter>(1);
+                    nodeWaiters.put(waiter.node, list);
+                }
+                list.add(waiter);
+                if (initialized && children.contains(waiter.node)) {
+                    waiter.done.countDown();
+                }
+            } else {
+                countWaiters.add(waiter);
+                if (initialized && children.size() >= waiter.min) {
+                    waiter.done.countDown();
+                }
+            }
+        }
+
+        /**
+         * Completes the waiters after the watcher couldn't be added.
+         */
+        synchronized void fail(Exception failure) {
+            this.failure = failure;
+            for (List<Waiter> list : nodeWaiters.values()) {
+                for (Waiter waiter : list) {
+                    waiter.done.countDown();
+                }
+            }
+            for (Waiter waiter : countWaiters) {
+                waiter.done.countDown();
+            }
+        }
+
+        synchronized Exception getFailure() {
+            return failure;
+        }
+
+        /**
+         * @return True if there are no more waiters.
+         */
+        synchronized boolean remove(Waiter waiter) {
+            if (waiter.node != null) {
+                List<Waiter> list = nodeWaiters.get(waiter.node);
+                list.remove(waiter);
+                if (list.isEmpty()) {
+                    nodeWaiters.remove(waiter.node);
+                }
+            } else {
+                countWaiters.remove(waiter);
+            }
+            return --waiters == 0;
+        }
+
+        /**
+         * Gets the objects registered at the given children, loading those
+         * that haven't been loaded by an earlier waiter.
+         */
+        @SuppressWarnings("unchecked")
+        <T> Map<String, T> load(Collection<String> nodes) throws Exception {
+            ArrayList<String> missing = new ArrayList<String>();
+            synchronized (this) {
+                for (String node : nodes) {
+                    if (!objects.containsKey(node)) {
+                        missing.add(path + "/" + node);
+                    }
+                }
+            }
+
+            Map<String, Object> loaded = null;
+            if (!missing.isEmpty()) {
+                loaded = registry.getRegistryObjects(missing);
+            }
+
+            LinkedHashMap<String, T> results = new LinkedHashMap<String, T>();
+            synchronized (this) {
+                if (loaded != null) {
+                    for (Map.Entry<String, Object> entry : loaded.entrySet()) {
+                        String node = entry.getKey().substring(path.length() + 1);
+                        // Only cache objects that are still registered:
+                        if (children.contains(node)) {
+                            objects.put(node, entry.getValue());
+                        }
+                        results.put(node, (T) entry.getValue());
+                    }
+                }
+                for (String node : nodes) {
+                    if (!results.containsKey(node)) {
+                        results.put(node, (T) objects.get(node));
+                    }
+                }
+            }
+            return results;
+        }
+
+        synchronized ArrayList<String> getChildren() {
+            return new ArrayList<String>(children);
+        }
+    }
+
+    /**
+     * Waits for a node to be registered.
+     *
+     * @return The object registered at the node.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T waitForRegistration(String path, long timeout) throws TimeoutException, Exception {
+        String parentPath = path.substring(0, path.lastIndexOf("/"));
+        String node = path.substring(path.lastIndexOf("/") + 1);
+        ArrayList<String> nodes = new ArrayList<String>(1);
+        nodes.add(node);
+        Map<String, T> results = waitFor(parentPath, new Waiter(node, 1), nodes, timeout);
+        return results.get(node);
+    }
+
+    /**
+     * Waits for a minimum number of nodes to be registered at the path.
+     *
+     * @return The objects registered at the path.
+     */
+    <T> Collection<T> waitForRegistrations(String path, int min, long timeout) throws TimeoutException, Exception {
+        Map<String, T> results = waitFor(path, new Waiter(null, min), null, timeout);
+        return results.values();
+    }
+
+    private <T> Map<String, T> waitFor(String path, Waiter waiter, Collection<String> nodes, long timeout) throws TimeoutException, Exception {
+        ParentWatch watch;
+        boolean created = false;
+        synchronized (watches) {
+            watch = watches.get(path);
+            if (watch == null) {
+                watch = new ParentWatch(path);
+                watches.put(path, watch);
+                created = true;
+            }
+            watch.add(waiter);
+        }
+
+        try {
+            if (created) {
+                try {
+                    registry.addRegistryWatcher(path, watch);
+                } catch (Exception e) {
+                    // Nothing will complete the waiters that joined:
+                    synchronized (watches) {
+                        if (watches.get(path) == watch) {
+                            watches.remove(path);
+                        }
+                    }
+                    watch.fail(e);
+                    throw e;
+                }
+            }
+
+            if (!waiter.done.await(Math.max(0, timeout), TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException();
+            }
+            Exception failure = watch.getFailure();
+            if (failure != null) {
+                throw new Exception("Error watching " + path, failure);
+            }
+            return watch.load(nodes != null ? nodes : watch.getChildren());
+        } finally {
+            boolean last;
+            synchronized (watches) {
+                last = watch.remove(waiter);
+                if (last && watches.get(path) == watch) {
+                    watches.remove(path);
+                }
+            }
+            if (last && watch.getFailure() == null) {
+                try {
+                    registry.removeRegistryWatcher(path, watch);
+                } catch (Exception e) {
+                    LOG.warn("Error removing registration watcher at " + path, e);
+                }
+            }
+        }
+    }
+}
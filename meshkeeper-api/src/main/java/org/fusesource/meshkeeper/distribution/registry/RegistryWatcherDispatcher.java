@@ -0,0 +1,107 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.distribution.registry;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fusesource.meshkeeper.RegistryWatcher;
+
+/**
+ * RegistryWatcherDispatcher
+ * <p>
+ * Description: Runs {@link RegistryWatcher} callbacks for a path in order, on
+ * a thread pool shared by all paths rather than on the registry client's own
+ * event thread. Watchers commonly fetch registry objects or make remote calls
+ * when notified, and doing that on the event thread would hold up every other
+ * watch in the JVM.
+ * </p>
+ * <p>
+ * Each watched path should have its own dispatcher. Tasks given to a
+ * dispatcher run one at a time in the order they were submitted, while
+ * dispatchers for other paths run in parallel. The shared pool grows as needed
+ * so a callback that blocks doesn't starve the others.
+ * </p>
+ *
+ * @author cmacnaug
+ * @version 1.0
+ */
+public class RegistryWatcherDispatcher implements Executor {
+
+    private static final Log LOG = LogFactory.getLog(RegistryWatcherDispatcher.class);
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger(0);
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "MeshKeeper Registry Dispatcher-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final LinkedList<Runnable> pending = new LinkedList<Runnable>();
+    private boolean running;
+
+    private final Runnable drain = new Runnable() {
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (pending) {
+                    task = pending.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (Throwable thrown) {
+                    LOG.error("Error dispatching registry event", thrown);
+                }
+            }
+        }
+    };
+
+    /**
+     * @return The pool on which callbacks are run. It may also be used by
+     *         watchers to fetch the objects for newly added children in
+     *         parallel.
+     */
+    public static Executor getExecutor() {
+        return EXECUTOR;
+    }
+
+    /**
+     * Runs the task once the tasks submitted before it have run.
+     */
+    public void execute(Runnable task) {
+        synchronized (pending) {
+            pending.add(task);
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+        EXECUTOR.execute(drain);
+    }
+}
@@ -0,0 +1,494 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.distribution.registry.mkreg;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fusesource.meshkeeper.RegistryDiffWatcher;
+import org.fusesource.meshkeeper.RegistryWatcher;
+import org.fusesource.meshkeeper.distribution.registry.AbstractRegistryClient;
+import org.fusesource.meshkeeper.distribution.registry.RegistryWatcherDispatcher;
+import org.fusesource.meshkeeper.distribution.registry.mkreg.MKRegistryProtocol.FrameBuilder;
+
+/**
+ * MKRegistry
+ * <p>
+ * Description: A registry client for {@link MKRegistryServer}. Requests are
+ * written to a single connection without waiting for earlier responses, so the
+ * batch operations cost about one round trip, and a reader thread completes
+ * them as their responses arrive.
+ * </p>
+ * <p>
+ * Nodes added by the client are removed by the server when the client's
+ * connection closes. The client doesn't reconnect: once its connection is lost
+ * it must be recreated.
+ * </p>
+ *
+ * @author cmacnaug
+ * @version 1.0
+ */
+public class MKRegistry extends AbstractRegistryClient {
+
+    private static final Log LOG = LogFactory.getLog(MKRegistry.class);
+
+    private String connectUrl = "tcp://localhost:4040";
+    private long connectTimeout = 30000;
+
+    private Socket socket;
+    private OutputStream out;
+    private Thread reader;
+    private volatile boolean connected;
+
+    private final AtomicInteger nextId = new AtomicInteger(0);
+    private final ConcurrentHashMap<Integer, Call> calls = new ConcurrentHashMap<Integer, Call>();
+    private final ConcurrentHashMap<String, PathWatchers> watchers = new ConcurrentHashMap<String, PathWatchers>();
+
+    /**
+     * A request awaiting its response.
+     */
+    private static class Call {
+        final CountDownLatch done = new CountDownLatch(1);
+        DataInputStream response;
+        String error;
+
+        void complete(DataInputStream response) throws IOException {
+            if (response.readByte() != MKRegistryProtocol.STATUS_OK) {
+                error = response.readUTF();
+            }
+            this.response = response;
+            done.countDown();
+        }
+
+        void fail(String error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        DataInputStream await() throws Exception {
+            done.await();
+            if (error != null) {
+                throw new Exception(error);
+            }
+            return response;
+        }
+    }
+
+    /**
+     * The watchers for a path. The last children reported by the server are
+     * kept so that watchers added later can be told about them straight away.
+     */
+    private static class PathWatchers {
+        final RegistryWatcherDispatcher dispatcher = new RegistryWatcherDispatcher();
+        final CopyOnWriteArraySet<RegistryWatcher> watchers = new CopyOnWriteArraySet<RegistryWatcher>();
+        List<String> children;
+
+        void dispatch(final String path, final List<String> children, final Collection<RegistryWatcher> targets) {
+            dispatcher.execute(new Runnable() {
+                public void run() {
+                    for (RegistryWatcher watcher : targets) {
+                        watcher.onChildrenChanged(path, children);
+                    }
+                }
+            });
+        }
+    }
+
+    public synchronized void start() throws Exception {
+        if (connected) {
+            return;
+        }
+        URI uri = new URI(connectUrl);
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        socket.connect(new InetSocketAddress(uri.getHost(), uri.getPort()), (int) connectTimeout);
+        out = new BufferedOutputStream(socket.getOutputStream());
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        connected = true;
+
+        reader = new Thread(new Runnable() {
+            public void run() {
+                read(in);
+            }
+        }, "MeshKeeper Registry Client:" + connectUrl);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public synchronized void destroy() throws Exception {
+        if (!connected) {
+            return;
+        }
+        connected = false;
+        socket.close();
+        reader.join(5000);
+        failCalls("Not Connected");
+        watchers.clear();
+    }
+
+    private void read(DataInputStream in) {
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < 0 || length > MKRegistryProtocol.MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                DataInputStream data = new DataInputStream(new ByteArrayInputStream(frame));
+                byte type = data.readByte();
+                int id = data.readInt();
+
+                if (type == MKRegistryProtocol.RESPONSE) {
+                    Call call = calls.remove(id);
+                    if (call != null) {
+                        call.complete(data);
+                    }
+                } else if (type == MKRegistryProtocol.EVENT) {
+                    String path = data.readUTF();
+                    List<String> children = MKRegistryProtocol.readStrings(data);
+                    PathWatchers pw = watchers.get(path);
+                    if (pw != null) {
+                        synchronized (pw) {
+                            pw.children = children;
+                            pw.dispatch(path, children, pw.watchers);
+                        }
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            if (connected) {
+                LOG.error("Lost connection to registry at " + connectUrl, ioe);
+            }
+        } finally {
+            connected = false;
+            failCalls("Not Connected");
+        }
+    }
+
+    private void failCalls(String error) {
+        for (Integer id : calls.keySet()) {
+            Call call = calls.remove(id);
+            if (call != null) {
+                call.fail(error);
+            }
+        }
+    }
+
+    /**
+     * Starts a request.
+     */
+    private FrameBuilder request(byte type) throws Exception {
+        checkConnected();
+        return new FrameBuilder(type, nextId.incrementAndGet());
+    }
+
+    /**
+     * Sends a request without waiting for its response.
+     */
+    private Call send(FrameBuilder request, boolean flush) throws Exception {
+        byte[] frame = request.toFrame();
+        int id = request.id;
+        Call call = new Call();
+        calls.put(id, call);
+        try {
+            synchronized (out) {
+                out.write(frame);
+                if (flush) {
+                    out.flush();
+                }
+            }
+        } catch (IOException ioe) {
+            calls.remove(id);
+            throw ioe;
+        }
+        //Catch a connection that was lost before the call was registered:
+        if (!connected && calls.remove(id) != null) {
+            call.fail("Not Connected");
+        }
+        return call;
+    }
+
+    private void flush() throws IOException {
+        synchronized (out) {
+            out.flush();
+        }
+    }
+
+    private DataInputStream call(FrameBuilder request) throws Exception {
+        return send(request, true).await();
+    }
+
+    public String addRegistryObject(String path, boolean sequential, Serializable o) throws Exception {
+        return addRegistryData(path, sequential, serialize(o));
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T getRegistryObject(String path) throws Exception {
+        return (T) deserialize(getRegistryData(path));
+    }
+
+    public byte[] getRegistryData(String path) throws Exception {
+        FrameBuilder request = request(MKRegistryProtocol.GET);
+        request.writeUTF(path);
+        return MKRegistryProtocol.readData(call(request));
+    }
+
+    public String addRegistryData(String path, boolean sequential, byte[] data) throws Exception {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Registering " + path + " length=" + (data != null ? data.length : 0));
+        }
+        return call(addRequest(path, sequential, data)).readUTF();
+    }
+
+    private FrameBuilder addRequest(String path, boolean sequential, byte[] data) throws Exception {
+        FrameBuilder request = request(MKRegistryProtocol.ADD);
+        request.writeUTF(path);
+        request.writeBoolean(sequential);
+        request.writeData(data);
+        return request;
+    }
+
+    public void removeRegistryData(String path, boolean recursive) throws Exception {
+        call(removeRequest(path, recursive));
+    }
+
+    private FrameBuilder removeRequest(String path, boolean recursive) throws Exception {
+        FrameBuilder request = request(MKRegistryProtocol.REMOVE);
+        request.writeUTF(path);
+        request.writeBoolean(recursive);
+        return request;
+    }
+
+    public List<String> addRegistryObjects(List<String> paths, boolean sequential, List<? extends Serializable> objects) throws Exception {
+        checkBatchSize(paths, objects);
+        ArrayList<byte[]> data = new ArrayList<byte[]>(objects.size());
+        for (Serializable o : objects) {
+            data.add(serialize(o));
+        }
+        return addRegistryData(paths, sequential, data);
+    }
+
+    /**
+     * Pipelines the adds. As with ZooKeeper the nodes that were added are left
+     * in place if one of them fails.
+     */
+    public List<String> addRegistryData(List<String> paths, boolean sequential, List<byte[]> data) throws Exception {
+        checkBatchSize(paths, data);
+        Call[] pending = new Call[paths.size()];
+        for (int i = 0; i < pending.length; i++) {
+            pending[i] = send(addRequest(paths.get(i), sequential, data.get(i)), false);
+        }
+        flush();
+
+        ArrayList<String> results = new ArrayList<String>(pending.length);
+        Exception failure = null;
+        for (Call call : pending) {
+            try {
+                results.add(call.await().readUTF());
+            } catch (Exception e) {
+                results.add(null);
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> Map<String, T> getRegistryObjects(Collection<String> paths) throws Exception {
+        LinkedHashMap<String, T> results = new LinkedHashMap<String, T>();
+        for (Map.Entry<String, byte[]> entry : getRegistryData(paths).entrySet()) {
+            results.put(entry.getKey(), (T) deserialize(entry.getValue()));
+        }
+        return results;
+    }
+
+    public Map<String, byte[]> getRegistryData(Collection<String> paths) throws Exception {
+        LinkedHashMap<String, Call> pending = new LinkedHashMap<String, Call>();
+        for (String path : paths) {
+            FrameBuilder request = request(MKRegistryProtocol.GET);
+            request.writeUTF(path);
+            pending.put(path, send(request, false));
+        }
+        flush();
+
+        LinkedHashMap<String, byte[]> results = new LinkedHashMap<String, byte[]>();
+        for (Map.Entry<String, Call> entry : pending.entrySet()) {
+            results.put(entry.getKey(), MKRegistryProtocol.readData(entry.getValue().await()));
+        }
+        return results;
+    }
+
+    public void removeRegistryData(Collection<String> paths, boolean recursive) throws Exception {
+        ArrayList<Call> pending = new ArrayList<Call>(paths.size());
+        for (String path : paths) {
+            pending.add(send(removeRequest(path, recursive), false));
+        }
+        flush();
+
+        Exception failure = null;
+        for (Call call : pending) {
+            try {
+                call.await();
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public Collection<String> list(String path, boolean recursive, String... filters) throws Exception {
+        FrameBuilder request = request(MKRegistryProtocol.LIST);
+        request.writeUTF(path);
+        request.writeBoolean(recursive);
+        request.writeStrings(filters == null ? null : Arrays.asList(filters));
+        return MKRegistryProtocol.readStrings(call(request));
+    }
+
+    public Map<String, byte[]> snapshot(String path) throws Exception {
+        FrameBuilder request = request(MKRegistryProtocol.SNAPSHOT);
+        request.writeUTF(path);
+        DataInputStream response = call(request);
+        TreeMap<String, byte[]> results = new TreeMap<String, byte[]>();
+        for (int count = response.readInt(); count > 0; count--) {
+            results.put(response.readUTF(), MKRegistryProtocol.readData(response));
+        }
+        return results;
+    }
+
+    public synchronized void addRegistryWatcher(String path, RegistryWatcher watcher) throws Exception {
+        checkConnected();
+        PathWatchers pw = watchers.get(path);
+        if (pw == null) {
+            pw = new PathWatchers();
+            pw.watchers.add(watcher);
+            watchers.put(path, pw);
+            FrameBuilder request = request(MKRegistryProtocol.WATCH);
+            request.writeUTF(path);
+            try {
+                call(request);
+            } catch (Exception e) {
+                watchers.remove(path);
+                throw e;
+            }
+            return;
+        }
+
+        synchronized (pw) {
+            if (pw.watchers.add(watcher) && pw.children != null) {
+                ArrayList<RegistryWatcher> target = new ArrayList<RegistryWatcher>(1);
+                target.add(watcher);
+                pw.dispatch(path, pw.children, target);
+            }
+        }
+    }
+
+    public synchronized void removeRegistryWatcher(String path, RegistryWatcher watcher) throws Exception {
+        PathWatchers pw = watchers.get(path);
+        if (pw == null || !pw.watchers.remove(watcher)) {
+            return;
+        }
+        if (watcher instanceof RegistryDiffWatcher) {
+            ((RegistryDiffWatcher) watcher).reset(path);
+        }
+        if (!pw.watchers.isEmpty()) {
+            return;
+        }
+        watchers.remove(path);
+        if (connected) {
+            FrameBuilder request = request(MKRegistryProtocol.UNWATCH);
+            request.writeUTF(path);
+            call(request);
+        }
+    }
+
+    private static byte[] serialize(Serializable o) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream os = new ObjectOutputStream(baos);
+        os.writeObject(o);
+        os.close();
+        return baos.toByteArray();
+    }
+
+    private static Object deserialize(byte[] data) throws Exception {
+        if (data == null) {
+            return null;
+        }
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+        return in.readObject();
+    }
+
+    private void checkConnected() throws Exception {
+        if (!connected) {
+            throw new Exception("Not Connected");
+        }
+    }
+
+    public String getConnectUrl() {
+        return connectUrl;
+    }
+
+    public void setConnectUrl(String connectUrl) {
+        this.connectUrl = connectUrl;
+    }
+
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(long connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public String toString() {
+        return "MKRegistry: " + connectUrl;
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.distribution.registry.mkreg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * MKRegistryProtocol
+ * <p>
+ * Description: The wire format spoken between {@link MKRegistry} and
+ * {@link MKRegistryServer}. Each frame is an int length followed by that many
+ * bytes: a type byte, an int id and the type's fields. Requests are answered
+ * by a {@link #RESPONSE} frame with the request's id, and may be pipelined;
+ * the server answers each connection's requests in order. Child watch
+ * notifications are sent as {@link #EVENT} frames.
+ * </p>
+ *
+ * @author cmacnaug
+ * @version 1.0
+ */
+final class MKRegistryProtocol {
+
+    static final byte ADD = 1;
+    static final byte GET = 2;
+    static final byte REMOVE = 3;
+    static final byte WATCH = 4;
+    static final byte UNWATCH = 5;
+    static final byte LIST = 6;
+    static final byte SNAPSHOT = 7;
+
+    static final byte RESPONSE = 100;
+    static final byte EVENT = 101;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+
+    /**
+     * Frames larger than this are rejected.
+     */
+    static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    private MKRegistryProtocol() {
+    }
+
+    /**
+     * Builds a frame, leaving room at the start for its length.
+     */
+    static class FrameBuilder extends DataOutputStream {
+
+        final int id;
+
+        FrameBuilder(byte type, int id) throws IOException {
+            super(new Buffer());
+            this.id = id;
+            writeInt(0);
+            writeByte(type);
+            writeInt(id);
+        }
+
+        /**
+         * @return The frame with its length filled in.
+         */
+        byte[] toFrame() throws IOException {
+            flush();
+            byte[] frame = ((Buffer) out).toByteArray();
+            int length = frame.length - 4;
+            frame[0] = (byte) (length >>> 24);
+            frame[1] = (byte) (length >>> 16);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+            return frame;
+        }
+
+        void writeData(byte[] data) throws IOException {
+            if (data == null) {
+                writeInt(-1);
+            } else {
+                writeInt(data.length);
+                write(data);
+            }
+        }
+
+        void writeStrings(Collection<String> strings) throws IOException {
+            if (strings == null) {
+                writeInt(-1);
+            } else {
+                writeInt(strings.size());
+                for (String s : strings) {
+                    writeUTF(s);
+                }
+            }
+        }
+
+        private static class Buffer extends ByteArrayOutputStream {
+        }
+    }
+
+    static byte[] readData(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+
+    static List<String> readStrings(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+        ArrayList<String> strings = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+}
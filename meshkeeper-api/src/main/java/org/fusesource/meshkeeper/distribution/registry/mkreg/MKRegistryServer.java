@@ -0,0 +1,425 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.distribution.registry.mkreg;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fusesource.meshkeeper.RegistryWatcher;
+import org.fusesource.meshkeeper.control.ControlService;
+import org.fusesource.meshkeeper.distribution.registry.mkreg.MKRegistryProtocol.FrameBuilder;
+import org.fusesource.meshkeeper.distribution.registry.vm.VMRegistryServer;
+
+/**
+ * MKRegistryServer
+ * <p>
+ * Description: A lightweight registry server for local and test meshes. The
+ * registry is held in memory in a {@link VMRegistryServer} tree and served
+ * over a single selector thread to {@link MKRegistry} clients, so it starts
+ * almost instantly and doesn't write a transaction log.
+ * </p>
+ * <p>
+ * As with ZooKeeper, registered nodes are ephemeral: they are removed when the
+ * connection that added them closes. Sequential nodes and child watches are
+ * supported.
+ * </p>
+ * <p>
+ * Since every node is owned by the connection that added it and clients don't
+ * reconnect, nothing in the registry outlives a restart of the server, so it
+ * isn't persisted.
+ * </p>
+ *
+ * @author cmacnaug
+ * @version 1.0
+ */
+public class MKRegistryServer implements ControlService {
+
+    private static final Log LOG = LogFactory.getLog(MKRegistryServer.class);
+
+    private int port = 4040;
+    private String directory = "mkreg-server-data";
+    private String serviceUri;
+
+    private VMRegistryServer tree;
+    private Selector selector;
+    private ServerSocketChannel acceptor;
+    private Thread thread;
+    private volatile boolean running;
+
+    // The connection that owns each ephemeral node:
+    private final ConcurrentHashMap<String, Connection> owners = new ConcurrentHashMap<String, Connection>();
+    // Connections with frames queued by other threads:
+    private final ConcurrentLinkedQueue<Connection> flushQueue = new ConcurrentLinkedQueue<Connection>();
+
+    public synchronized void start() throws Exception {
+        if (running) {
+            return;
+        }
+        tree = new VMRegistryServer();
+        tree.start();
+
+        selector = Selector.open();
+        acceptor = ServerSocketChannel.open();
+        acceptor.socket().setReuseAddress(true);
+        acceptor.socket().bind(new InetSocketAddress(port));
+        acceptor.configureBlocking(false);
+        acceptor.register(selector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                select();
+            }
+        }, "MeshKeeper Registry Server:" + acceptor.socket().getLocalPort());
+        thread.setDaemon(true);
+        thread.start();
+
+        String actualHost = InetAddress.getLocalHost().getCanonicalHostName();
+        serviceUri = "mkreg:tcp://" + actualHost + ":" + acceptor.socket().getLocalPort();
+    }
+
+    public synchronized void destroy() throws Exception {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        thread.join(5000);
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+        acceptor.close();
+        selector.close();
+        tree.destroy();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Destroyed");
+        }
+    }
+
+    private void select() {
+        while (running) {
+            try {
+                selector.select();
+
+                Connection pending;
+                while ((pending = flushQueue.poll()) != null) {
+                    pending.flush();
+                }
+
+                for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException ioe) {
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("Closing connection " + connection + ": " + ioe.getMessage());
+                        }
+                        connection.close();
+                    }
+                }
+            } catch (Throwable thrown) {
+                if (running) {
+                    LOG.error("Error in registry server", thrown);
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = acceptor.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setKeepAlive(true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Accepted " + connection);
+        }
+    }
+
+    /**
+     * A client connection. Only the selector thread reads from and writes to
+     * the channel; other threads queue frames with {@link #send(byte[])}.
+     */
+    private class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        final ByteBuffer header = ByteBuffer.allocate(4);
+        ByteBuffer frame;
+        final ConcurrentLinkedQueue<ByteBuffer> writes = new ConcurrentLinkedQueue<ByteBuffer>();
+        final HashSet<String> owned = new HashSet<String>();
+        final HashMap<String, RegistryWatcher> watches = new HashMap<String, RegistryWatcher>();
+        volatile boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            while (true) {
+                if (frame == null) {
+                    if (channel.read(header) < 0) {
+                        throw new IOException("Connection closed");
+                    }
+                    if (header.hasRemaining()) {
+                        return;
+                    }
+                    header.flip();
+                    int length = header.getInt();
+                    header.clear();
+                    if (length < 0 || length > MKRegistryProtocol.MAX_FRAME_SIZE) {
+                        throw new IOException("Invalid frame length: " + length);
+                    }
+                    frame = ByteBuffer.allocate(length);
+                }
+
+                if (channel.read(frame) < 0) {
+                    throw new IOException("Connection closed");
+                }
+                if (frame.hasRemaining()) {
+                    return;
+                }
+                byte[] request = frame.array();
+                frame = null;
+                writes.add(ByteBuffer.wrap(handle(request)));
+                flush();
+            }
+        }
+
+        void send(byte[] data) {
+            if (closed) {
+                return;
+            }
+            writes.add(ByteBuffer.wrap(data));
+            flushQueue.add(this);
+            selector.wakeup();
+        }
+
+        void flush() throws IOException {
+            if (closed) {
+                return;
+            }
+            ByteBuffer buffer;
+            while ((buffer = writes.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writes.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        byte[] handle(byte[] request) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(request));
+            byte type = in.readByte();
+            int id = in.readInt();
+            FrameBuilder response = new FrameBuilder(MKRegistryProtocol.RESPONSE, id);
+            response.writeByte(MKRegistryProtocol.STATUS_OK);
+            try {
+                switch (type) {
+                case MKRegistryProtocol.ADD: {
+                    String path = in.readUTF();
+                    boolean sequential = in.readBoolean();
+                    byte[] data = MKRegistryProtocol.readData(in);
+                    String added = tree.addData(path, sequential, data);
+                    owners.put(added, this);
+                    owned.add(added);
+                    response.writeUTF(added);
+                    break;
+                }
+                case MKRegistryProtocol.GET: {
+                    response.writeData(tree.getData(in.readUTF()));
+                    break;
+                }
+                case MKRegistryProtocol.REMOVE: {
+                    String path = in.readUTF();
+                    boolean recursive = in.readBoolean();
+                    tree.remove(path, recursive);
+                    disown(path, recursive);
+                    break;
+                }
+                case MKRegistryProtocol.WATCH: {
+                    final String path = in.readUTF();
+                    if (!watches.containsKey(path)) {
+                        RegistryWatcher watcher = new RegistryWatcher() {
+                            public void onChildrenChanged(String path, List<String> children) {
+                                try {
+                                    FrameBuilder event = new FrameBuilder(MKRegistryProtocol.EVENT, 0);
+                                    event.writeUTF(path);
+                                    event.writeStrings(children);
+                                    send(event.toFrame());
+                                } catch (IOException e) {
+                                    LOG.warn("Error sending registry event for " + path, e);
+                                }
+                            }
+                        };
+                        watches.put(path, watcher);
+                        tree.addRegistryWatcher(path, watcher);
+                    }
+                    break;
+                }
+                case MKRegistryProtocol.UNWATCH: {
+                    String path = in.readUTF();
+                    RegistryWatcher watcher = watches.remove(path);
+                    if (watcher != null) {
+                        tree.removeRegistryWatcher(path, watcher);
+                    }
+                    break;
+                }
+                case MKRegistryProtocol.LIST: {
+                    String path = in.readUTF();
+                    boolean recursive = in.readBoolean();
+                    List<String> filters = MKRegistryProtocol.readStrings(in);
+                    response.writeStrings(tree.list(path, recursive, filters == null ? null : filters.toArray(new String[filters.size()])));
+                    break;
+                }
+                case MKRegistryProtocol.SNAPSHOT: {
+                    Map<String, byte[]> snapshot = tree.snapshot(in.readUTF());
+                    response.writeInt(snapshot.size());
+                    for (Map.Entry<String, byte[]> entry : snapshot.entrySet()) {
+                        response.writeUTF(entry.getKey());
+                        response.writeData(entry.getValue());
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown request type: " + type);
+                }
+            } catch (Exception e) {
+                response = new FrameBuilder(MKRegistryProtocol.RESPONSE, id);
+                response.writeByte(MKRegistryProtocol.STATUS_ERROR);
+                response.writeUTF(String.valueOf(e.getMessage()));
+            }
+            return response.toFrame();
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+
+            for (Map.Entry<String, RegistryWatcher> entry : watches.entrySet()) {
+                tree.removeRegistryWatcher(entry.getKey(), entry.getValue());
+            }
+            watches.clear();
+
+            //Remove the connection's ephemeral nodes:
+            for (String path : owned) {
+                if (owners.remove(path, this)) {
+                    try {
+                        tree.remove(path, false);
+                    } catch (Exception e) {
+                        LOG.warn("Error removing " + path, e);
+                    }
+                }
+            }
+            owned.clear();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Closed " + this);
+            }
+        }
+
+        public String toString() {
+            return String.valueOf(channel.socket().getRemoteSocketAddress());
+        }
+    }
+
+    private void disown(String path, boolean recursive) {
+        owners.remove(path);
+        if (recursive) {
+            String prefix = path.endsWith("/") ? path : path + "/";
+            for (Iterator<String> i = owners.keySet().iterator(); i.hasNext();) {
+                if (i.next().startsWith(prefix)) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public String getName() {
+        return toString();
+    }
+
+    public String getServiceUri() {
+        return serviceUri;
+    }
+
+    public String toString() {
+        return "MeshKeeper Registry Server";
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.distribution.registry.mkreg;
+
+import java.net.URI;
+
+import org.fusesource.meshkeeper.control.ControlService;
+import org.fusesource.meshkeeper.control.ControlServiceFactory;
+
+/** 
+ * MKRegistryServerFactory
+ * <p>
+ * Description: Creates {@link MKRegistryServer}s for mkreg:tcp://host:port
+ * uris.
+ * </p>
+ * @author cmacnaug
+ * @version 1.0
+ */
+public class MKRegistryServerFactory extends ControlServiceFactory {
+
+    @Override
+    protected ControlService createPlugin(String uri) throws Exception {
+
+        URI connectUri = new URI(uri);
+        MKRegistryServer server = new MKRegistryServer();
+        server.setPort(connectUri.getPort());
+        applyQueryParameters(server, connectUri);
+        return server;
+    }    
+}
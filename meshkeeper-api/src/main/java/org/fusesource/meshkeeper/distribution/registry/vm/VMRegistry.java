@@ -23,6 +23,7 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.fusesource.meshkeeper.RegistryDiffWatcher;
 import org.fusesource.meshkeeper.RegistryWatcher;
 import org.fusesource.meshkeeper.distribution.registry.AbstractRegistryClient;
 
@@ -47,6 +48,7 @@ public class VMRegistry extends AbstractRegistryClient {
      * @see org.fusesource.meshkeeper.distribution.registry.Registry#start()
      */
     public void start() throws Exception {
+        SERVER.start();
         started.compareAndSet(false, true);
         synchronized (this) {
             for (Map.Entry<String, HashSet<RegistryWatcher>> e : watchers.entrySet()) {
@@ -169,6 +171,10 @@ public class VMRegistry extends AbstractRegistryClient {
         return SERVER.list(path, recursive, filters);
     }
 
+    public Map<String, byte[]> snapshot(String path) throws Exception {
+        return SERVER.snapshot(path);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -192,6 +198,9 @@ public class VMRegistry extends AbstractRegistryClient {
 
         if (removed) {
             SERVER.removeRegistryWatcher(path, watcher);
+            if (watcher instanceof RegistryDiffWatcher) {
+                ((RegistryDiffWatcher) watcher).reset(path);
+            }
         }
     }
 
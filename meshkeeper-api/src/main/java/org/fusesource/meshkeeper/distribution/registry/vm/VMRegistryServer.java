@@ -25,48 +25,81 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.StringTokenizer;
-import java.util.concurrent.ExecutorService;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.fusesource.meshkeeper.RegistryWatcher;
 import org.fusesource.meshkeeper.control.ControlService;
-import org.fusesource.meshkeeper.distribution.DistributorFactory;
+import org.fusesource.meshkeeper.distribution.registry.RegistryWatcherDispatcher;
 
 /**
  * VMRegistryServer
  * <p>
- * Description:
+ * Description: An in VM registry held in a concurrent path trie. Reads walk
+ * the trie without locking, and writes only lock the nodes they add children
+ * to or remove children from, so threads working in different parts of the
+ * registry don't contend with each other. Parsed paths are cached since the
+ * same paths tend to be used over and over.
+ * </p>
+ * <p>
+ * Watchers are notified of a node's current children on the executor. Changes
+ * made while a notification is pending are coalesced into it, and
+ * notifications for a node are delivered one at a time so a watcher never
+ * sees an older child list after a newer one.
  * </p>
  * 
  * @author cmacnaug
  * @version 1.0
  */
 public class VMRegistryServer implements ControlService {
-    private static final ExecutorService EXECUTOR = DistributorFactory.getExecutorService();
+    //Watchers may block, so they're notified on the dispatcher's pool:
+    private static final Executor EXECUTOR = RegistryWatcherDispatcher.getExecutor();
+    private static final int MAX_CACHED_PATHS = 10000;
     private final AtomicBoolean started = new AtomicBoolean(false);
 
-    VMRNode root = new VMRNode();
+    private final Node root = new Node(null, "");
+    private final ConcurrentHashMap<String, String[]> parsedPaths = new ConcurrentHashMap<String, String[]>();
 
-    public synchronized String addData(String path, boolean sequential, byte[] data) throws Exception {
+    public String addData(String path, boolean sequential, byte[] data) throws Exception {
         checkStarted();
 
-        VMRNode parent = createParentPath(path);
-        String name = path.substring(path.lastIndexOf("/"));
-        if (!sequential) {
-            if (parent.children.containsKey(name)) {
-                throw new Exception("Node Already Exists: " + path);
+        String[] segments = parse(path);
+        if (segments.length == 0) {
+            throw new Exception("Can't add data to the root node");
+        }
+        while (true) {
+            Node parent = createPath(segments, segments.length - 1);
+            Node node;
+            synchronized (parent) {
+                if (parent.deleted) {
+                    // Removed since we found it, try again:
+                    continue;
+                }
+                String name = segments[segments.length - 1];
+                if (sequential) {
+                    name = name + String.format("%010d", parent.sequence++);
+                }
+                if (parent.children.containsKey(name)) {
+                    throw new Exception("Node Already Exists: " + path);
+                }
+                node = new Node(parent, name);
+                node.data = data;
+                parent.children.put(name, node);
             }
+            parent.fireChildrenChanged();
+            return node.path;
         }
-        VMRNode node = parent.createChild(path.substring(path.lastIndexOf("/")), sequential, data);
-        return node.getFullPath();
     }
 
-    public synchronized String addObject(String path, boolean sequential, Serializable o) throws Exception {
+    public String addObject(String path, boolean sequential, Serializable o) throws Exception {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         ObjectOutputStream os = new ObjectOutputStream(baos);
         os.writeObject(o);
@@ -84,8 +117,8 @@ public class VMRegistryServer implements ControlService {
         return (T) in.readObject();
     }
 
-    public synchronized byte[] getData(String path) throws Exception {
-        VMRNode node = findNode(path);
+    public byte[] getData(String path) throws Exception {
+        Node node = findNode(path);
         if (node == null) {
             return null;
         } else {
@@ -93,32 +126,54 @@ public class VMRegistryServer implements ControlService {
         }
     }
 
-    public synchronized void remove(String path, boolean recursive) throws Exception {
-        VMRNode node = findNode(path);
+    /**
+     * Removes the data at the given path. As with the ZooKeeper registry, a
+     * node that still has children keeps them unless the removal is
+     * recursive, and ancestors left empty are removed along with the node.
+     */
+    public void remove(String path, boolean recursive) throws Exception {
+        Node node = findNode(path);
         if (node != null) {
-            if (node.hasChildren()) {
-                throw new Exception("Node Not Empty: " + path);
-            }
-            if (node.hasData()) {
-                node.data = null;
+            if (node == root) {
+                for (Node child : root.children.values()) {
+                    remove(child, true);
+                }
+            } else {
+                remove(node, recursive);
             }
-            if (node.isOkToDelete()) {
-                node.delete(true);
+        }
+    }
+
+    private void remove(Node node, boolean recursive) {
+        if (recursive) {
+            for (Node child : node.children.values()) {
+                remove(child, true);
             }
         }
+        node.data = null;
+        delete(node);
     }
 
-    public synchronized void addRegistryWatcher(String path, RegistryWatcher watcher) throws Exception {
+    public void addRegistryWatcher(String path, RegistryWatcher watcher) throws Exception {
         checkStarted();
-        VMRNode node = createParentPath(path + "/");
-        node.addRegistryWatcher(watcher);
-
+        String[] segments = parse(path);
+        while (true) {
+            Node node = createPath(segments, segments.length);
+            synchronized (node) {
+                if (node.deleted) {
+                    continue;
+                }
+                node.watchers.addIfAbsent(watcher);
+            }
+            node.fireChildrenChanged(watcher);
+            return;
+        }
     }
 
-    public synchronized void removeRegistryWatcher(String path, RegistryWatcher watcher) {
-        VMRNode node = findNode(path);
-        if (node != null) {
-            node.removeRegistryWatcher(watcher);
+    public void removeRegistryWatcher(String path, RegistryWatcher watcher) {
+        Node node = findNode(path);
+        if (node != null && node.watchers.remove(watcher)) {
+            delete(node);
         }
     }
 
@@ -132,23 +187,22 @@ public class VMRegistryServer implements ControlService {
         if (filters != null) {
             HashSet<String> filterSet = new HashSet<String>();
             filterSet.addAll(Arrays.asList(filters));
-            return list(path, recursive, new LinkedList<String>(), filterSet);
+            return list(findNode(path), recursive, new LinkedList<String>(), filterSet);
         } else {
-            return list(path, recursive, new LinkedList<String>(), Collections.EMPTY_SET);
+            return list(findNode(path), recursive, new LinkedList<String>(), Collections.EMPTY_SET);
         }
     }
 
-    private Collection<String> list(String path, boolean recursive, Collection<String> results, Set<String> filters) {
-        VMRNode node = findNode(path);
+    private Collection<String> list(Node node, boolean recursive, Collection<String> results, Set<String> filters) {
         if (node != null) {
             if (node.data != null) {
-                results.add(node.getFullPath());
+                results.add(node.path);
             }
 
-            if (recursive && node.children != null) {
-                for (VMRNode child : node.children.values()) {
-                    if (!filters.remove(child.getFullPath())) {
-                        list(child.getFullPath(), recursive, results, filters);
+            if (recursive) {
+                for (Node child : node.children.values()) {
+                    if (!filters.remove(child.path)) {
+                        list(child, recursive, results, filters);
                     }
                 }
             }
@@ -156,27 +210,113 @@ public class VMRegistryServer implements ControlService {
         return results;
     }
 
-    private VMRNode createParentPath(String path) throws Exception {
-        StringTokenizer tok = new StringTokenizer(path, "/");
-        VMRNode parent = root;
-        while (tok.countTokens() > 1) {
-            parent.createChild(tok.nextToken(), false, null);
+    public Map<String, byte[]> snapshot(String path) {
+        return snapshot(findNode(path), new TreeMap<String, byte[]>());
+    }
+
+    private Map<String, byte[]> snapshot(Node node, Map<String, byte[]> results) {
+        if (node != null) {
+            byte[] data = node.data;
+            if (data != null) {
+                results.put(node.path, data);
+            }
+            for (Node child : node.children.values()) {
+                snapshot(child, results);
+            }
         }
-        return parent;
+        return results;
     }
 
     /**
-     * @param path
-     * @return
+     * Walks down the trie creating the nodes for the first count segments of
+     * a path.
+     * 
+     * @return The node for the last of the segments.
      */
-    private VMRNode findNode(String path) {
-        path = path.trim();
-        VMRNode node = root;
-        StringTokenizer tok = new StringTokenizer(path, "/");
-        while (node != null && tok.hasMoreTokens()) {
-            node = node.getChild(tok.nextToken());
+    private Node createPath(String[] segments, int count) {
+        retry: while (true) {
+            Node node = root;
+            for (int i = 0; i < count; i++) {
+                Node child = node.children.get(segments[i]);
+                if (child == null) {
+                    boolean created = false;
+                    synchronized (node) {
+                        if (node.deleted) {
+                            continue retry;
+                        }
+                        child = node.children.get(segments[i]);
+                        if (child == null) {
+                            child = new Node(node, segments[i]);
+                            node.children.put(segments[i], child);
+                            created = true;
+                        }
+                    }
+                    if (created) {
+                        node.fireChildrenChanged();
+                    }
+                }
+                node = child;
+            }
+            return node;
         }
-        return root;
+    }
+
+    /**
+     * Deletes a node if it has no data, children or watchers, followed by any
+     * ancestors left in the same state.
+     */
+    private void delete(Node node) {
+        while (node.parent != null) {
+            Node parent = node.parent;
+            // Always lock from the parent down:
+            synchronized (parent) {
+                synchronized (node) {
+                    if (node.deleted || node.data != null || !node.children.isEmpty() || !node.watchers.isEmpty()) {
+                        return;
+                    }
+                    node.deleted = true;
+                    parent.children.remove(node.name);
+                }
+            }
+            parent.fireChildrenChanged();
+            node = parent;
+        }
+    }
+
+    private Node findNode(String path) {
+        Node node = root;
+        for (String segment : parse(path)) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private String[] parse(String path) {
+        String[] segments = parsedPaths.get(path);
+        if (segments == null) {
+            ArrayList<String> list = new ArrayList<String>();
+            String trimmed = path.trim();
+            int start = 0;
+            while (start < trimmed.length()) {
+                int end = trimmed.indexOf('/', start);
+                if (end < 0) {
+                    end = trimmed.length();
+                }
+                if (end > start) {
+                    list.add(trimmed.substring(start, end));
+                }
+                start = end + 1;
+            }
+            segments = list.toArray(new String[list.size()]);
+            if (parsedPaths.size() >= MAX_CACHED_PATHS) {
+                parsedPaths.clear();
+            }
+            parsedPaths.put(path, segments);
+        }
+        return segments;
     }
 
     private void checkStarted() throws Exception {
@@ -195,8 +335,7 @@ public class VMRegistryServer implements ControlService {
      * @see org.fusesource.meshkeeper.control.ControlService#destroy()
      */
     public void destroy() throws Exception {
-        // TODO Auto-generated method stub
-
+        started.set(false);
     }
 
     /*
@@ -205,8 +344,7 @@ public class VMRegistryServer implements ControlService {
      * @see org.fusesource.meshkeeper.control.ControlService#start()
      */
     public void start() throws Exception {
-        // TODO Auto-generated method stub
-
+        started.set(true);
     }
 
     /*
@@ -242,133 +380,69 @@ public class VMRegistryServer implements ControlService {
     //End of Control Service Implementation
     //////////////////////////////////////////////////////////////////////
 
-    public class VMRNode {
-        VMRNode parent;
-        HashMap<String, VMRNode> children;
-        String name = "";
-        String path = "/";
-        boolean sequential;
-        byte[] data;
-        HashSet<RegistryWatcher> watchers;
-
-        public VMRNode createChild(String name, boolean sequential, byte[] data) throws Exception {
-            if (this.sequential) {
-                throw new Exception("Can't create child for sequential node");
-            }
-
-            if (children == null) {
-                children = new HashMap<String, VMRNode>();
+    private static final class Node {
+        final Node parent;
+        final String name;
+        final String path;
+        final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<String, Node>();
+        final CopyOnWriteArrayList<RegistryWatcher> watchers = new CopyOnWriteArrayList<RegistryWatcher>();
+        volatile byte[] data;
+        // Guarded by this node:
+        boolean deleted;
+        int sequence;
+
+        private final AtomicBoolean notifyPending = new AtomicBoolean();
+        private final Object notifyMutex = new Object();
+
+        Node(Node parent, String name) {
+            this.parent = parent;
+            this.name = name;
+            if (parent == null) {
+                path = "/";
+            } else if (parent.parent == null) {
+                path = "/" + name;
             } else {
-                VMRNode existing = children.get(name);
-                if (existing != null) {
-                    return existing;
-                }
+                path = parent.path + "/" + name;
             }
-
-            VMRNode rc = new VMRNode();
-            rc.parent = this;
-            rc.path = this.path + this.name + "/";
-            rc.name = name;
-            rc.sequential = sequential;
-            rc.data = data;
-            children.put(name, rc);
-            fireRegistryWatcher();
-            return rc;
         }
 
-        public void removeChild(String name) {
-            if (children == null) {
+        /**
+         * Notifies all of the node's watchers of its children, unless a
+         * notification is already pending.
+         */
+        void fireChildrenChanged() {
+            if (watchers.isEmpty() || !notifyPending.compareAndSet(false, true)) {
                 return;
             }
-            if (children.remove(name) != null && children.isEmpty()) {
-                children = null;
-            }
-        }
-
-        public VMRNode getChild(String name) {
-            if (children == null) {
-                return null;
-            }
-            return children.get(name);
-        }
-
-        public String getFullPath() {
-            return path + "/" + name;
-        }
-
-        public boolean hasChildren() {
-            return children != null && !children.isEmpty();
-        }
-
-        public boolean hasData() {
-            return data != null;
-        }
-
-        public boolean hasWatchers() {
-            return watchers != null && !watchers.isEmpty();
-        }
-
-        public boolean isOkToDelete() {
-            return !(hasChildren() || hasWatchers());
-        }
-
-        public void delete(boolean deleteEmptyAncestors) {
-            if (parent != null) {
-                parent.removeChild(name);
-                parent.fireRegistryWatcher();
-
-                if (deleteEmptyAncestors) {
-                    if (parent.isOkToDelete() && !parent.hasData()) {
-                        parent.delete(deleteEmptyAncestors);
-                    }
-                }
-            }
-        }
-
-        public void addRegistryWatcher(RegistryWatcher watcher) {
-            if (watchers == null) {
-                watchers = new HashSet<RegistryWatcher>(1);
-            }
-            watchers.add(watcher);
-            fireWatchEvent(new RegistryWatcher[] { watcher });
-        }
-
-        public void removeRegistryWatcher(RegistryWatcher watcher) {
-            if (watchers != null) {
-                if (watchers.remove(watcher)) {
-                    if (watchers.isEmpty()) {
-                        watchers = null;
-                        if (!hasData() && isOkToDelete()) {
-                            delete(true);
-                        }
+            EXECUTOR.execute(new Runnable() {
+                public void run() {
+                    synchronized (notifyMutex) {
+                        notifyPending.set(false);
+                        notifyWatchers(watchers);
                     }
                 }
-            }
-        }
-
-        private void fireRegistryWatcher() {
-            if (watchers != null) {
-                fireWatchEvent((RegistryWatcher[]) watchers.toArray());
-            }
+            });
         }
 
-        private void fireWatchEvent(final RegistryWatcher[] targets) {
+        /**
+         * Notifies a newly added watcher of the node's children.
+         */
+        void fireChildrenChanged(final RegistryWatcher watcher) {
             EXECUTOR.execute(new Runnable() {
-
                 public void run() {
-                    ArrayList<String> childList = new ArrayList<String>();
-                    synchronized (VMRegistryServer.this) {
-                        if (children != null) {
-                            childList.addAll(children.keySet());
-                        }
-                    }
-
-                    for (RegistryWatcher w : targets) {
-                        w.onChildrenChanged(getFullPath(), childList);
+                    synchronized (notifyMutex) {
+                        notifyWatchers(Collections.singletonList(watcher));
                     }
                 }
             });
         }
+
+        private void notifyWatchers(List<RegistryWatcher> targets) {
+            ArrayList<String> childList = new ArrayList<String>(children.keySet());
+            for (RegistryWatcher w : targets) {
+                w.onChildrenChanged(path, childList);
+            }
+        }
     }
 
 }
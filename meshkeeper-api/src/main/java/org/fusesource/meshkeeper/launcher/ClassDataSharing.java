@@ -0,0 +1,161 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fusesource.meshkeeper.MeshKeeperFactory;
+import org.fusesource.meshkeeper.util.internal.HexSupport;
+import org.fusesource.meshkeeper.util.internal.ProcessSupport;
+
+/**
+ * ClassDataSharing
+ * <p>
+ * Manages the class data sharing archives used to speed up the start up of
+ * launched jvms that share a bootstrap classpath. Archives are kept in the
+ * host wide classloader cache and keyed by the jvm and the classpath (whose
+ * cached elements are named by fingerprint). The first launch with a given key
+ * dumps the archive when it exits, and later launches map it.
+ * </p>
+ * <p>
+ * Each jvm is asked once whether it supports dynamic archives, and the options
+ * are only added for those that do. If a jvm doesn't produce an archive the
+ * failure is recorded so that later launches don't try again.
+ * </p>
+ *
+ * @author cmacnaug
+ * @version 1.0
+ */
+public class ClassDataSharing {
+
+    private static final Log LOG = LogFactory.getLog(ClassDataSharing.class);
+
+    /**
+     * Set this system property to false on an agent to stop it from using
+     * class data sharing archives for launched jvms.
+     */
+    public static final String CDS_ENABLED_PROP = "meshkeeper.launcher.cds";
+
+    /**
+     * The process properties holding the jvm options to add to the launch.
+     */
+    public static final String CDS_ARCHIVE_PROPERTY = "bootstrap.cds.archive";
+
+    /**
+     * How long a jvm is given to dump an archive before another launch may
+     * try.
+     */
+    static final long DUMP_TIMEOUT = 1000 * 60 * 10;
+
+    // Whether each jvm supports dynamic archives:
+    private static final ConcurrentHashMap<String, Boolean> SUPPORTED = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Sets the process properties that add class data sharing options for the
+     * given launch.
+     *
+     * @param processProperties
+     *            The launch's process properties.
+     * @param jvm
+     *            The jvm that will be launched.
+     * @param classpath
+     *            The classpath the jvm will be launched with.
+     */
+    public static void configure(Properties processProperties, String jvm, List<String> classpath) {
+        if ("false".equals(System.getProperty(CDS_ENABLED_PROP)) || !isSupported(jvm)) {
+            return;
+        }
+        try {
+            File dir = new File(MeshKeeperFactory.getDefaultClassLoaderCacheDirectory(), "cds");
+            dir.mkdirs();
+
+            String key = key(jvm, classpath);
+            File archive = new File(dir, key + ".jsa");
+            File lock = new File(dir, key + ".dumping");
+            File failed = new File(dir, key + ".failed");
+            String option = null;
+            if (archive.exists()) {
+                option = "-XX:SharedArchiveFile=" + archive.getCanonicalPath();
+            } else if (!failed.exists()) {
+                if (lock.exists() && System.currentTimeMillis() - lock.lastModified() > DUMP_TIMEOUT) {
+                    // The jvm didn't dump it, so don't try again:
+                    LOG.info("No class data sharing archive was dumped by " + jvm + ", launches with this classpath won't use one");
+                    if (!lock.renameTo(failed)) {
+                        failed.createNewFile();
+                    }
+                }
+                // Only one launch dumps the archive:
+                else if (lock.createNewFile()) {
+                    option = "-XX:ArchiveClassesAtExit=" + archive.getCanonicalPath();
+                }
+            }
+
+            if (option != null) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Using class data sharing option: " + option);
+                }
+                processProperties.put(CDS_ARCHIVE_PROPERTY, option);
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to set up class data sharing: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Asks the jvm, once, whether it has the dynamic archive options.
+     */
+    private static boolean isSupported(String jvm) {
+        Boolean supported = SUPPORTED.get(jvm);
+        if (supported == null) {
+            supported = Boolean.FALSE;
+            try {
+                Process process = Runtime.getRuntime().exec(new String[] { jvm, "-XX:+PrintFlagsFinal", "-version" });
+                String flags = ProcessSupport.caputure(process);
+                supported = flags != null && flags.indexOf(" ArchiveClassesAtExit ") >= 0;
+            } catch (Exception e) {
+                LOG.warn("Unable to check class data sharing support of " + jvm + ": " + e.getMessage());
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Class data sharing archives supported by " + jvm + ": " + supported);
+            }
+            SUPPORTED.put(jvm, supported);
+        }
+        return supported;
+    }
+
+    private static String key(String jvm, List<String> classpath) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(jvm.getBytes("UTF-8"));
+            for (String element : classpath) {
+                md.update((byte) 0);
+                md.update(element.getBytes("UTF-8"));
+            }
+            return HexSupport.toHexFromBytes(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+    }
+}
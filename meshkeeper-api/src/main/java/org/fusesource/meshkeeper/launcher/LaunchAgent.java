@@ -25,6 +25,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -34,6 +35,7 @@ import org.fusesource.meshkeeper.MeshKeeper;
 import org.fusesource.meshkeeper.MeshKeeperFactory;
 import org.fusesource.meshkeeper.MeshProcess;
 import org.fusesource.meshkeeper.MeshProcessListener;
+import org.fusesource.meshkeeper.classloader.basic.PeerBlobServer;
 import org.fusesource.meshkeeper.util.internal.FileSupport;
 
 /**
@@ -44,6 +46,12 @@ public class LaunchAgent implements LaunchAgentService {
     public static final String LOCAL_REPO_PROP = "org.fusesource.testrunner.localRepoDir";
     public static final Log LOG = LogFactory.getLog(LaunchAgent.class);
 
+    /**
+     * Set this system property to false to stop the agent from serving its
+     * classloader cache to other agents.
+     */
+    public static final String PEER_DISTRIBUTION_PROP = "meshkeeper.classloader.peer";
+
     static final public String PROPAGATED_SYSTEM_PROPERTIES[] = new String[] { "meshkeeper.home", "meshkeeper.base", "mop.base", "mop.online", "mop.allways-check-local-repo" };
 
     private String exclusiveOwner;
@@ -61,6 +69,8 @@ public class LaunchAgent implements LaunchAgentService {
 
     private Monitor monitor = new Monitor(this);
     private MeshKeeper meshKeeper;
+    private PeerBlobServer peerServer;
+    private MeshContainerPool containerPool = new MeshContainerPool(this);
 
     public List<Integer> reserveTcpPorts(int count) throws Exception {
         return Arrays.asList(PortReserver.reservePorts(PortReserver.TCP, count));
@@ -91,11 +101,22 @@ public class LaunchAgent implements LaunchAgentService {
 
     public MeshProcess launch(LaunchDescription launchDescription, String sourceRegistryPath, MeshProcessListener handler) throws Exception {
         checkForRogueProcesses(10000);
+        return launch(launchDescription, sourceRegistryPath, handler, null).getProxy();
+    }
+
+    /**
+     * Launches a process with the given process properties set in addition to
+     * the host's.
+     */
+    LocalProcess launch(LaunchDescription launchDescription, String sourceRegistryPath, MeshProcessListener handler, Properties processProperties) throws Exception {
         synchronized (this) {
             int pid = pidCounter++;
 
             LocalProcess rc = createLocalProcess(launchDescription, handler, pid);
             rc.setOwnerRegistryPath(sourceRegistryPath);
+            if (processProperties != null) {
+                rc.getProcessProperties().putAll(processProperties);
+            }
             processes.put(pid, rc);
             try {
                 rc.start();
@@ -104,10 +125,18 @@ public class LaunchAgent implements LaunchAgentService {
                 throw e;
             }
 
-            return rc.getProxy();
+            return rc;
         }
     }
 
+    public MeshContainerPool.Lease acquireMeshContainer(LaunchDescription launchDescription, String sourceRegistryPath, MeshProcessListener listener) throws Exception {
+        return containerPool.acquire(launchDescription, sourceRegistryPath, listener);
+    }
+
+    public boolean releaseMeshContainer(String registryPath) throws Exception {
+        return containerPool.release(registryPath);
+    }
+
     protected LocalProcess createLocalProcess(LaunchDescription launchDescription, MeshProcessListener handler, int pid) throws Exception {
         return new LocalProcess(this, launchDescription, handler, pid);
     }
@@ -148,13 +177,25 @@ public class LaunchAgent implements LaunchAgentService {
 
         monitor.start();
 
+        if (!"false".equals(System.getProperty(PEER_DISTRIBUTION_PROP))) {
+            try {
+                peerServer = new PeerBlobServer(meshKeeper, getAgentId(), MeshKeeperFactory.getDefaultClassLoaderCacheDirectory());
+                peerServer.start();
+            } catch (Exception e) {
+                LOG.warn("Unable to serve the classloader cache to peers: " + e.getMessage());
+                peerServer = null;
+            }
+        }
+
+        containerPool.start();
+
         meshKeeper.distribute(getRegistryPath(), false, this);
 
         LOG.info("PROCESS LAUNCHER " + getAgentId() + " STARTED\n");
 
     }
 
-    private String getRegistryPath() {
+    String getRegistryPath() {
         return LaunchAgent.LAUNCH_AGENT_REGISTRY_PATH + "/" + getAgentId();
     }
 
@@ -171,6 +212,8 @@ public class LaunchAgent implements LaunchAgentService {
 
             started = false;
 
+            containerPool.stop();
+
             for (LocalProcess process : processes.values()) {
                 try {
                     process.kill();
@@ -184,6 +227,15 @@ public class LaunchAgent implements LaunchAgentService {
         monitor.requestCleanup();
         monitor.stop();
 
+        if (peerServer != null) {
+            try {
+                peerServer.stop();
+            } catch (Exception e) {
+                LOG.debug("Error stopping peer server", e);
+            }
+            peerServer = null;
+        }
+
         meshKeeper.undistribute(this);
 
         synchronized (this) {
@@ -255,6 +307,13 @@ public class LaunchAgent implements LaunchAgentService {
         this.meshKeeper = meshKeeper;
     }
 
+    /**
+     * @return The pool of MeshContainers kept ready by this agent.
+     */
+    public MeshContainerPool getContainerPool() {
+        return containerPool;
+    }
+
     public Map<Integer, LocalProcess> getProcesses() {
         return processes;
     }
@@ -277,6 +336,11 @@ public class LaunchAgent implements LaunchAgentService {
         HashSet<String> runningLaunchers = new HashSet<String>();
         for (LocalProcess p : runningProcs) {
 
+            //Idle pooled containers are owned by the agent:
+            if (getRegistryPath().equals(p.getOwnerRegistryPath())) {
+                continue;
+            }
+
             if (runningLaunchers.contains(runningLaunchers.contains(p.getOwnerRegistryPath()))) {
                 continue;
             }
@@ -389,5 +453,6 @@ public class LaunchAgent implements LaunchAgentService {
     public synchronized void onProcessExit(LocalProcess process, int exitValue) {
         LOG.info(process + " exited with: " + exitValue);
         processes.remove(process.getPid());
+        containerPool.onProcessExit(process);
     }
 }
\ No newline at end of file
@@ -80,5 +80,28 @@ public interface LaunchAgentService extends Distributable {
      */
     public MeshProcess launch(LaunchDescription launchDescription, String sourceRegistryPath, MeshProcessListener listener) throws Exception;
 
+    /**
+     * Hands out a MeshContainer from the agent's pool of started containers.
+     * The launch description must pass the container its registry path via
+     * the {@link MeshContainerPool#CONTAINER_PATH_PROPERTY} process property.
+     * 
+     * @param launchDescription The container's launch description
+     * @param sourceRegistryPath The launch client
+     * @param listener The process listener (should be a {@link Remoting} proxy)
+     * @return The container, or null if the pool has none ready, in which case the caller should launch one.
+     * @throws Exception
+     */
+    public MeshContainerPool.Lease acquireMeshContainer(LaunchDescription launchDescription, String sourceRegistryPath, MeshProcessListener listener) throws Exception;
+
+    /**
+     * Releases a container acquired via {@link #acquireMeshContainer} so that
+     * the agent can recycle it.
+     * 
+     * @param registryPath The registry path at which the container was handed out
+     * @return False if the container was not taken back and should be killed by the caller.
+     * @throws Exception
+     */
+    public boolean releaseMeshContainer(String registryPath) throws Exception;
+
     public HostProperties getHostProperties() throws Exception;
 }
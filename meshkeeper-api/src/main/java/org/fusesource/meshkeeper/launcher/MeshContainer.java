@@ -44,7 +44,7 @@ import org.fusesource.meshkeeper.MeshContainer.Runnable;
  * @author cmacnaug
  * @version 1.0
  */
-public class MeshContainer implements MeshContainerService, MeshContainerContext {
+public class MeshContainer implements RecyclableMeshContainerService, MeshContainerContext {
 
     private static MeshKeeper mesh;
     private static final Log LOG = LogFactory.getLog(MeshContainer.class);
@@ -54,6 +54,9 @@ public class MeshContainer implements MeshContainerService, MeshContainerContext
     private String name;
 
     private CountDownLatch closeLatch = new CountDownLatch(1);
+    private DistributionRef<MeshContainerService> ref;
+    private int reuses;
+    private long baselineHeap;
 
     private MeshContainer(String name) {
         this.name = name;
@@ -98,11 +101,54 @@ public class MeshContainer implements MeshContainerService, MeshContainerContext
             try {
                 mesh.remoting().unexport(d);
             } finally {
+                hosted.remove(name);
                 destroyObject(d);
             }
         }
     }
 
+    public synchronized boolean recycle(String path, int maxReuses, long maxHeapGrowth) throws Exception {
+        for (String hostedName : new ArrayList<String>(hosted.keySet())) {
+            try {
+                unhost(hostedName);
+            } catch (Exception e) {
+                LOG.warn("Error unhosting " + hostedName + " while recycling", e);
+            }
+        }
+        hosted.clear();
+
+        reuses++;
+        if (maxReuses > 0 && reuses > maxReuses) {
+            LOG.debug(this + " reached its reuse limit: " + maxReuses);
+            return false;
+        }
+
+        // Classes are defined by the bootstrap class loader, which is kept,
+        // so their static state survives recycling:
+        if (maxHeapGrowth > 0) {
+            System.gc();
+            long growth = usedHeap() - baselineHeap;
+            if (growth > maxHeapGrowth) {
+                LOG.debug(this + " heap grew by " + growth + " bytes, exceeding: " + maxHeapGrowth);
+                return false;
+            }
+        }
+
+        // Keep the exported proxy, just move its registration:
+        mesh.registry().addRegistryObject(path, false, (Serializable) ref.getProxy());
+        mesh.registry().removeRegistryData(name, false);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Recycled MeshContainer " + name + " as " + path + " [reuses = " + reuses + "]");
+        }
+        name = path;
+        return true;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
     /**
      * Runs the {@link Runnable} in the container. The {@link Runnable} must
      * also implement {@link Serializable}.
@@ -236,10 +282,14 @@ public class MeshContainer implements MeshContainerService, MeshContainerContext
             } else {
                 MeshContainer.mesh = MeshKeeperFactory.createMeshKeeper();
             }
-            DistributionRef<MeshContainerService> ref = MeshContainer.getMeshKeeper().distribute(path, false, (MeshContainerService) container, MeshContainerService.class);
+            //Measured the same way as in recycle():
+            System.gc();
+            container.baselineHeap = usedHeap();
+            DistributionRef<MeshContainerService> ref = MeshContainer.getMeshKeeper().distribute(path, false, (MeshContainerService) container, RecyclableMeshContainerService.class);
+            container.ref = ref;
             MeshContainer.LOG.debug("Started MeshContainer: " + ref.getRegistryPath() + " cl: " + container.getClass().getClassLoader());
             container.closeLatch.await();
-            MeshContainer.LOG.debug("Closing MeshContainer: " + ref.getRegistryPath() + " cl: " + container.getClass().getClassLoader());
+            MeshContainer.LOG.debug("Closing MeshContainer: " + container.name + " cl: " + container.getClass().getClassLoader());
         } catch (Throwable thrown) {
             error = error == null ? thrown : error;
             LOG.error("MeshContainer error: ", thrown);
@@ -0,0 +1,576 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.launcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fusesource.meshkeeper.LaunchDescription;
+import org.fusesource.meshkeeper.MeshProcess;
+import org.fusesource.meshkeeper.MeshProcessListener;
+import org.fusesource.meshkeeper.MeshKeeper.Launcher;
+import org.fusesource.meshkeeper.util.internal.HexSupport;
+
+/**
+ * MeshContainerPool
+ * <p>
+ * Keeps MeshContainers started and registered on a {@link LaunchAgent} so
+ * that a launch request can be handed a container immediately instead of
+ * waiting for a jvm to start, bootstrap its classpath and register. Containers
+ * are pooled by the fingerprint of their launch description, which covers the
+ * bootstrap classloader, jvm and arguments, so a container is only handed out
+ * for a launch it could have been started for.
+ * </p>
+ * <p>
+ * A pool keeps at least its minimum number of idle containers. Each request
+ * that finds the pool empty grows it by one, up to the maximum, and idle
+ * containers above the minimum are killed once they've been idle for the idle
+ * timeout. Pools are refilled in the background after each hand out. Idle
+ * containers are owned by the agent itself, so they outlive the client whose
+ * request started them, and are owned by a client only while leased to it.
+ * </p>
+ * <p>
+ * A container that is released rather than closed by its client is recycled:
+ * it unhosts its objects and is re-registered under a new path and put back in
+ * its pool, keeping the jvm and its jit compiled code warm. Its loaded classes
+ * are kept too, along with their static state. Containers are retired once
+ * they have been reused the maximum number of times or their heap has grown
+ * past the allowed limit.
+ * </p>
+ *
+ * @author cmacnaug
+ * @version 1.0
+ */
+public class MeshContainerPool {
+
+    private static final Log LOG = LogFactory.getLog(MeshContainerPool.class);
+
+    /**
+     * The process property holding the registry path at which a launched
+     * MeshContainer registers. Launch descriptions submitted to the pool
+     * should pass it to the container with:
+     * <code>property(CONTAINER_PATH_PROPERTY, string(""))</code>.
+     */
+    public static final String CONTAINER_PATH_PROPERTY = "meshkeeper.container.path";
+
+    /**
+     * System property used to set the number of idle containers kept for
+     * each launch fingerprint.
+     */
+    public static final String MIN_SIZE_PROPERTY = "meshkeeper.launcher.pool.min";
+
+    /**
+     * System property used to set the maximum number of idle containers kept
+     * for each launch fingerprint. Setting it to 0 disables pooling.
+     */
+    public static final String MAX_SIZE_PROPERTY = "meshkeeper.launcher.pool.max";
+
+    /**
+     * System property used to set how long, in milliseconds, containers above
+     * the minimum are kept idle.
+     */
+    public static final String IDLE_TIMEOUT_PROPERTY = "meshkeeper.launcher.pool.idle";
+
+    /**
+     * Set this system property to false to kill released containers rather
+     * than recycling them.
+     */
+    public static final String RECYCLE_PROPERTY = "meshkeeper.launcher.pool.recycle";
+
+    /**
+     * System property used to set the maximum number of times a container is
+     * recycled, 0 for no limit.
+     */
+    public static final String MAX_REUSES_PROPERTY = "meshkeeper.launcher.pool.reuses";
+
+    /**
+     * System property used to set how many megabytes a recycled container's
+     * used heap may grow by before it is retired, 0 for no limit.
+     */
+    public static final String MAX_HEAP_GROWTH_PROPERTY = "meshkeeper.launcher.pool.heap";
+
+    /**
+     * A pooled container handed out to a launch client.
+     */
+    public static class Lease implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public MeshProcess process;
+        public String registryPath;
+    }
+
+    private final LaunchAgent agent;
+    private final HashMap<String, Pool> pools = new HashMap<String, Pool>();
+    private int minSize = Integer.getInteger(MIN_SIZE_PROPERTY, 0);
+    private int maxSize = Integer.getInteger(MAX_SIZE_PROPERTY, 4);
+    private long idleTimeout = Long.getLong(IDLE_TIMEOUT_PROPERTY, 1000 * 60 * 5);
+    private long registrationTimeout = 1000 * 60;
+    private boolean recycle = !"false".equals(System.getProperty(RECYCLE_PROPERTY));
+    private int maxReuses = Integer.getInteger(MAX_REUSES_PROPERTY, 50);
+    private long maxHeapGrowth = Long.getLong(MAX_HEAP_GROWTH_PROPERTY, 256) * 1024 * 1024;
+    private final HashMap<String, PooledContainer> leased = new HashMap<String, PooledContainer>();
+    private int containerCounter;
+    private ScheduledExecutorService executor;
+
+    public MeshContainerPool(LaunchAgent agent) {
+        this.agent = agent;
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, agent.getAgentId() + "-MeshContainer Pool");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1000, idleTimeout / 4);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        this.executor = executor;
+    }
+
+    public void stop() {
+        ArrayList<PooledContainer> idle = new ArrayList<PooledContainer>();
+        synchronized (this) {
+            if (executor == null) {
+                return;
+            }
+            executor.shutdownNow();
+            executor = null;
+            for (Pool pool : pools.values()) {
+                idle.addAll(pool.idle);
+                pool.idle.clear();
+            }
+            pools.clear();
+            leased.clear();
+        }
+        for (PooledContainer container : idle) {
+            container.kill();
+        }
+    }
+
+    /**
+     * Hands out an idle container started from the given launch description.
+     *
+     * @param launchDescription
+     *            The container's launch description.
+     * @param sourceRegistryPath
+     *            The launch client taking the container.
+     * @param listener
+     *            The process listener for the container.
+     * @return The container or null if none is ready, in which case the pool
+     *         starts filling so that later requests can be served.
+     */
+    public Lease acquire(LaunchDescription launchDescription, String sourceRegistryPath, MeshProcessListener listener) throws Exception {
+        if (maxSize <= 0) {
+            return null;
+        }
+
+        String key = fingerprint(launchDescription);
+        PooledContainer container = null;
+        Pool pool;
+        synchronized (this) {
+            if (executor == null) {
+                return null;
+            }
+            pool = pools.get(key);
+            if (pool == null) {
+                pool = new Pool(key, launchDescription);
+                pools.put(key, pool);
+            }
+            pool.lastUsed = System.currentTimeMillis();
+            while (!pool.idle.isEmpty() && container == null) {
+                container = pool.idle.removeFirst();
+                if (!container.process.running.get()) {
+                    container = null;
+                }
+            }
+            if (container == null) {
+                // Grow on demand:
+                pool.target = Math.min(maxSize, Math.max(minSize, pool.target + 1));
+            }
+        }
+        refill(pool);
+
+        if (container == null) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("No pooled container ready for: " + key);
+            }
+            return null;
+        }
+
+        container.process.setOwnerRegistryPath(sourceRegistryPath);
+        container.listener.delegate = listener;
+        synchronized (this) {
+            leased.put(container.registryPath, container);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Handing out pooled container " + container.registryPath + " to " + sourceRegistryPath);
+        }
+
+        Lease lease = new Lease();
+        lease.process = container.process.getProxy();
+        lease.registryPath = container.registryPath;
+        return lease;
+    }
+
+    /**
+     * Takes back a container handed out by {@link #acquire}, recycling it into
+     * its pool if possible.
+     *
+     * @param registryPath
+     *            The registry path at which the container was handed out.
+     * @return True if the container was taken back, false if the client
+     *         should kill it.
+     */
+    public boolean release(String registryPath) throws Exception {
+        PooledContainer container;
+        Pool pool;
+        synchronized (this) {
+            container = leased.remove(registryPath);
+            if (container == null || !recycle || executor == null) {
+                return false;
+            }
+            pool = pools.get(container.pool.key);
+            if (pool != container.pool) {
+                // The pool has since been dropped:
+                return false;
+            }
+        }
+
+        // Stop forwarding to the client before reusing the container:
+        container.listener.delegate = null;
+        container.process.setOwnerRegistryPath(agent.getRegistryPath());
+        String path = nextRegistryPath();
+        try {
+            if (!container.service.recycle(path, maxReuses, maxHeapGrowth)) {
+                container.kill();
+                return true;
+            }
+        } catch (Exception e) {
+            LOG.warn("Error recycling container " + registryPath + ": " + e.getMessage());
+            container.kill();
+            return true;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Recycled container " + registryPath + " as " + path);
+        }
+
+        synchronized (this) {
+            container.registryPath = path;
+            container.idleSince = System.currentTimeMillis();
+            if (executor != null && pools.get(pool.key) == pool && pool.idle.size() < maxSize) {
+                pool.idle.addLast(container);
+                container = null;
+            }
+        }
+        if (container != null) {
+            container.kill();
+        }
+        return true;
+    }
+
+    /**
+     * Called when a process launched by the agent exits.
+     */
+    synchronized void onProcessExit(LocalProcess process) {
+        for (Iterator<PooledContainer> i = leased.values().iterator(); i.hasNext();) {
+            if (i.next().process == process) {
+                i.remove();
+            }
+        }
+        for (Pool pool : pools.values()) {
+            for (Iterator<PooledContainer> i = pool.idle.iterator(); i.hasNext();) {
+                if (i.next().process == process) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts containers for the pool until it reaches its target size.
+     */
+    private void refill(final Pool pool) {
+        synchronized (this) {
+            if (executor == null) {
+                return;
+            }
+            int needed = pool.target - pool.idle.size() - pool.starting;
+            for (int i = 0; i < needed; i++) {
+                pool.starting++;
+                executor.execute(new Runnable() {
+                    public void run() {
+                        PooledContainer container = null;
+                        try {
+                            container = startContainer(pool);
+                        } catch (Throwable e) {
+                            LOG.warn("Error starting pooled MeshContainer: " + e.getMessage());
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("Error starting pooled MeshContainer", e);
+                            }
+                        }
+                        synchronized (MeshContainerPool.this) {
+                            pool.starting--;
+                            if (container != null) {
+                                if (executor != null && pools.get(pool.key) == pool) {
+                                    pool.idle.addLast(container);
+                                    container = null;
+                                }
+                            } else {
+                                // Don't keep retrying a launch that fails:
+                                pool.target = Math.min(pool.target, pool.idle.size() + pool.starting);
+                            }
+                        }
+                        if (container != null) {
+                            container.kill();
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private synchronized String nextRegistryPath() {
+        return Launcher.MESHCONTAINER_REGISTRY_PATH + "/pool-" + agent.getAgentId() + "/" + ++containerCounter;
+    }
+
+    private PooledContainer startContainer(Pool pool) throws Exception {
+        String registryPath = nextRegistryPath();
+
+        PooledContainer container = new PooledContainer(pool);
+        container.registryPath = registryPath;
+        Properties props = new Properties();
+        props.put(CONTAINER_PATH_PROPERTY, registryPath);
+        container.process = agent.launch(pool.launchDescription, agent.getRegistryPath(), container.listener, props);
+        try {
+            MeshContainerService service = agent.getMeshKeeper().registry().waitForRegistration(registryPath, registrationTimeout);
+            if (service instanceof RecyclableMeshContainerService) {
+                container.service = (RecyclableMeshContainerService) service;
+            }
+        } catch (Exception e) {
+            container.kill();
+            throw e;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Pooled container ready: " + registryPath);
+        }
+        container.idleSince = System.currentTimeMillis();
+        return container;
+    }
+
+    /**
+     * Kills containers that have been idle for longer than the idle timeout
+     * and drops pools that are no longer used.
+     */
+    private void evictIdle() {
+        ArrayList<PooledContainer> evicted = new ArrayList<PooledContainer>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (Iterator<Pool> i = pools.values().iterator(); i.hasNext();) {
+                Pool pool = i.next();
+                for (Iterator<PooledContainer> j = pool.idle.iterator(); j.hasNext();) {
+                    PooledContainer container = j.next();
+                    if (!container.process.running.get()) {
+                        j.remove();
+                    } else if (pool.idle.size() > minSize && now - container.idleSince > idleTimeout) {
+                        j.remove();
+                        evicted.add(container);
+                        pool.target = Math.max(minSize, pool.target - 1);
+                    }
+                }
+                if (pool.idle.isEmpty() && pool.starting == 0 && now - pool.lastUsed > idleTimeout) {
+                    i.remove();
+                }
+            }
+        }
+        for (PooledContainer container : evicted) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Evicting idle pooled container: " + container.registryPath);
+            }
+            container.kill();
+        }
+    }
+
+    /**
+     * Fingerprints a launch description by its serialized form.
+     */
+    static String fingerprint(LaunchDescription launchDescription) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(launchDescription);
+        oos.close();
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            return HexSupport.toHexFromBytes(md.digest(baos.toByteArray()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public void setMinSize(int minSize) {
+        this.minSize = minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public boolean isRecycle() {
+        return recycle;
+    }
+
+    public void setRecycle(boolean recycle) {
+        this.recycle = recycle;
+    }
+
+    public int getMaxReuses() {
+        return maxReuses;
+    }
+
+    public void setMaxReuses(int maxReuses) {
+        this.maxReuses = maxReuses;
+    }
+
+    public long getMaxHeapGrowth() {
+        return maxHeapGrowth;
+    }
+
+    public void setMaxHeapGrowth(long maxHeapGrowth) {
+        this.maxHeapGrowth = maxHeapGrowth;
+    }
+
+    public long getRegistrationTimeout() {
+        return registrationTimeout;
+    }
+
+    public void setRegistrationTimeout(long registrationTimeout) {
+        this.registrationTimeout = registrationTimeout;
+    }
+
+    private static class Pool {
+        final String key;
+        final LaunchDescription launchDescription;
+        final LinkedList<PooledContainer> idle = new LinkedList<PooledContainer>();
+        int starting;
+        int target;
+        long lastUsed;
+
+        Pool(String key, LaunchDescription launchDescription) {
+            this.key = key;
+            this.launchDescription = launchDescription;
+        }
+    }
+
+    private static class PooledContainer {
+        final Pool pool;
+        final HandOffListener listener = new HandOffListener();
+        LocalProcess process;
+        RecyclableMeshContainerService service;
+        String registryPath;
+        long idleSince;
+
+        PooledContainer(Pool pool) {
+            this.pool = pool;
+        }
+
+        void kill() {
+            try {
+                process.kill();
+            } catch (Exception e) {
+                LOG.debug("Error killing pooled container " + registryPath, e);
+            }
+        }
+    }
+
+    /**
+     * Forwards process events to the listener of the client the container was
+     * handed out to, and logs them until then.
+     */
+    private static class HandOffListener implements MeshProcessListener {
+        volatile MeshProcessListener delegate;
+
+        public void onProcessError(Throwable thrown) {
+            MeshProcessListener delegate = this.delegate;
+            if (delegate != null) {
+                delegate.onProcessError(thrown);
+            } else {
+                LOG.warn("Pooled container error", thrown);
+            }
+        }
+
+        public void onProcessExit(int exitCode) {
+            MeshProcessListener delegate = this.delegate;
+            if (delegate != null) {
+                delegate.onProcessExit(exitCode);
+            }
+        }
+
+        public void onProcessInfo(String message) {
+            MeshProcessListener delegate = this.delegate;
+            if (delegate != null) {
+                delegate.onProcessInfo(message);
+            } else if (LOG.isDebugEnabled()) {
+                LOG.debug(message);
+            }
+        }
+
+        public void onProcessOutput(int fd, byte[] output) {
+            MeshProcessListener delegate = this.delegate;
+            if (delegate != null) {
+                delegate.onProcessOutput(fd, output);
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.launcher;
+
+/**
+ * RecyclableMeshContainerService
+ * <p>
+ * The interface used by a {@link LaunchAgent}'s {@link MeshContainerPool} to
+ * reset a released container so that it can be handed out again.
+ * </p>
+ *
+ * @author cmacnaug
+ * @version 1.0
+ */
+public interface RecyclableMeshContainerService extends MeshContainerService {
+
+    /**
+     * Unhosts all the container's objects and re-registers it at the given
+     * path. The container keeps its class loaders, so static state left by
+     * the objects it hosted remains.
+     *
+     * @param path
+     *            The path at which to re-register the container.
+     * @param maxReuses
+     *            The number of times a container may be recycled, or 0 for no
+     *            limit.
+     * @param maxHeapGrowth
+     *            The number of bytes the container's used heap may grow by
+     *            since it started, or 0 for no limit.
+     * @return False if the container has reached one of its limits, in which
+     *         case it is not re-registered and should be killed.
+     * @throws Exception
+     *             If the container could not be reset.
+     */
+    public boolean recycle(String path, int maxReuses, long maxHeapGrowth) throws Exception;
+
+}
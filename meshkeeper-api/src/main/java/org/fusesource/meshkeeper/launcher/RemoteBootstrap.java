@@ -20,6 +20,7 @@ import org.fusesource.meshkeeper.MeshKeeper;
 import org.fusesource.meshkeeper.MeshKeeperFactory;
 import org.fusesource.meshkeeper.classloader.ClassLoaderFactory;
 import org.fusesource.meshkeeper.classloader.Marshalled;
+import org.fusesource.meshkeeper.classloader.basic.BasicClassLoaderFactory;
 
 import java.io.File;
 import java.lang.reflect.InvocationTargetException;
@@ -85,6 +86,8 @@ public class RemoteBootstrap {
                     } catch (Exception e) {
                         throw new SyntaxException("Expected a directoy after the --cache option.");
                     }
+                } else if (arg.equals("--lazy")) {
+                    System.setProperty(BasicClassLoaderFactory.LAZY_PROPERTY, "true");
                 } else if (arg.equals("--distributor")) {
                     try {
                         main.setDistributor(alist.removeFirst());
@@ -123,7 +126,7 @@ public class RemoteBootstrap {
                 }
             }
             if (main.getCache() == null) {
-                throw new SyntaxException("--cache not specified.");
+                main.setCache(MeshKeeperFactory.getDefaultClassLoaderCacheDirectory().getCanonicalFile());
             }
             if (main.getDistributor() == null) {
                 throw new SyntaxException("--distributor not specified.");
@@ -0,0 +1,185 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.distribution.registry.mkreg;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fusesource.meshkeeper.MavenTestSupport;
+import org.fusesource.meshkeeper.RegistryDiffWatcher;
+import org.fusesource.meshkeeper.distribution.registry.RegistryClient;
+
+/**
+ * MKRegistryTest
+ * <p>
+ * Description:
+ * </p>
+ *
+ * @author cmacnaug
+ * @version 1.0
+ */
+public class MKRegistryTest extends TestCase {
+
+    Log LOG = LogFactory.getLog(MKRegistryTest.class);
+
+    RegistryClient client;
+    MKRegistryServer server;
+
+    protected void setUp() throws Exception {
+        server = (MKRegistryServer) new MKRegistryServerFactory().createPlugin("tcp://localhost:0");
+        server.setDirectory(MavenTestSupport.getDataDirectory(MKRegistryTest.class.getSimpleName()).getCanonicalPath());
+        server.start();
+
+        client = new MKRegistryFactory().createPlugin(server.getServiceUri());
+    }
+
+    protected void tearDown() throws Exception {
+        client.destroy();
+        server.destroy();
+    }
+
+    public void testAddData() throws Exception {
+        LOG.info("Running: testAddData");
+
+        client.addRegistryObject("/add/foo/1", false, new TestObject());
+        TestObject o = client.getRegistryObject("/add/foo/1");
+        assertNotNull(o);
+
+        client.removeRegistryData("/add/foo/1", false);
+        assertNull(client.getRegistryObject("/add/foo/1"));
+    }
+
+    public void testNullData() throws Exception {
+        LOG.info("Running: testNullData");
+
+        String path = client.addRegistryData("/null/node", true, null);
+        assertNull(client.getRegistryData(path));
+        assertNull(client.getRegistryObject(path));
+    }
+
+    public void testSequentialNodes() throws Exception {
+        LOG.info("Running: testSequentialNodes");
+
+        String first = client.addRegistryData("/sequential/node", true, new byte[] { 1 });
+        String second = client.addRegistryData("/sequential/node", true, new byte[] { 2 });
+        assertTrue(first, first.startsWith("/sequential/node"));
+        assertTrue(second, second.startsWith("/sequential/node"));
+        assertFalse(first.equals(second));
+        assertEquals(2, client.getRegistryData(second)[0]);
+    }
+
+    public void testRegistryWatcher() throws Exception {
+        LOG.info("Running: testRegistryWatcher");
+
+        Runnable r = new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(1000);
+                    client.addRegistryObject("/temp/foo/1", false, new TestObject());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+
+        Thread t = new Thread(r);
+        t.start();
+
+        assertNotNull(client.waitForRegistration("/temp/foo/1", 20000));
+    }
+
+    public void testEphemeralNodes() throws Exception {
+        LOG.info("Running: testEphemeralNodes");
+
+        final List<String> removed = new ArrayList<String>();
+        RegistryDiffWatcher watcher = new RegistryDiffWatcher() {
+            public void onChildrenChanged(String path, List<String> a, List<String> r) {
+                synchronized (removed) {
+                    removed.addAll(r);
+                    removed.notifyAll();
+                }
+            }
+        };
+        client.addRegistryWatcher("/ephemeral", watcher);
+
+        //Nodes are removed when the connection that added them closes:
+        RegistryClient other = new MKRegistryFactory().createPlugin(server.getServiceUri());
+        try {
+            other.addRegistryObject("/ephemeral/foo", false, new TestObject());
+            assertNotNull(client.getRegistryObject("/ephemeral/foo"));
+        } finally {
+            other.destroy();
+        }
+
+        synchronized (removed) {
+            long timeout = System.currentTimeMillis() + 10000;
+            while (removed.isEmpty() && System.currentTimeMillis() < timeout) {
+                removed.wait(500);
+            }
+        }
+        assertEquals(Arrays.asList("foo"), removed);
+        assertNull(client.getRegistryObject("/ephemeral/foo"));
+        client.removeRegistryWatcher("/ephemeral", watcher);
+    }
+
+    public void testBatchOperations() throws Exception {
+        LOG.info("Running: testBatchOperations");
+
+        ArrayList<String> paths = new ArrayList<String>();
+        ArrayList<TestObject> objects = new ArrayList<TestObject>();
+        for (int i = 0; i < 100; i++) {
+            paths.add("/batch/" + (i % 10) + "/" + i);
+            objects.add(new TestObject());
+        }
+        assertEquals(paths, client.addRegistryObjects(paths, false, objects));
+
+        paths.add("/batch/missing");
+        Map<String, TestObject> results = client.getRegistryObjects(paths);
+        assertNotNull(results.get("/batch/9/99"));
+        assertNull(results.get("/batch/missing"));
+
+        client.removeRegistryData(paths, false);
+        assertNull(client.getRegistryData("/batch/0/0"));
+        assertTrue(client.snapshot("/batch").isEmpty());
+    }
+
+    public void testSnapshot() throws Exception {
+        LOG.info("Running: testSnapshot");
+
+        client.addRegistryData("/snapshot/a/b", false, new byte[] { 1 });
+        client.addRegistryData("/snapshot/a/c", false, new byte[] { 2, 2 });
+        client.addRegistryData("/snapshot/d", false, new byte[] { 3 });
+
+        Map<String, byte[]> snapshot = client.snapshot("/snapshot");
+        assertEquals(Arrays.asList("/snapshot/a/b", "/snapshot/a/c", "/snapshot/d"), new ArrayList<String>(snapshot.keySet()));
+        assertEquals(2, snapshot.get("/snapshot/a/c").length);
+        assertTrue(client.snapshot("/snapshot/missing").isEmpty());
+    }
+
+    public static class TestObject implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+    }
+}
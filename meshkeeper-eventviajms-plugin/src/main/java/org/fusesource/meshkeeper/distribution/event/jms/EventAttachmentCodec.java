@@ -0,0 +1,51 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.distribution.event.jms;
+
+/**
+ * EventAttachmentCodec
+ * <p>
+ * Description: Converts {@link org.fusesource.meshkeeper.MeshEvent}
+ * attachments to and from the bytes sent by the {@link JMSEventClient}. The
+ * default codec uses java serialization; applications sending high volumes of
+ * simple attachments can plug in a cheaper encoding by naming a codec class in
+ * the <code>meshkeeper.event.attachmentCodec</code> system property, or with
+ * {@link JMSEventClient#setAttachmentCodec(EventAttachmentCodec)}. All the
+ * clients on a topic must use the same codec.
+ * </p>
+ * 
+ * @author cmacnaug
+ * @version 1.0
+ */
+public interface EventAttachmentCodec {
+
+    /**
+     * @param attachment
+     *            The attachment, never null.
+     * @return The encoded attachment.
+     */
+    public byte[] encode(Object attachment) throws Exception;
+
+    /**
+     * @param data
+     *            The encoded attachment.
+     * @param classLoader
+     *            The loader with which to resolve user classes, may be null.
+     * @return The attachment.
+     */
+    public Object decode(byte[] data, ClassLoader classLoader) throws Exception;
+}
@@ -17,9 +17,20 @@
 package org.fusesource.meshkeeper.distribution.event.jms;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.jms.BytesMessage;
 import javax.jms.Connection;
 import javax.jms.DeliveryMode;
 import javax.jms.JMSException;
@@ -30,7 +41,10 @@ import javax.jms.MessageProducer;
 import javax.jms.ObjectMessage;
 import javax.jms.Session;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.fusesource.meshkeeper.MeshEvent;
+import org.fusesource.meshkeeper.MeshEventFilter;
 import org.fusesource.meshkeeper.MeshEventListener;
 import org.fusesource.meshkeeper.distribution.event.AbstractEventClient;
 import org.fusesource.meshkeeper.distribution.jms.JMSProvider;
@@ -38,7 +52,26 @@ import org.fusesource.meshkeeper.distribution.jms.JMSProvider;
 /**
  * JMSEventClient
  * <p>
- * Description:
+ * Description: Sends events as JMS messages. An event is sent as a
+ * {@link BytesMessage} with its type and source as message properties and its
+ * attachment, if any, encoded by the client's {@link EventAttachmentCodec} as
+ * the body. Received messages are decoded once and the event is shared by all
+ * of the topic's listeners.
+ * </p>
+ * <p>
+ * Each topic maps to a JMS topic of the same name under the "clevent." prefix,
+ * so wildcard topics ('*' for one segment, '&gt;' for the remaining segments)
+ * map directly to the broker's wildcard destinations, and a single consumer
+ * receives the events of all of the matching topics.
+ * </p>
+ * <p>
+ * By default {@link #sendEvent(MeshEvent, String)} sends the event before
+ * returning. In async mode events are instead put on a bounded queue and sent
+ * by a pool of publisher threads, each with its own session. A publisher
+ * lingers briefly for more events once it has one, and events it picks up for
+ * the same topic, type and source are sent together as a single message. Async mode
+ * doesn't preserve the order of events; use {@link #flush()} to wait for
+ * queued events to be sent.
  * </p>
  * 
  * @author cmacnaug
@@ -46,55 +79,422 @@ import org.fusesource.meshkeeper.distribution.jms.JMSProvider;
  */
 public class JMSEventClient extends AbstractEventClient {
 
+    private static final Log LOG = LogFactory.getLog(JMSEventClient.class);
+
     private static final String topicPrefix = "clevent.";
 
+    static final String TYPE_PROPERTY = "type";
+    static final String SOURCE_PROPERTY = "source";
+    // Set on messages carrying more than one event:
+    static final String COUNT_PROPERTY = "count";
+    static final String CODEC_PROPERTY = "meshkeeper.event.attachmentCodec";
+
     private final JMSProvider provider;
-    private final Connection connection;
-    private final Session sendSession;
-    private final MessageProducer sender;
-    private final Session listenerSession;
+    private Connection connection;
+    private Session sendSession;
+    private MessageProducer sender;
+    private Session listenerSession;
 
     private final HashMap<String, TopicHandler> listeners = new HashMap<String, TopicHandler>();
+    private EventAttachmentCodec attachmentCodec;
+
+    //Async publishing:
+    private boolean async = false;
+    private int publishers = 2;
+    private int publishQueueSize = 10000;
+    private long lingerTime = 5;
+    private int maxBatchSize = 100;
+    private LinkedBlockingQueue<PendingEvent> publishQueue;
+    private final CopyOnWriteArrayList<Thread> publisherThreads = new CopyOnWriteArrayList<Thread>();
+    private final AtomicLong outstanding = new AtomicLong(0);
+    private final Object flushLock = new Object();
+    private volatile boolean closing;
 
-    JMSEventClient(JMSProvider provider, URI uri) throws JMSException {
+    JMSEventClient(JMSProvider provider) {
         this.provider = provider;
+        this.attachmentCodec = createAttachmentCodec();
+    }
+
+    /**
+     * Connects the client, once its properties have been set.
+     */
+    void connect(URI uri) throws JMSException {
         this.connection = provider.getConnection(this, uri);
         this.sendSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-        this.sender = sendSession.createProducer(null);
-        sender.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
-        sender.setTimeToLive(120000);
+        this.sender = createProducer(sendSession);
         this.listenerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+
+        if (async) {
+            publishQueue = new LinkedBlockingQueue<PendingEvent>(publishQueueSize);
+            for (int i = 0; i < publishers; i++) {
+                Thread thread = new Thread(new Publisher(), "MeshKeeper Event Publisher-" + (i + 1));
+                thread.setDaemon(true);
+                publisherThreads.add(thread);
+                thread.start();
+            }
+        }
+    }
+
+    private static MessageProducer createProducer(Session session) throws JMSException {
+        MessageProducer producer = session.createProducer(null);
+        producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+        producer.setTimeToLive(120000);
+        return producer;
+    }
+
+    private static EventAttachmentCodec createAttachmentCodec() {
+        String codec = System.getProperty(CODEC_PROPERTY);
+        if (codec == null) {
+            return new SerializingAttachmentCodec();
+        }
+        try {
+            return (EventAttachmentCodec) Thread.currentThread().getContextClassLoader().loadClass(codec).newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Unable to create event attachment codec " + codec, e);
+        }
     }
 
     public synchronized void closeEventListener(MeshEventListener listener, String topic) throws Exception {
-        TopicHandler th = listeners.get(topic);
-        if (th != null) {
-            th.listeners.remove(listener);
-            if (th.listeners.isEmpty()) {
+        for (Iterator<TopicHandler> i = listeners.values().iterator(); i.hasNext();) {
+            TopicHandler th = i.next();
+            if (th.topic.equals(topic) && th.listeners.remove(listener) && th.listeners.isEmpty()) {
                 th.close();
+                i.remove();
             }
         }
     }
 
-    public synchronized void openEventListener(MeshEventListener listener, String topic) throws Exception {
-        TopicHandler th = listeners.get(topic);
+    public void openEventListener(MeshEventListener listener, String topic) throws Exception {
+        openEventListener(listener, topic, null);
+    }
+
+    /**
+     * Opens a listener for the events on the topic that match the filter. The
+     * filter is applied by the broker as a message selector on the event's
+     * type and source properties. Listeners with the same filter share a
+     * consumer. Opening a listener that is already open on the topic replaces
+     * its filter.
+     */
+    public synchronized void openEventListener(MeshEventListener listener, String topic, MeshEventFilter filter) throws Exception {
+        String selector = filter == null ? null : filter.toSelector(TYPE_PROPERTY, SOURCE_PROPERTY);
+        String key = selector == null ? topic : topic + "?" + selector;
+        for (Iterator<Map.Entry<String, TopicHandler>> i = listeners.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<String, TopicHandler> entry = i.next();
+            TopicHandler other = entry.getValue();
+            if (!entry.getKey().equals(key) && other.topic.equals(topic) && other.listeners.remove(listener) && other.listeners.isEmpty()) {
+                other.close();
+                i.remove();
+            }
+        }
+        TopicHandler th = listeners.get(key);
         if (th == null) {
-            th = new TopicHandler(topic);
-            listeners.put(topic, th);
+            th = new TopicHandler(topic, selector);
+            listeners.put(key, th);
         }
         th.addListener(listener);
     }
 
-    public synchronized void sendEvent(MeshEvent event, String topic) throws Exception {
+    public void sendEvent(MeshEvent event, String topic) throws Exception {
+        if (closing) {
+            throw new IllegalStateException("closed");
+        }
+        if (async) {
+            outstanding.incrementAndGet();
+            try {
+                publishQueue.put(new PendingEvent(topic, event));
+            } catch (InterruptedException ie) {
+                eventsSent(1);
+                throw ie;
+            }
+            return;
+        }
 
-        sender.send(sendSession.createTopic(topicPrefix + topic), sendSession.createObjectMessage(event));
+        synchronized (sendSession) {
+            sender.send(sendSession.createTopic(topicPrefix + topic), toMessage(sendSession, event));
+        }
+    }
+
+    /**
+     * Waits for the events queued in async mode to be sent. Events queued by
+     * other threads while waiting are waited for as well.
+     */
+    public void flush() throws InterruptedException {
+        synchronized (flushLock) {
+            while (outstanding.get() > 0 && publishersAlive()) {
+                flushLock.wait(100);
+            }
+        }
+    }
+
+    private boolean publishersAlive() {
+        for (Thread thread : publisherThreads) {
+            if (thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void eventsSent(int count) {
+        if (outstanding.addAndGet(-count) == 0) {
+            synchronized (flushLock) {
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    private BytesMessage toMessage(Session session, MeshEvent event) throws Exception {
+        BytesMessage msg = session.createBytesMessage();
+        msg.setIntProperty(TYPE_PROPERTY, event.getType());
+        if (event.getSource() != null) {
+            msg.setStringProperty(SOURCE_PROPERTY, event.getSource());
+        }
+        writeAttachment(msg, event);
+        return msg;
+    }
+
+    /**
+     * Creates a message carrying several events with the same type and
+     * source, so that selectors apply to batches as they do to single events.
+     */
+    private BytesMessage toMessage(Session session, List<PendingEvent> events) throws Exception {
+        BytesMessage msg = toMessage(session, events.get(0).event);
+        msg.setIntProperty(COUNT_PROPERTY, events.size());
+        for (int i = 1; i < events.size(); i++) {
+            writeAttachment(msg, events.get(i).event);
+        }
+        return msg;
+    }
+
+    private void writeAttachment(BytesMessage msg, MeshEvent event) throws Exception {
+        Object attachment = event.getAttachment();
+        if (attachment == null) {
+            msg.writeInt(-1);
+        } else {
+            byte[] data = attachmentCodec.encode(attachment);
+            msg.writeInt(data.length);
+            msg.writeBytes(data);
+        }
+    }
+
+    private List<MeshEvent> fromMessage(Message msg) throws Exception {
+        if (msg instanceof ObjectMessage) {
+            //From a client that predates the bytes encoding:
+            return Collections.singletonList((MeshEvent) ((ObjectMessage) msg).getObject());
+        }
+        BytesMessage bytes = (BytesMessage) msg;
+        int type = bytes.getIntProperty(TYPE_PROPERTY);
+        String source = bytes.getStringProperty(SOURCE_PROPERTY);
+        int count = bytes.propertyExists(COUNT_PROPERTY) ? bytes.getIntProperty(COUNT_PROPERTY) : 1;
+        ArrayList<MeshEvent> events = new ArrayList<MeshEvent>(count);
+        for (int i = 0; i < count; i++) {
+            MeshEvent event = new MeshEvent();
+            event.setType(type);
+            event.setSource(source);
+            readAttachment(bytes, event);
+            events.add(event);
+        }
+        return events;
+    }
+
+    private void readAttachment(BytesMessage bytes, MeshEvent event) throws Exception {
+        int length = bytes.readInt();
+        if (length >= 0) {
+            byte[] data = new byte[length];
+            bytes.readBytes(data);
+            event.setAttachment(attachmentCodec.decode(data, userClassLoader));
+        }
+    }
+
+    private static class PendingEvent {
+        final String topic;
+        final MeshEvent event;
+
+        PendingEvent(String topic, MeshEvent event) {
+            this.topic = topic;
+            this.event = event;
+        }
+    }
+
+    /**
+     * Sends queued events in async mode.
+     */
+    private class Publisher implements Runnable {
+        private final ArrayList<PendingEvent> batch = new ArrayList<PendingEvent>();
+
+        public void run() {
+            Session session = null;
+            try {
+                session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                MessageProducer producer = createProducer(session);
+                while (!closing || !publishQueue.isEmpty()) {
+                    PendingEvent first = publishQueue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    linger();
+                    try {
+                        publish(session, producer);
+                    } catch (Exception e) {
+                        LOG.error("Error publishing " + batch.size() + " events", e);
+                    } finally {
+                        eventsSent(batch.size());
+                        batch.clear();
+                    }
+                }
+            } catch (Exception e) {
+                if (!closing) {
+                    LOG.error("Event publisher failed", e);
+                }
+            } finally {
+                if (session != null) {
+                    try {
+                        session.close();
+                    } catch (JMSException e) {
+                    }
+                }
+            }
+        }
+
+        /**
+         * Collects more events for the batch, waiting up to the linger time
+         * for them.
+         */
+        private void linger() throws InterruptedException {
+            publishQueue.drainTo(batch, maxBatchSize - batch.size());
+            long deadline = System.currentTimeMillis() + lingerTime;
+            while (batch.size() < maxBatchSize) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    break;
+                }
+                PendingEvent next = publishQueue.poll(wait, TimeUnit.MILLISECONDS);
+                if (next == null) {
+                    break;
+                }
+                batch.add(next);
+                publishQueue.drainTo(batch, maxBatchSize - batch.size());
+            }
+        }
+
+        private void publish(Session session, MessageProducer producer) throws Exception {
+            LinkedHashMap<String, List<PendingEvent>> groups = new LinkedHashMap<String, List<PendingEvent>>();
+            for (PendingEvent pending : batch) {
+                String key = pending.event.getType() + ":" + pending.event.getSource() + ":" + pending.topic;
+                List<PendingEvent> group = groups.get(key);
+                if (group == null) {
+                    group = new ArrayList<PendingEvent>();
+                    groups.put(key, group);
+                }
+                group.add(pending);
+            }
+
+            for (List<PendingEvent> group : groups.values()) {
+                Message msg;
+                if (group.size() == 1) {
+                    msg = toMessage(session, group.get(0).event);
+                } else {
+                    msg = toMessage(session, group);
+                }
+                producer.send(session.createTopic(topicPrefix + group.get(0).topic), msg);
+            }
+        }
+    }
+
+    public EventAttachmentCodec getAttachmentCodec() {
+        return attachmentCodec;
+    }
+
+    /**
+     * Sets the codec used to encode and decode event attachments. Defaults to
+     * the class named by the meshkeeper.event.attachmentCodec system property,
+     * or to {@link SerializingAttachmentCodec}.
+     */
+    public void setAttachmentCodec(EventAttachmentCodec attachmentCodec) {
+        this.attachmentCodec = attachmentCodec;
     }
 
     public void start() {
         //No-Op
     }
 
-    public synchronized void destroy() throws Exception {
+    public boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * @param async
+     *            True to queue events and send them from publisher threads.
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public int getPublishers() {
+        return publishers;
+    }
+
+    /**
+     * @param publishers
+     *            The number of publisher threads, each with its own session,
+     *            used in async mode.
+     */
+    public void setPublishers(int publishers) {
+        this.publishers = publishers;
+    }
+
+    public int getPublishQueueSize() {
+        return publishQueueSize;
+    }
+
+    /**
+     * @param publishQueueSize
+     *            The number of events that can be queued in async mode before
+     *            senders block.
+     */
+    public void setPublishQueueSize(int publishQueueSize) {
+        this.publishQueueSize = publishQueueSize;
+    }
+
+    public long getLingerTime() {
+        return lingerTime;
+    }
+
+    /**
+     * @param lingerTime
+     *            The number of milliseconds a publisher waits for more events
+     *            to send with the first one it takes.
+     */
+    public void setLingerTime(long lingerTime) {
+        this.lingerTime = lingerTime;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @param maxBatchSize
+     *            The most events a publisher sends in one go.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public void destroy() throws Exception {
+        closing = true;
+        flush();
+        for (Thread thread : publisherThreads) {
+            thread.join(5000);
+        }
+        synchronized (this) {
+            publisherThreads.clear();
+            destroyConnection();
+        }
+    }
+
+    private void destroyConnection() throws Exception {
         sendSession.close();
         listenerSession.close();
         listeners.clear();
@@ -103,15 +503,21 @@ public class JMSEventClient extends AbstractEventClient {
 
     private class TopicHandler implements MessageListener {
 
-        private HashSet<MeshEventListener> listeners = new HashSet<MeshEventListener>(1);
+        private final CopyOnWriteArraySet<MeshEventListener> listeners = new CopyOnWriteArraySet<MeshEventListener>();
         private final MessageConsumer consumer;
+        private final String topic;
 
-        TopicHandler(String topic) throws JMSException {
-            consumer = listenerSession.createConsumer(listenerSession.createTopic(topicPrefix + topic));
+        TopicHandler(String topic, String selector) throws JMSException {
+            this.topic = topic;
+            if (selector == null) {
+                consumer = listenerSession.createConsumer(listenerSession.createTopic(topicPrefix + topic));
+            } else {
+                consumer = listenerSession.createConsumer(listenerSession.createTopic(topicPrefix + topic), selector);
+            }
             consumer.setMessageListener(this);
         }
 
-        public synchronized void addListener(MeshEventListener listener) {
+        public void addListener(MeshEventListener listener) {
             listeners.add(listener);
         }
 
@@ -124,15 +530,17 @@ public class JMSEventClient extends AbstractEventClient {
          * 
          * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
          */
-        public synchronized void onMessage(Message msg) {
-            for (MeshEventListener l : listeners) {
-                MeshEvent event;
-                try {
-                    event = (MeshEvent) ((ObjectMessage) msg).getObject();
+        public void onMessage(Message msg) {
+            List<MeshEvent> events;
+            try {
+                events = fromMessage(msg);
+            } catch (Exception e) {
+                LOG.error("Error decoding event", e);
+                return;
+            }
+            for (MeshEvent event : events) {
+                for (MeshEventListener l : listeners) {
                     l.onEvent(event);
-                } catch (JMSException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
                 }
             }
         }
@@ -48,8 +48,10 @@ public class JMSEventClientFactory extends EventClientFactory {
     protected EventClient createPlugin(String uri) throws Exception {
         URI providerUri = new URI(uri);
         getJMSProvider(providerUri);
-        URI connectUri = URISupport.stripScheme(providerUri);
-        return new JMSEventClient(provider, connectUri);
+        JMSEventClient client = new JMSEventClient(provider);
+        URI connectUri = applyQueryParameters(client, URISupport.stripScheme(providerUri));
+        client.connect(connectUri);
+        return client;
     }
 
     private static final JMSProvider getJMSProvider(URI providerUri) throws Exception {
@@ -0,0 +1,60 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.distribution.event.jms;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+
+import org.fusesource.meshkeeper.util.internal.ClassLoadingAwareObjectInputStream;
+
+/**
+ * SerializingAttachmentCodec
+ * <p>
+ * Description: The default {@link EventAttachmentCodec}, which uses java
+ * serialization. Attachments must be {@link java.io.Serializable}.
+ * </p>
+ * 
+ * @author cmacnaug
+ * @version 1.0
+ */
+public class SerializingAttachmentCodec implements EventAttachmentCodec {
+
+    public byte[] encode(Object attachment) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream os = new ObjectOutputStream(baos);
+        os.writeObject(attachment);
+        os.close();
+        return baos.toByteArray();
+    }
+
+    public Object decode(byte[] data, ClassLoader classLoader) throws Exception {
+        final ClassLoader[] loaders = classLoader == null ? new ClassLoader[] { Thread.currentThread().getContextClassLoader() } : new ClassLoader[] { classLoader,
+                Thread.currentThread().getContextClassLoader() };
+        ClassLoadingAwareObjectInputStream is = new ClassLoadingAwareObjectInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            protected ClassLoader[] getClassLoaders() {
+                return loaders;
+            }
+        };
+        try {
+            return is.readObject();
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -18,10 +18,12 @@ package org.fusesource.meshkeeper.packaging;
 
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.fusesource.meshkeeper.MavenTestSupport;
 import org.fusesource.meshkeeper.MeshEvent;
+import org.fusesource.meshkeeper.MeshEventFilter;
 import org.fusesource.meshkeeper.MeshEventListener;
 import org.fusesource.meshkeeper.MeshKeeper;
 
@@ -91,4 +93,68 @@ public class EventTest extends TestCase {
         }
 
     }
+
+    public void testFilteredWildcardEvents() throws Exception {
+        final CountDownLatch eventsRcvd = new CountDownLatch(2);
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        meshKeeper.eventing().openEventListener(new MeshEventListener() {
+
+            public void onEvent(MeshEvent e) {
+                if (e.getType() != 2) {
+                    failure.set(new Exception("Unexpected event type: " + e.getType()));
+                }
+                received.incrementAndGet();
+                eventsRcvd.countDown();
+            }
+
+        }, "test-wildcard.stats.>", MeshEventFilter.forTypes(2));
+
+        meshKeeper.eventing().sendEvent(new MeshEvent(1, "testSource", null), "test-wildcard.stats.a");
+        meshKeeper.eventing().sendEvent(new MeshEvent(2, "testSource", null), "test-wildcard.other");
+        meshKeeper.eventing().sendEvent(new MeshEvent(2, "testSource", null), "test-wildcard.stats.a");
+        meshKeeper.eventing().sendEvent(new MeshEvent(2, "testSource", null), "test-wildcard.stats.b.c");
+        assertTrue(eventsRcvd.await(5, TimeUnit.SECONDS));
+        Thread.sleep(500);
+
+        if (failure.get() != null) {
+            throw new Exception("Listener failed", failure.get());
+        }
+        assertEquals(2, received.get());
+    }
+
+    public void testReopenReplacesFilter() throws Exception {
+        final CountDownLatch eventRcvd = new CountDownLatch(1);
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        MeshEventListener listener = new MeshEventListener() {
+
+            public void onEvent(MeshEvent e) {
+                if (e.getType() != 2) {
+                    failure.set(new Exception("Unexpected event type: " + e.getType()));
+                }
+                received.incrementAndGet();
+                eventRcvd.countDown();
+            }
+
+        };
+
+        //The events are filtered by the broker with the default jms eventing:
+        meshKeeper.eventing().openEventListener(listener, "test-reopen", MeshEventFilter.forTypes(1));
+        meshKeeper.eventing().openEventListener(listener, "test-reopen", MeshEventFilter.forTypes(2));
+
+        meshKeeper.eventing().sendEvent(new MeshEvent(1, "testSource", null), "test-reopen");
+        meshKeeper.eventing().sendEvent(new MeshEvent(2, "testSource", null), "test-reopen");
+        assertTrue(eventRcvd.await(5, TimeUnit.SECONDS));
+        Thread.sleep(500);
+
+        if (failure.get() != null) {
+            throw new Exception("Listener failed", failure.get());
+        }
+        //Received once, not once per open:
+        assertEquals(1, received.get());
+        meshKeeper.eventing().closeEventListener(listener, "test-reopen");
+    }
 }
@@ -0,0 +1,479 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.distribution.registry.zk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.KeeperException.NoNodeException;
+import org.apache.zookeeper.KeeperException.NodeExistsException;
+import org.apache.zookeeper.KeeperException.NotEmptyException;
+import org.fusesource.meshkeeper.MeshKeeper.Registry;
+import org.fusesource.meshkeeper.util.internal.HexSupport;
+
+/**
+ * ZooKeeperBlobStore
+ * <p>
+ * Description: Keeps large registry values out of the nodes they are
+ * registered at. A value over the threshold is stored in chunks under
+ * {@link #BLOB_ROOT}, named by the SHA-1 of its content, and the registry node
+ * holds a small pointer to them instead. Readers resolve pointers and cache
+ * the values by content hash, so reading a node again only fetches the
+ * pointer. Values may optionally be compressed, in which case smaller ones are
+ * stored compressed in the node itself.
+ * </p>
+ * <p>
+ * Chunks are ephemeral nodes belonging to the writer's session, kept in a
+ * directory of their own for the session. The same value registered more than
+ * once by a session is only stored once; its chunks are removed when the last
+ * node this registry registered with it is removed, or when the session ends.
+ * The session's directory is removed with its last blob or when the store is
+ * closed, and empty directories left by sessions that ended without closing
+ * are swept when a session creates its own.
+ * </p>
+ * <p>
+ * Values that haven't been encoded are returned from {@link #decode(byte[])}
+ * as they are.
+ * </p>
+ *
+ * @author cmacnaug
+ * @version 1.0
+ */
+class ZooKeeperBlobStore {
+
+    private static final Log LOG = LogFactory.getLog(ZooKeeperBlobStore.class);
+
+    static final String BLOB_ROOT = Registry.MESH_KEEPER_ROOT + "/blobs";
+
+    private static final byte[] MAGIC = new byte[] { 'M', 'K', 'B', 'L', 'O', 'B' };
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + 2;
+    private static final byte FLAG_COMPRESSED = 0x01;
+    private static final byte FLAG_POINTER = 0x02;
+
+    private final ZooKeeper zk;
+    private final int threshold;
+    private final int chunkSize;
+    private final boolean compress;
+    private final long maxCacheBytes;
+
+    // Blobs stored by this session, and the paths registered with them:
+    private final HashMap<String, Integer> references = new HashMap<String, Integer>();
+    private final HashMap<String, String> registered = new HashMap<String, String>();
+    // Created with the first blob, once the session id is known:
+    private String sessionRoot;
+
+    // Resolved blobs by content hash:
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long cacheBytes;
+
+    /**
+     * The encoded form of a value.
+     */
+    static class Encoded {
+        final byte[] data;
+        // The hash of the blob the value was stored in, or null:
+        final String blob;
+
+        Encoded(byte[] data, String blob) {
+            this.data = data;
+            this.blob = blob;
+        }
+    }
+
+    /**
+     * @param zk
+     *            The ZooKeeper client.
+     * @param threshold
+     *            Values larger than this many bytes are stored out of line, 0
+     *            to store all values as they are.
+     * @param chunkSize
+     *            The maximum size of each chunk of an out of line value.
+     * @param compress
+     *            Whether to compress values that exceed the threshold.
+     * @param maxCacheBytes
+     *            The maximum size of the cache of resolved values.
+     */
+    ZooKeeperBlobStore(ZooKeeper zk, int threshold, int chunkSize, boolean compress, long maxCacheBytes) {
+        this.zk = zk;
+        this.threshold = threshold;
+        this.chunkSize = Math.max(1024, chunkSize);
+        this.compress = compress;
+        this.maxCacheBytes = maxCacheBytes;
+    }
+
+    /**
+     * Encodes a value to be registered, storing it out of line if it is too
+     * large. The caller must pass the result to
+     * {@link #registered(String, Encoded)} once the node is created, or to
+     * {@link #abandoned(Encoded)} if it couldn't be.
+     */
+    Encoded encode(byte[] data) throws Exception {
+        if (data == null || threshold <= 0 || data.length <= threshold) {
+            return new Encoded(data, null);
+        }
+
+        byte flags = 0;
+        byte[] payload = data;
+        if (compress) {
+            byte[] deflated = deflate(data);
+            if (deflated.length < data.length) {
+                payload = deflated;
+                flags |= FLAG_COMPRESSED;
+            }
+        }
+
+        if (payload.length + HEADER_LENGTH <= threshold) {
+            return new Encoded(concat(header(flags), payload), null);
+        }
+
+        String hash = hash(payload);
+        String blobPath = store(hash, payload);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.write(header((byte) (flags | FLAG_POINTER)));
+        out.writeUTF(blobPath);
+        out.writeInt(payload.length);
+        out.writeInt(chunkCount(payload.length));
+        out.close();
+        return new Encoded(baos.toByteArray(), hash);
+    }
+
+    synchronized void registered(String path, Encoded encoded) {
+        if (encoded.blob != null) {
+            String previous = registered.put(path, encoded.blob);
+            if (previous != null) {
+                release(previous);
+            }
+        }
+    }
+
+    synchronized void abandoned(Encoded encoded) {
+        if (encoded.blob != null) {
+            release(encoded.blob);
+        }
+    }
+
+    /**
+     * Releases the blob registered at a path that has been removed.
+     */
+    synchronized void removed(String path) {
+        String hash = registered.remove(path);
+        if (hash != null) {
+            release(hash);
+        }
+    }
+
+    /**
+     * Removes the blobs stored by this session along with the session's
+     * directory. Called before the session is closed.
+     */
+    synchronized void close() {
+        for (String hash : references.keySet()) {
+            deleteChunks(hash);
+        }
+        references.clear();
+        registered.clear();
+        deleteSessionRoot();
+    }
+
+    /**
+     * Decodes a value read from a registry node, fetching it if it is stored
+     * out of line.
+     * 
+     * @return The value, or null if it was stored out of line and has since
+     *         been removed, as if the node had been.
+     */
+    byte[] decode(byte[] stored) throws Exception {
+        if (!isEncoded(stored)) {
+            return stored;
+        }
+
+        byte flags = stored[MAGIC.length + 1];
+        byte[] payload;
+        if ((flags & FLAG_POINTER) != 0) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(stored, HEADER_LENGTH, stored.length - HEADER_LENGTH));
+            String blobPath = in.readUTF();
+            int length = in.readInt();
+            int chunks = in.readInt();
+            payload = fetch(blobPath, length, chunks);
+            if (payload == null) {
+                return null;
+            }
+        } else {
+            payload = new byte[stored.length - HEADER_LENGTH];
+            System.arraycopy(stored, HEADER_LENGTH, payload, 0, payload.length);
+        }
+
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            payload = inflate(payload);
+        }
+        return payload;
+    }
+
+    private static boolean isEncoded(byte[] stored) {
+        if (stored == null || stored.length < HEADER_LENGTH || stored[MAGIC.length] != VERSION) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (stored[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] fetch(String blobPath, int length, int chunks) throws Exception {
+        String hash = blobPath.substring(blobPath.lastIndexOf("/") + 1);
+        synchronized (cache) {
+            byte[] cached = cache.get(hash);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        byte[] payload = new byte[length];
+        int offset = 0;
+        for (int i = 0; i < chunks; i++) {
+            byte[] chunk;
+            try {
+                chunk = zk.getData(blobPath + "-" + i, false, null);
+            } catch (NoNodeException nne) {
+                //The node was removed while we were reading it:
+                return null;
+            }
+            System.arraycopy(chunk, 0, payload, offset, chunk.length);
+            offset += chunk.length;
+        }
+        if (offset != length || !hash.equals(hash(payload))) {
+            throw new IOException("Corrupt registry value at " + blobPath);
+        }
+
+        synchronized (cache) {
+            if (length <= maxCacheBytes) {
+                byte[] previous = cache.put(hash, payload);
+                cacheBytes += length;
+                if (previous != null) {
+                    //Fetched by another thread too:
+                    cacheBytes -= previous.length;
+                }
+                for (Iterator<byte[]> i = cache.values().iterator(); cacheBytes > maxCacheBytes && i.hasNext();) {
+                    cacheBytes -= i.next().length;
+                    i.remove();
+                }
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * Stores a blob unless this session already has.
+     * 
+     * @return The path of the blob.
+     */
+    private synchronized String store(String hash, byte[] payload) throws Exception {
+        Integer count = references.get(hash);
+        if (count != null) {
+            references.put(hash, count + 1);
+            return sessionRoot + "/" + hash;
+        }
+
+        if (sessionRoot == null) {
+            String root = BLOB_ROOT + "/" + Long.toHexString(zk.getSessionId());
+            createPersistent(root);
+            sessionRoot = root;
+            sweep();
+        }
+
+        int chunks = chunkCount(payload.length);
+        for (int i = 0; i < chunks; i++) {
+            int offset = i * chunkSize;
+            byte[] chunk = new byte[Math.min(chunkSize, payload.length - offset)];
+            System.arraycopy(payload, offset, chunk, 0, chunk.length);
+            String path = sessionRoot + "/" + hash + "-" + i;
+            try {
+                zk.create(path, chunk, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+            } catch (NoNodeException nne) {
+                //Swept by another session while it was still empty:
+                createPersistent(sessionRoot);
+                zk.create(path, chunk, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+            }
+        }
+        references.put(hash, 1);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Stored " + payload.length + " byte registry value in " + chunks + " chunks at " + sessionRoot + "/" + hash);
+        }
+        return sessionRoot + "/" + hash;
+    }
+
+    /**
+     * Deletes the empty directories of other sessions. Directories still
+     * holding chunks aren't empty, so ZooKeeper refuses to delete them.
+     */
+    private void sweep() {
+        try {
+            for (String child : zk.getChildren(BLOB_ROOT, false)) {
+                String path = BLOB_ROOT + "/" + child;
+                if (path.equals(sessionRoot)) {
+                    continue;
+                }
+                try {
+                    zk.delete(path, -1);
+                } catch (NotEmptyException e) {
+                } catch (NoNodeException e) {
+                }
+            }
+        } catch (Exception e) {
+            LOG.warn("Error sweeping stale registry value directories", e);
+        }
+    }
+
+    private void release(String hash) {
+        Integer count = references.get(hash);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            references.put(hash, count - 1);
+            return;
+        }
+
+        references.remove(hash);
+        deleteChunks(hash);
+        if (references.isEmpty()) {
+            deleteSessionRoot();
+        }
+    }
+
+    private void deleteChunks(String hash) {
+        int chunk = 0;
+        try {
+            while (true) {
+                zk.delete(sessionRoot + "/" + hash + "-" + chunk++, -1);
+            }
+        } catch (NoNodeException nne) {
+            //Done.
+        } catch (Exception e) {
+            LOG.warn("Error removing registry value at " + sessionRoot + "/" + hash, e);
+        }
+    }
+
+    private void deleteSessionRoot() {
+        if (sessionRoot == null) {
+            return;
+        }
+        try {
+            zk.delete(sessionRoot, -1);
+        } catch (NoNodeException nne) {
+        } catch (Exception e) {
+            LOG.warn("Error removing " + sessionRoot, e);
+        }
+        sessionRoot = null;
+    }
+
+    private void createPersistent(String path) throws KeeperException, InterruptedException {
+        try {
+            zk.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (NodeExistsException e) {
+        } catch (NoNodeException nne) {
+            createPersistent(path.substring(0, path.lastIndexOf("/")));
+            createPersistent(path);
+        }
+    }
+
+    private int chunkCount(int length) {
+        return Math.max(1, (length + chunkSize - 1) / chunkSize);
+    }
+
+    synchronized int getStoredBlobCount() {
+        return references.size();
+    }
+
+    private static byte[] header(byte flags) {
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[MAGIC.length] = VERSION;
+        header[MAGIC.length + 1] = flags;
+        return header;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] rc = new byte[a.length + b.length];
+        System.arraycopy(a, 0, rc, 0, a.length);
+        System.arraycopy(b, 0, rc, a.length, b.length);
+        return rc;
+    }
+
+    private static String hash(byte[] data) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        return HexSupport.toHexFromBytes(md.digest(data));
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 2);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                baos.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return baos.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length * 2);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed registry value");
+                }
+                baos.write(buffer, 0, count);
+            }
+            return baos.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed registry value: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -17,8 +17,8 @@
 package org.fusesource.meshkeeper.distribution.registry.zk;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.zookeeper.WatchedEvent;
@@ -26,6 +26,7 @@ import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
 import org.fusesource.meshkeeper.RegistryWatcher;
+import org.fusesource.meshkeeper.distribution.registry.RegistryWatcherDispatcher;
 
 /**
  * ZooKeeperWatcher
@@ -43,7 +44,9 @@ class ZooKeeperChildWatcher {
     private final Watcher watcher;
     private final AtomicBoolean started = new AtomicBoolean(false);
     private final ChildrenCallback callback;
-    private final HashSet<RegistryWatcher> watchers = new HashSet<RegistryWatcher>(1);
+    private final CopyOnWriteArraySet<RegistryWatcher> watchers = new CopyOnWriteArraySet<RegistryWatcher>();
+    //Keeps watcher callbacks off of ZooKeeper's event thread:
+    private final RegistryWatcherDispatcher dispatcher = new RegistryWatcherDispatcher();
 
     public ZooKeeperChildWatcher(ZooKeeper zk, String path) {
         this.zk = zk;
@@ -75,23 +78,37 @@ class ZooKeeperChildWatcher {
 
     }
     
-    private void handleChildUpdate(String path, List<String> children)
+    private void handleChildUpdate(final String path, List<String> children)
     {
         if (!started.get()) {
             return;
         }
-        if (children == null) {
-            children = new ArrayList<String>();
-        }
-        
-        for (RegistryWatcher watcher : watchers) {
-            watcher.onChildrenChanged(path, children);
-        }
+        final List<String> childList = children == null ? new ArrayList<String>() : children;
+
+        dispatcher.execute(new Runnable() {
+            public void run() {
+                for (RegistryWatcher watcher : watchers) {
+                    watcher.onChildrenChanged(path, childList);
+                }
+            }
+        });
     }
 
-    public void addWatcher(RegistryWatcher watcher) {
-        if (watchers.add(watcher)) {
-            start();
+    public void addWatcher(final RegistryWatcher watcher) {
+        if (watchers.add(watcher) && !start()) {
+            //Already watching, so just tell the new watcher the current children:
+            zk.getChildren(path, false, new ChildrenCallback() {
+                public void processResult(int rc, final String path, Object ctx, List<String> children) {
+                    final List<String> childList = children == null ? new ArrayList<String>() : children;
+                    dispatcher.execute(new Runnable() {
+                        public void run() {
+                            if (watchers.contains(watcher)) {
+                                watcher.onChildrenChanged(path, childList);
+                            }
+                        }
+                    });
+                }
+            }, null);
         }
     }
 
@@ -109,10 +126,12 @@ class ZooKeeperChildWatcher {
         return false;
     }
 
-    private void start() {
+    private boolean start() {
         if (started.compareAndSet(false, true)) {
             watch();
+            return true;
         }
+        return false;
     }
 
     private void stop() {
@@ -23,18 +23,26 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
@@ -45,6 +53,7 @@ import org.apache.zookeeper.KeeperException.NoNodeException;
 import org.apache.zookeeper.KeeperException.NodeExistsException;
 import org.apache.zookeeper.KeeperException.NotEmptyException;
 import org.apache.zookeeper.data.Stat;
+import org.fusesource.meshkeeper.RegistryDiffWatcher;
 import org.fusesource.meshkeeper.RegistryWatcher;
 import org.fusesource.meshkeeper.distribution.registry.AbstractRegistryClient;
 
@@ -60,6 +69,10 @@ import org.fusesource.meshkeeper.distribution.registry.AbstractRegistryClient;
 public class ZooKeeperRegistry extends AbstractRegistryClient {
 
     Log LOG = LogFactory.getLog(this.getClass());
+
+    //Bounds the number of parent paths remembered as existing:
+    private static final int MAX_KNOWN_PARENTS = 10000;
+
     HashMap<String, ZooKeeperChildWatcher> watcherMap = new HashMap<String, ZooKeeperChildWatcher>();
     private CountDownLatch connected = new CountDownLatch(1);
 
@@ -68,7 +81,60 @@ public class ZooKeeperRegistry extends AbstractRegistryClient {
     private String password = "";
     private long connectTimeout = 30000;
     private int sessionTimeout = 30000;
+    private int cacheSize = 0;
+    private int listConcurrency = 32;
+    private int blobThreshold = 16 * 1024;
+    private int blobChunkSize = 256 * 1024;
+    private boolean compress = false;
+    private long blobCacheSize = 16 * 1024 * 1024;
+    private volatile ZooKeeperBlobStore blobs;
     private ZooKeeper zk;
+    private volatile ZooKeeperRegistryCache cache;
+    //Parent paths this client has seen created. Batch adds skip creating
+    //these, falling back to the blocking path if one has since been removed:
+    private final ConcurrentHashMap<String, Boolean> knownParents = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Collects the results of a batch of asynchronous requests.
+     */
+    private static class Batch implements AsyncCallback.StringCallback, AsyncCallback.VoidCallback, AsyncCallback.DataCallback {
+        private final CountDownLatch done;
+        final int[] rcs;
+        final Object[] results;
+
+        Batch(int size) {
+            done = new CountDownLatch(size);
+            rcs = new int[size];
+            results = new Object[size];
+        }
+
+        public void processResult(int rc, String path, Object ctx, String name) {
+            complete(ctx, rc, name);
+        }
+
+        public void processResult(int rc, String path, Object ctx) {
+            complete(ctx, rc, null);
+        }
+
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+            complete(ctx, rc, data);
+        }
+
+        private void complete(Object ctx, int rc, Object result) {
+            int index = (Integer) ctx;
+            rcs[index] = rc;
+            results[index] = result;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            done.await();
+        }
+
+        KeeperException.Code code(int index) {
+            return KeeperException.Code.get(rcs[index]);
+        }
+    }
 
     public ZooKeeper getZooKeeper() {
         return zk;
@@ -86,11 +152,23 @@ public class ZooKeeperRegistry extends AbstractRegistryClient {
                         case SyncConnected:
                             connected.countDown();
                             break;
-
+                        case Disconnected:
+                        case Expired: {
+                            //Watches may be missed while disconnected:
+                            ZooKeeperRegistryCache c = cache;
+                            if (c != null) {
+                                c.clear();
+                            }
+                            break;
+                        }
                         }
                     }
                 });
                 zk.addAuthInfo("digest", (userid + ":" + password).getBytes());
+                blobs = new ZooKeeperBlobStore(zk, blobThreshold, blobChunkSize, compress, blobCacheSize);
+                if (cacheSize > 0) {
+                    cache = new ZooKeeperRegistryCache(zk, blobs, cacheSize);
+                }
 
             }
         }
@@ -108,8 +186,15 @@ public class ZooKeeperRegistry extends AbstractRegistryClient {
     public void destroy() throws Exception {
         synchronized (this) {
             if (zk != null) {
+                blobs.close();
                 zk.close();
             }
+            if (cache != null) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Closing " + cache);
+                }
+                cache = null;
+            }
             connected.countDown();
             connected = new CountDownLatch(1);
             zk = null;
@@ -126,6 +211,11 @@ public class ZooKeeperRegistry extends AbstractRegistryClient {
 
     @SuppressWarnings("unchecked")
     public <T> T getRegistryObject(String path) throws Exception {
+        ZooKeeperRegistryCache c = cache;
+        if (c != null) {
+            checkConnected();
+            return (T) c.getObject(path);
+        }
         byte[] data = getRegistryData(path);
         if (data == null) {
             return null;
@@ -136,9 +226,13 @@ public class ZooKeeperRegistry extends AbstractRegistryClient {
 
     public byte[] getRegistryData(String path) throws Exception {
         checkConnected();
+        ZooKeeperRegistryCache c = cache;
+        if (c != null) {
+            return c.getData(path);
+        }
         Stat stat = new Stat();
         try {
-            return zk.getData(path, false, stat);
+            return blobs.decode(zk.getData(path, false, stat));
         } catch (NoNodeException nne) {
             return null;
         }
@@ -146,27 +240,49 @@ public class ZooKeeperRegistry extends AbstractRegistryClient {
 
     public String addRegistryData(String path, boolean sequential, byte[] data) throws Exception {
         checkConnected();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Registering " + path + " length=" + (data != null ? data.length : 0));
+        }
+
+        //Large values are stored out of line:
+        ZooKeeperBlobStore.Encoded encoded = blobs.encode(data);
+        boolean created = false;
+        try {
+            String rc = create(path, sequential, encoded.data);
+            blobs.registered(rc, encoded);
+            created = true;
+            return rc;
+        } finally {
+            if (!created) {
+                blobs.abandoned(encoded);
+            }
+        }
+    }
+
+    private String create(String path, boolean sequential, byte[] data) throws Exception {
         if (LOG.isWarnEnabled() && data != null && data.length > 20000) {
             LOG.warn("Warning -- long data length for " + path + ": " + data.length);
         }
 
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("Registering " + path + " length=" + (data != null ? data.length : 0));
-        }
         try {
+            String rc;
             if (sequential) {
-                return zk.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+                rc = zk.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
             } else {
-                return zk.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+                rc = zk.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
             }
+            invalidate(rc);
+            return rc;
         } catch (NoNodeException nne) {
             createParentPath(path);
-            return addRegistryData(path, sequential, data);
+            return create(path, sequential, data);
         }
     }
 
     public void removeRegistryData(String path, boolean recursive) throws Exception {
         checkConnected();
+        invalidate(path);
+        forgetParents(Collections.singleton(path));
         try {
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Removing: " + path);
@@ -184,6 +300,7 @@ public class ZooKeeperRegistry extends AbstractRegistryClient {
                 return;
             }
             zk.delete(path, -1);
+            blobs.removed(path);
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Removed: " + path);
             }
@@ -193,6 +310,7 @@ public class ZooKeeperRegistry extends AbstractRegistryClient {
             //Done.
         } catch (NotEmptyException nee) {
             zk.setData(path, null, -1);
+            blobs.removed(path);
             //If it's not recursive and not empty, just set data null.
             if (recursive) {
                 for (String child : zk.getChildren(path, false)) {
@@ -204,51 +322,287 @@ public class ZooKeeperRegistry extends AbstractRegistryClient {
         }
     }
 
+    public List<String> addRegistryObjects(List<String> paths, boolean sequential, List<? extends Serializable> objects) throws Exception {
+        checkBatchSize(paths, objects);
+        ArrayList<byte[]> data = new ArrayList<byte[]>(objects.size());
+        for (Serializable o : objects) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream os = new ObjectOutputStream(baos);
+            os.writeObject(o);
+            os.close();
+            data.add(baos.toByteArray());
+        }
+        return addRegistryData(paths, sequential, data);
+    }
+
+    /**
+     * Adds the data with asynchronous creates so that the whole batch costs
+     * roughly one round trip. Missing parents are created first in the same
+     * pipeline; ZooKeeper executes a session's requests in order so they are
+     * in place by the time the nodes that need them are created.
+     */
+    public List<String> addRegistryData(List<String> paths, boolean sequential, List<byte[]> data) throws Exception {
+        checkConnected();
+        checkBatchSize(paths, data);
+        ZooKeeperBlobStore.Encoded[] encoded = new ZooKeeperBlobStore.Encoded[paths.size()];
+        try {
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = blobs.encode(data.get(i));
+            }
+        } catch (Exception e) {
+            for (ZooKeeperBlobStore.Encoded abandoned : encoded) {
+                if (abandoned != null) {
+                    blobs.abandoned(abandoned);
+                }
+            }
+            throw e;
+        }
+        CreateMode mode = sequential ? CreateMode.EPHEMERAL_SEQUENTIAL : CreateMode.EPHEMERAL;
+
+        //Sorted so that parents precede their children:
+        TreeSet<String> parents = new TreeSet<String>();
+        for (String path : paths) {
+            for (int ls = path.lastIndexOf("/"); ls > 1; ls = path.lastIndexOf("/", ls - 1)) {
+                String parent = path.substring(0, ls);
+                if (knownParents.containsKey(parent) || !parents.add(parent)) {
+                    break;
+                }
+            }
+        }
+
+        Batch parentBatch = new Batch(parents.size());
+        String[] parentPaths = parents.toArray(new String[parents.size()]);
+        for (int i = 0; i < parentPaths.length; i++) {
+            zk.create(parentPaths[i], null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, parentBatch, i);
+        }
+
+        Batch batch = new Batch(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Registering " + paths.get(i) + " length=" + (data.get(i) != null ? data.get(i).length : 0));
+            }
+            zk.create(paths.get(i), encoded[i].data, ZooDefs.Ids.OPEN_ACL_UNSAFE, mode, batch, i);
+        }
+
+        parentBatch.await();
+        for (int i = 0; i < parentPaths.length; i++) {
+            switch (parentBatch.code(i)) {
+            case OK:
+            case NODEEXISTS:
+                rememberParent(parentPaths[i]);
+            }
+        }
+
+        batch.await();
+        ArrayList<String> results = new ArrayList<String>(paths.size());
+        KeeperException failure = null;
+        for (int i = 0; i < paths.size(); i++) {
+            String rc = null;
+            try {
+                switch (batch.code(i)) {
+                case OK:
+                    rc = (String) batch.results[i];
+                    invalidate(rc);
+                    break;
+                case NONODE:
+                    //A parent was removed concurrently:
+                    knownParents.clear();
+                    rc = create(paths.get(i), sequential, encoded[i].data);
+                    break;
+                default:
+                    if (failure == null) {
+                        failure = KeeperException.create(batch.code(i), paths.get(i));
+                    }
+                }
+            } catch (KeeperException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            if (rc != null) {
+                blobs.registered(rc, encoded[i]);
+            } else {
+                blobs.abandoned(encoded[i]);
+            }
+            results.add(rc);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
     @SuppressWarnings("unchecked")
-    public Collection<String> list(String path, boolean recursive, String... filters) throws Exception {
-        if (filters != null) {
-            HashSet<String> filterSet = new HashSet<String>();
-            filterSet.addAll(Arrays.asList(filters));
-            return list(path, recursive, new LinkedList<String>(), filterSet);
-        } else {
-            return list(path, recursive, new LinkedList<String>(), Collections.EMPTY_LIST);
+    public <T> Map<String, T> getRegistryObjects(Collection<String> paths) throws Exception {
+        LinkedHashMap<String, T> results = new LinkedHashMap<String, T>();
+        ZooKeeperRegistryCache c = cache;
+        if (c != null) {
+            checkConnected();
+            for (String path : paths) {
+                results.put(path, (T) c.getObject(path));
+            }
+            return results;
+        }
+        for (Map.Entry<String, byte[]> entry : getRegistryData(paths).entrySet()) {
+            T o = null;
+            if (entry.getValue() != null) {
+                ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(entry.getValue()));
+                o = (T) in.readObject();
+            }
+            results.put(entry.getKey(), o);
+        }
+        return results;
+    }
+
+    public Map<String, byte[]> getRegistryData(Collection<String> paths) throws Exception {
+        checkConnected();
+        LinkedHashMap<String, byte[]> results = new LinkedHashMap<String, byte[]>();
+        ZooKeeperRegistryCache c = cache;
+        if (c != null) {
+            for (String path : paths) {
+                results.put(path, c.getData(path));
+            }
+            return results;
         }
 
+        String[] pathArray = paths.toArray(new String[paths.size()]);
+        Batch batch = new Batch(pathArray.length);
+        for (int i = 0; i < pathArray.length; i++) {
+            zk.getData(pathArray[i], false, batch, i);
+        }
+        batch.await();
+        for (int i = 0; i < pathArray.length; i++) {
+            switch (batch.code(i)) {
+            case OK:
+                results.put(pathArray[i], blobs.decode((byte[]) batch.results[i]));
+                break;
+            case NONODE:
+                results.put(pathArray[i], null);
+                break;
+            default:
+                throw KeeperException.create(batch.code(i), pathArray[i]);
+            }
+        }
+        return results;
     }
 
-    private Collection<String> list(String path, boolean recursive, Collection<String> results, Collection<String> filters) throws Exception {
-        try {
-            List<String> children = null;
-            byte[] data = zk.getData(path, false, null);
-            if (data != null && data.length > 0) {
-                results.add(path + " [" + data.length + "]");
+    /**
+     * Removes the paths with asynchronous deletes, then removes any parents
+     * left empty. Paths with children fall back to
+     * {@link #removeRegistryData(String, boolean)}.
+     */
+    public void removeRegistryData(Collection<String> paths, boolean recursive) throws Exception {
+        checkConnected();
+        String[] pathArray = paths.toArray(new String[paths.size()]);
+        Batch batch = new Batch(pathArray.length);
+        forgetParents(paths);
+        for (int i = 0; i < pathArray.length; i++) {
+            invalidate(pathArray[i]);
+            if (pathArray[i].equals("/")) {
+                batch.complete(i, KeeperException.Code.NOTEMPTY.intValue(), null);
             } else {
-                children = zk.getChildren(path, recursive);
-                if (children.size() == 0) {
-                    results.add(path + " [" + (data == null ? "-" : data.length) + "]");
-                    if (recursive) {
-                        return results;
-                    }
+                zk.delete(pathArray[i], -1, batch, i);
+            }
+        }
+        batch.await();
+
+        //Keyed by parent so each is only checked once, deepest first:
+        TreeSet<String> removed = new TreeSet<String>(Collections.reverseOrder());
+        KeeperException failure = null;
+        for (int i = 0; i < pathArray.length; i++) {
+            switch (batch.code(i)) {
+            case OK: {
+                blobs.removed(pathArray[i]);
+                int ls = pathArray[i].lastIndexOf("/");
+                if (ls > 1) {
+                    removed.add(pathArray[i].substring(0, ls));
+                }
+                break;
+            }
+            case NONODE:
+                break;
+            case NOTEMPTY:
+                removeRegistryData(pathArray[i], recursive);
+                break;
+            default:
+                if (failure == null) {
+                    failure = KeeperException.create(batch.code(i), pathArray[i]);
                 }
             }
+        }
 
-            if (recursive) {
-                children = zk.getChildren(path, recursive);
+        for (String parent : removed) {
+            try {
+                deleteEmptyAncestors(parent + "/");
+            } catch (NoNodeException nne) {
+                //Already removed with another path's ancestors.
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public Collection<String> list(String path, boolean recursive, String... filters) throws Exception {
+        Collection<String> filterSet;
+        if (filters != null) {
+            filterSet = new HashSet<String>();
+            filterSet.addAll(Arrays.asList(filters));
+        } else {
+            filterSet = Collections.EMPTY_LIST;
+        }
 
-                if (path.endsWith("/")) {
-                    path = path.substring(0, path.length() - 1);
+        if (!recursive) {
+            LinkedList<String> results = new LinkedList<String>();
+            try {
+                byte[] data = zk.getData(path, false, null);
+                if (data != null && data.length > 0) {
+                    results.add(path + " [" + data.length + "]");
+                } else if (zk.getChildren(path, false).size() == 0) {
+                    results.add(path + " [" + (data == null ? "-" : data.length) + "]");
                 }
+            } catch (NoNodeException nne) {
+            }
+            return results;
+        }
 
-                for (String child : children) {
-                    String childPath = path + "/" + child;
-                    if (!filters.remove(childPath)) {
-                        list(childPath, recursive, results, filters);
-                    }
+        final TreeMap<String, String> results = new TreeMap<String, String>();
+        new ZooKeeperSubtreeWalker(zk, listConcurrency, filterSet) {
+            protected void visit(String path, byte[] data, int children) {
+                if (data != null && data.length > 0) {
+                    results.put(path, path + " [" + data.length + "]");
+                } else if (children == 0) {
+                    results.put(path, path + " [" + (data == null ? "-" : data.length) + "]");
                 }
             }
+        }.walk(path);
+        return new LinkedList<String>(results.values());
+    }
 
-        } catch (NoNodeException nne) {
-            return results;
+    @SuppressWarnings("unchecked")
+    public Map<String, byte[]> snapshot(String path) throws Exception {
+        checkConnected();
+        final TreeMap<String, byte[]> results = new TreeMap<String, byte[]>();
+        new ZooKeeperSubtreeWalker(zk, listConcurrency, Collections.EMPTY_LIST) {
+            protected void visit(String path, byte[] data, int children) {
+                if (data != null && data.length > 0) {
+                    results.put(path, data);
+                }
+            }
+        }.walk(path);
+
+        //Resolved here rather than in the walker since ZooKeeper's event
+        //thread can't wait on the server:
+        for (Iterator<Map.Entry<String, byte[]>> i = results.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<String, byte[]> entry = i.next();
+            byte[] data = blobs.decode(entry.getValue());
+            if (data == null) {
+                //Removed since it was read:
+                i.remove();
+            } else {
+                entry.setValue(data);
+            }
         }
         return results;
     }
@@ -276,6 +630,9 @@ public class ZooKeeperRegistry extends AbstractRegistryClient {
         } else if (w.removeWatcher(watcher)) {
             watcherMap.remove(path);
         }
+        if (watcher instanceof RegistryDiffWatcher) {
+            ((RegistryDiffWatcher) watcher).reset(path);
+        }
     }
 
     /**
@@ -297,6 +654,7 @@ public class ZooKeeperRegistry extends AbstractRegistryClient {
 
             try {
                 zk.delete(parent, -1);
+                knownParents.remove(parent);
                 if (LOG.isDebugEnabled()) {
                     LOG.debug("Removed: " + parent);
                 }
@@ -319,17 +677,61 @@ public class ZooKeeperRegistry extends AbstractRegistryClient {
 
                 zk.create(parent, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
             } catch (NodeExistsException e) {
+                rememberParent(parent);
                 return;
             } catch (NoNodeException nne) {
                 createParentPath(parent);
                 zk.create(parent, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
             }
+            rememberParent(parent);
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Created: " + parent);
             }
         }
     }
 
+    private void rememberParent(String parent) {
+        if (knownParents.size() >= MAX_KNOWN_PARENTS) {
+            knownParents.clear();
+        }
+        knownParents.put(parent, Boolean.TRUE);
+    }
+
+    /**
+     * Forgets the paths being removed, and their descendants, as known
+     * parents. Ancestors are forgotten as they're found empty and deleted.
+     */
+    private void forgetParents(Collection<String> paths) {
+        if (knownParents.isEmpty()) {
+            return;
+        }
+        if (paths.contains("/")) {
+            knownParents.clear();
+            return;
+        }
+        HashSet<String> removed = new HashSet<String>(paths);
+        for (Iterator<String> i = knownParents.keySet().iterator(); i.hasNext();) {
+            //Check the known parent and each of its ancestors:
+            for (String p = i.next(); p.length() > 0; p = p.substring(0, p.lastIndexOf('/'))) {
+                if (removed.contains(p)) {
+                    i.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops a path this client has changed from the cache rather than waiting
+     * for its watch to fire.
+     */
+    private void invalidate(String path) {
+        ZooKeeperRegistryCache c = cache;
+        if (c != null) {
+            c.invalidate(path);
+        }
+    }
+
     private void checkConnected() throws Exception {
         if (connected.getCount() > 0) {
             throw new Exception("Not Connected");
@@ -376,6 +778,133 @@ public class ZooKeeperRegistry extends AbstractRegistryClient {
         this.sessionTimeout = sessionTimeout;
     }
 
+    public int getListConcurrency() {
+        return listConcurrency;
+    }
+
+    /**
+     * Sets the maximum number of nodes read at once when listing or taking a
+     * snapshot of a subtree.
+     * 
+     * @param listConcurrency
+     *            The maximum number of nodes to read at once.
+     */
+    public void setListConcurrency(int listConcurrency) {
+        this.listConcurrency = listConcurrency;
+    }
+
+    public int getBlobThreshold() {
+        return blobThreshold;
+    }
+
+    /**
+     * Sets the size above which values are stored out of line, with the
+     * registry node holding a pointer to them. 0 stores all values in their
+     * nodes. Must be set before the registry is started.
+     * 
+     * @param blobThreshold
+     *            The threshold in bytes.
+     */
+    public void setBlobThreshold(int blobThreshold) {
+        this.blobThreshold = blobThreshold;
+    }
+
+    public int getBlobChunkSize() {
+        return blobChunkSize;
+    }
+
+    /**
+     * Sets the maximum size of the nodes an out of line value is split into.
+     * 
+     * @param blobChunkSize
+     *            The chunk size in bytes.
+     */
+    public void setBlobChunkSize(int blobChunkSize) {
+        this.blobChunkSize = blobChunkSize;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /**
+     * Sets whether values over the blob threshold are compressed. Those that
+     * compress to below the threshold are then kept in their nodes.
+     * 
+     * @param compress
+     *            True to compress large values.
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    public long getBlobCacheSize() {
+        return blobCacheSize;
+    }
+
+    /**
+     * Sets the number of bytes of out of line values that are cached once
+     * read.
+     * 
+     * @param blobCacheSize
+     *            The cache size in bytes.
+     */
+    public void setBlobCacheSize(long blobCacheSize) {
+        this.blobCacheSize = blobCacheSize;
+    }
+
+    /**
+     * @return The maximum number of paths held in the read cache.
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Enables caching of registry data and objects read through this
+     * registry. Cached paths are invalidated by ZooKeeper watches when they
+     * change. Must be set before the registry is started; 0 (the default)
+     * disables the cache.
+     * 
+     * @param cacheSize
+     *            The maximum number of paths to cache.
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * @return The number of reads served from the cache.
+     */
+    public long getCacheHits() {
+        ZooKeeperRegistryCache c = cache;
+        return c == null ? 0 : c.getHits();
+    }
+
+    /**
+     * @return The number of reads that went to the server.
+     */
+    public long getCacheMisses() {
+        ZooKeeperRegistryCache c = cache;
+        return c == null ? 0 : c.getMisses();
+    }
+
+    /**
+     * @return The number of cached paths invalidated because they changed.
+     */
+    public long getCacheInvalidations() {
+        ZooKeeperRegistryCache c = cache;
+        return c == null ? 0 : c.getInvalidations();
+    }
+
+    /**
+     * @return The number of cached paths evicted to bound the cache size.
+     */
+    public long getCacheEvictions() {
+        ZooKeeperRegistryCache c = cache;
+        return c == null ? 0 : c.getEvictions();
+    }
+
     public String toString() {
         return "ZooKeeperRegistry@" + connectUrl;
     }
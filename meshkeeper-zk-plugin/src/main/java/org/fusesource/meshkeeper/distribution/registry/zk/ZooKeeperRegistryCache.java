@@ -0,0 +1,245 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.distribution.registry.zk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.KeeperException.NoNodeException;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * ZooKeeperRegistryCache
+ * <p>
+ * Description: A read through cache of registry data and the objects
+ * deserialized from it. Each cached path has a ZooKeeper data watch set on it
+ * (or an exists watch if the node doesn't exist) and is invalidated when the
+ * watch fires, so reads only go to the server after the node has changed. The
+ * whole cache is cleared when the connection is lost since watches may be
+ * missed while disconnected.
+ * </p>
+ * <p>
+ * Invalidated entries are kept until they are re-read, and if the node is
+ * still at the same version with the same data its deserialized object is
+ * reused rather than deserialized again.
+ * </p>
+ * <p>
+ * Deserialized objects are shared by all the callers reading the same
+ * version of a node, so they shouldn't be modified.
+ * </p>
+ *
+ * @author cmacnaug
+ * @version 1.0
+ */
+class ZooKeeperRegistryCache {
+
+    private static final Log LOG = LogFactory.getLog(ZooKeeperRegistryCache.class);
+
+    private static final Object MISSING = new Object();
+
+    private final ZooKeeper zk;
+    private final ZooKeeperBlobStore blobs;
+    private final int maxEntries;
+    private final LinkedHashMap<String, Entry> entries;
+    // Paths being read from the server. An invalidation removes the path so
+    // that a read racing with it isn't cached:
+    private final HashMap<String, Object> loading = new HashMap<String, Object>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final Watcher watcher = new Watcher() {
+        public void process(WatchedEvent event) {
+            switch (event.getType()) {
+            case None: {
+                if (event.getState() != Watcher.Event.KeeperState.SyncConnected) {
+                    clear();
+                }
+                break;
+            }
+            default: {
+                if (event.getPath() != null) {
+                    invalidate(event.getPath());
+                }
+            }
+            }
+        }
+    };
+
+    private static class Entry {
+        final byte[] data;
+        final int version;
+        // The deserialized data, MISSING if it hasn't been deserialized:
+        Object object = MISSING;
+        // Set once the node has changed:
+        boolean stale;
+
+        Entry(byte[] data, int version) {
+            this.data = data;
+            this.version = version;
+        }
+    }
+
+    ZooKeeperRegistryCache(ZooKeeper zk, ZooKeeperBlobStore blobs, int maxEntries) {
+        this.zk = zk;
+        this.blobs = blobs;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, ZooKeeperRegistryCache.Entry> eldest) {
+                if (size() > ZooKeeperRegistryCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return The data at the path or null if the node doesn't exist.
+     */
+    byte[] getData(String path) throws Exception {
+        return getEntry(path).data;
+    }
+
+    /**
+     * @return The object at the path or null if the node doesn't exist.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T getObject(String path) throws Exception {
+        Entry entry = getEntry(path);
+        synchronized (entry) {
+            if (entry.object == MISSING) {
+                if (entry.data == null) {
+                    entry.object = null;
+                } else {
+                    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(entry.data));
+                    entry.object = in.readObject();
+                }
+            }
+            return (T) entry.object;
+        }
+    }
+
+    private Entry getEntry(String path) throws Exception {
+        Object token = new Object();
+        Entry previous;
+        synchronized (this) {
+            previous = entries.get(path);
+            if (previous != null && !previous.stale) {
+                hits.incrementAndGet();
+                return previous;
+            }
+            loading.put(path, token);
+        }
+        misses.incrementAndGet();
+
+        Entry entry = null;
+        try {
+            while (entry == null) {
+                Stat stat = new Stat();
+                try {
+                    byte[] data = zk.getData(path, watcher, stat);
+                    entry = new Entry(blobs.decode(data), stat.getVersion());
+                } catch (NoNodeException nne) {
+                    // Watch for the node being created:
+                    if (zk.exists(path, watcher) == null) {
+                        entry = new Entry(null, -1);
+                    }
+                }
+            }
+        } finally {
+            if (entry == null) {
+                synchronized (this) {
+                    if (loading.get(path) == token) {
+                        loading.remove(path);
+                    }
+                }
+            }
+        }
+
+        if (previous != null && previous.version == entry.version && Arrays.equals(previous.data, entry.data)) {
+            synchronized (previous) {
+                entry.object = previous.object;
+            }
+        }
+
+        synchronized (this) {
+            if (loading.get(path) == token) {
+                loading.remove(path);
+                entries.put(path, entry);
+            }
+        }
+        return entry;
+    }
+
+    synchronized void invalidate(String path) {
+        loading.remove(path);
+        Entry entry = entries.get(path);
+        if (entry != null && !entry.stale) {
+            entry.stale = true;
+            invalidations.incrementAndGet();
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Invalidated: " + path);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        loading.clear();
+        invalidations.addAndGet(entries.size());
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getInvalidations() {
+        return invalidations.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    public String toString() {
+        return "ZooKeeperRegistryCache [size=" + size() + " hits=" + hits + " misses=" + misses + " invalidations=" + invalidations + " evictions=" + evictions + "]";
+    }
+}
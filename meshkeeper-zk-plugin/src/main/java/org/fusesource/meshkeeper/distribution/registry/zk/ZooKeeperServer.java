@@ -17,7 +17,11 @@
 package org.fusesource.meshkeeper.distribution.registry.zk;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -25,7 +29,7 @@ import org.apache.zookeeper.server.NIOServerCnxn;
 import org.apache.zookeeper.server.persistence.FileTxnLog;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.fusesource.meshkeeper.control.ControlService;
-import org.fusesource.meshkeeper.distribution.registry.RegistryClient;
+import org.fusesource.meshkeeper.util.internal.FileSupport;
 
 /**
  * @author chirino
@@ -39,42 +43,54 @@ public class ZooKeeperServer implements ControlService {
     private String password = "";
     private String directory = "zookeeper-server-data";
     private boolean purge;
+    private boolean ephemeral;
+    private boolean forceSync = true;
+    private int snapCount = 0;
     private String serviceUri;
     int tick = 10000;
 
+    private static final String GENERATION_PREFIX = "gen-";
+    // Where zk keeps its files in a data directory without generations:
+    private static final String LEGACY_DATA_DIR = "version-2";
+    // Held in the data directory while the server runs:
+    private static final String LOCK_FILE = "server.lock";
+    private static final String FORCE_SYNC_PROPERTY = "zookeeper.forceSync";
+    private File dataDirectory;
+    private FileLock dataLock;
+
     private NIOServerCnxn.Factory serverFactory;
 
     public void start() throws Exception {
 
-        File file = new File(directory);
-
-        boolean doPurge = purge;
-
-//NOTE: this doesn't always work, since zk hangs on to file locks
-//It aslo can cause ZK to fail with CRC exceptions when running in 
-//embedded mode:
-//              
-//        if (doPurge && file.exists()) {
-//            log.debug("Attempting to delete zk data");
-//            try {
-//                FileSupport.recursiveDelete(file.getCanonicalPath());
-//                doPurge = false;
-//                file.mkdirs();
-//            } catch (Exception e) {
-//                log.debug("Error purging store (likely a benign zoo-keeper bug)", e);
-//            }
-//        }
-        
+        if (ephemeral) {
+            dataDirectory = createEphemeralDirectory();
+            // Nothing in a throw away store is worth waiting for the disk:
+            disableForceSync();
+        } else {
+            //Deleting the store in place doesn't always work, since zk hangs
+            //on to file locks, and can cause ZK to fail with CRC exceptions
+            //when running in embedded mode. So a purged server starts in a
+            //fresh generation directory instead, and older generations are
+            //deleted unless another server is running in them:
+            dataDirectory = purge ? createGeneration() : findLatestGeneration();
+            if (!forceSync) {
+                disableForceSync();
+            }
+        }
+        dataLock = lock(dataDirectory);
+        if (snapCount > 0) {
+            System.setProperty("zookeeper.snapCount", "" + snapCount);
+        }
+        log.debug("Data directory: " + dataDirectory);
+
         // Reduces startup time, and doesn't waste space:
         int preallocateSize = 1024;
         System.setProperty("zookeeper.preAllocSize", "" + preallocateSize);
         FileTxnLog.setPreallocSize(preallocateSize);
         log.debug("Preallocate Size: " + preallocateSize);
         
-        
-        
         org.apache.zookeeper.server.ZooKeeperServer zkServer = new org.apache.zookeeper.server.ZooKeeperServer();
-        FileTxnSnapLog ftxn = new FileTxnSnapLog(file, file);
+        FileTxnSnapLog ftxn = new FileTxnSnapLog(dataDirectory, dataDirectory);
        
         zkServer.setTxnLogFactory(ftxn);
         zkServer.setTickTime(tick);
@@ -84,20 +100,156 @@ public class ZooKeeperServer implements ControlService {
         //InetAddress address = serverFactory.getLocalAddress().getAddress();
         String actualHost = InetAddress.getLocalHost().getCanonicalHostName();
         serviceUri = "zk:tcp://" + actualHost + ":" + zkServer.getClientPort();
+    }
+
+    /**
+     * Creates a new, empty, directory for an ephemeral store, on tmpfs if
+     * it's available.
+     */
+    private File createEphemeralDirectory() throws IOException {
+        File shm = new File("/dev/shm");
+        File parent = shm.isDirectory() && shm.canWrite() ? shm : null;
+        File dir = File.createTempFile("meshkeeper-zk-", "", parent);
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Unable to create ephemeral data directory: " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Creates a new generation directory for a purged store and deletes
+     * whatever can be deleted from earlier runs.
+     */
+    private File createGeneration() throws IOException {
+        File root = new File(directory);
+        long generation = System.currentTimeMillis();
+        File dir = new File(root, GENERATION_PREFIX + generation);
+        while (dir.exists()) {
+            dir = new File(root, GENERATION_PREFIX + (++generation));
+        }
+        if (!dir.mkdirs()) {
+            throw new IOException("Unable to create data directory: " + dir);
+        }
+
+        File[] old = root.listFiles();
+        for (int i = 0; old != null && i < old.length; i++) {
+            String name = old[i].getName();
+            if (old[i].equals(dir) || !(name.startsWith(GENERATION_PREFIX) || name.equals(LEGACY_DATA_DIR))) {
+                continue;
+            }
+            //The legacy layout's lock is in the root:
+            File owner = name.equals(LEGACY_DATA_DIR) ? root : old[i];
+            if (isLocked(owner)) {
+                log.debug("Not deleting zk data in use by another server: " + old[i]);
+                continue;
+            }
+            if (!FileSupport.recursiveDelete(old[i])) {
+                log.debug("Unable to delete stale zk data (likely still locked): " + old[i]);
+            }
+        }
+        return dir;
+    }
 
-        if (doPurge) {
+    /**
+     * Takes the lock that marks a data directory as in use by a running
+     * server.
+     */
+    private static FileLock lock(File dir) throws IOException {
+        dir.mkdirs();
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+        try {
+            FileLock lock = raf.getChannel().tryLock();
+            if (lock == null) {
+                throw new IOException("The zk data directory is in use by another server: " + dir);
+            }
+            return lock;
+        } catch (OverlappingFileLockException e) {
+            raf.close();
+            throw new IOException("The zk data directory is in use by another server: " + dir);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
 
-            if (log.isDebugEnabled()) {
-                log.debug("Purging registry");
+    /**
+     * @return True if a server in this or another jvm is running in the
+     *         directory.
+     */
+    private static boolean isLocked(File dir) {
+        File file = new File(dir, LOCK_FILE);
+        if (!file.exists()) {
+            return false;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            FileLock lock = raf.getChannel().tryLock();
+            if (lock == null) {
+                return true;
             }
-            RegistryClient zk = null;
-            try {
-                zk = new ZooKeeperFactory().createPlugin(getServiceUri());
-                zk.removeRegistryData("/", true);
-            } finally {
-                zk.destroy();
+            lock.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            //Held by this jvm.
+            return true;
+        } catch (IOException e) {
+            return true;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private static void release(FileLock lock) {
+        try {
+            lock.release();
+        } catch (Throwable e) {
+        }
+        try {
+            lock.channel().close();
+        } catch (Throwable e) {
+        }
+    }
+
+    /**
+     * Turns off fsync of the transaction log, unless the property has been
+     * set explicitly. zookeeper reads it once per jvm, so this applies to
+     * every server the jvm starts.
+     */
+    private static void disableForceSync() {
+        if (System.getProperty(FORCE_SYNC_PROPERTY) == null) {
+            System.setProperty(FORCE_SYNC_PROPERTY, "no");
+        }
+    }
+
+    /**
+     * @return The newest generation directory, or the data directory itself
+     *         if it predates generations.
+     */
+    private File findLatestGeneration() {
+        File root = new File(directory);
+        File latest = null;
+        long latestGeneration = -1;
+        File[] files = root.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            String name = files[i].getName();
+            if (files[i].isDirectory() && name.startsWith(GENERATION_PREFIX)) {
+                try {
+                    long generation = Long.parseLong(name.substring(GENERATION_PREFIX.length()));
+                    if (generation > latestGeneration) {
+                        latestGeneration = generation;
+                        latest = files[i];
+                    }
+                } catch (NumberFormatException nfe) {
+                }
             }
         }
+        return latest != null ? latest : root;
     }
 
     public void destroy() throws Exception {
@@ -110,6 +262,14 @@ public class ZooKeeperServer implements ControlService {
                 }
             }
         }
+        if (dataLock != null) {
+            release(dataLock);
+            dataLock = null;
+        }
+        if (ephemeral && dataDirectory != null) {
+            FileSupport.recursiveDelete(dataDirectory);
+            dataDirectory = null;
+        }
         if (log.isDebugEnabled()) {
             log.debug("Destroyed");
         }
@@ -143,10 +303,74 @@ public class ZooKeeperServer implements ControlService {
         return purge;
     }
 
+    /**
+     * @param purge
+     *            If true the server starts with an empty registry.
+     */
     public void setPurge(boolean purge) {
         this.purge = purge;
     }
 
+    public boolean isEphemeral() {
+        return ephemeral;
+    }
+
+    /**
+     * An ephemeral server keeps its store in a temporary directory, on tmpfs
+     * where available, with fsync disabled, and deletes it on destroy. It
+     * always starts empty. Intended for test meshes that are thrown away
+     * after the run. Note that zookeeper reads the fsync setting once per
+     * JVM, so unless the zookeeper.forceSync system property is set, it is
+     * disabled for every other server started in the JVM as well.
+     * 
+     * @param ephemeral
+     *            True to run an ephemeral server.
+     */
+    public void setEphemeral(boolean ephemeral) {
+        this.ephemeral = ephemeral;
+    }
+
+    public boolean isForceSync() {
+        return forceSync;
+    }
+
+    /**
+     * Note that zookeeper reads this setting once per JVM.
+     * 
+     * @param forceSync
+     *            False to not fsync the transaction log on each write.
+     */
+    public void setForceSync(boolean forceSync) {
+        this.forceSync = forceSync;
+    }
+
+    public int getSnapCount() {
+        return snapCount;
+    }
+
+    /**
+     * Note that zookeeper reads this setting once per JVM.
+     * 
+     * @param snapCount
+     *            The number of transactions between snapshots, or 0 for
+     *            zookeeper's default.
+     */
+    public void setSnapCount(int snapCount) {
+        this.snapCount = snapCount;
+    }
+
+    public int getTick() {
+        return tick;
+    }
+
+    /**
+     * @param tick
+     *            The zookeeper tick time in milliseconds.
+     */
+    public void setTick(int tick) {
+        this.tick = tick;
+    }
+
     public int getPort() {
         return port;
     }
@@ -0,0 +1,186 @@
+/**
+ *  Copyright (C) 2009 Progress Software, Inc. All rights reserved.
+ *  http://fusesource.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.fusesource.meshkeeper.distribution.registry.zk;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * ZooKeeperSubtreeWalker
+ * <p>
+ * Description: Visits every node in a subtree using ZooKeeper's asynchronous
+ * calls. The data and children of each node are requested together, and the
+ * children are queued as soon as they are known, so nodes throughout the tree
+ * are read in parallel rather than one round trip at a time. The number of
+ * nodes being read at once is bounded so that a large tree doesn't flood the
+ * server.
+ * </p>
+ * <p>
+ * Nodes are visited in no particular order, from ZooKeeper's event thread, one
+ * at a time.
+ * </p>
+ *
+ * @author cmacnaug
+ * @version 1.0
+ */
+abstract class ZooKeeperSubtreeWalker implements AsyncCallback.DataCallback, AsyncCallback.ChildrenCallback {
+
+    private static final NodeRead DONE = new NodeRead(null);
+
+    private final ZooKeeper zk;
+    private final Semaphore inFlight;
+    private final Collection<String> filters;
+    private final LinkedBlockingQueue<NodeRead> queue = new LinkedBlockingQueue<NodeRead>();
+    // The number of nodes queued or being read:
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile KeeperException failure;
+
+    private static class NodeRead {
+        final String path;
+        // Guarded by this:
+        int remaining = 2;
+        int dataRc;
+        byte[] data;
+        int childrenRc;
+        List<String> children;
+
+        NodeRead(String path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * @param zk
+     *            The ZooKeeper client.
+     * @param maxInFlight
+     *            The maximum number of nodes to read at once.
+     * @param filters
+     *            Paths whose subtrees should be skipped, each is removed once
+     *            it has been skipped.
+     */
+    ZooKeeperSubtreeWalker(ZooKeeper zk, int maxInFlight, Collection<String> filters) {
+        this.zk = zk;
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+        this.filters = filters;
+    }
+
+    /**
+     * Called for each node in the subtree.
+     *
+     * @param path
+     *            The node's path.
+     * @param data
+     *            The node's data.
+     * @param children
+     *            The number of children the node has.
+     */
+    protected abstract void visit(String path, byte[] data, int children);
+
+    /**
+     * Walks the subtree at the given path, returning once every node has been
+     * visited. A path that doesn't exist has no nodes to visit.
+     */
+    void walk(String path) throws InterruptedException, KeeperException {
+        pending.set(1);
+        queue.add(new NodeRead(path));
+        while (true) {
+            NodeRead node = queue.take();
+            if (node == DONE) {
+                break;
+            }
+            inFlight.acquire();
+            zk.getData(node.path, false, this, node);
+            zk.getChildren(node.path, false, this, node);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+        NodeRead node = (NodeRead) ctx;
+        synchronized (node) {
+            node.dataRc = rc;
+            node.data = data;
+            if (--node.remaining > 0) {
+                return;
+            }
+        }
+        complete(node);
+    }
+
+    public void processResult(int rc, String path, Object ctx, List<String> children) {
+        NodeRead node = (NodeRead) ctx;
+        synchronized (node) {
+            node.childrenRc = rc;
+            node.children = children;
+            if (--node.remaining > 0) {
+                return;
+            }
+        }
+        complete(node);
+    }
+
+    private void complete(NodeRead node) {
+        inFlight.release();
+        KeeperException.Code code = KeeperException.Code.get(node.dataRc);
+        if (code == KeeperException.Code.OK) {
+            code = KeeperException.Code.get(node.childrenRc);
+        }
+
+        switch (code) {
+        case OK: {
+            synchronized (this) {
+                visit(node.path, node.data, node.children.size());
+            }
+            String prefix = node.path.endsWith("/") ? node.path : node.path + "/";
+            for (String child : node.children) {
+                String childPath = prefix + child;
+                synchronized (filters) {
+                    if (filters.remove(childPath)) {
+                        continue;
+                    }
+                }
+                pending.incrementAndGet();
+                queue.add(new NodeRead(childPath));
+            }
+            break;
+        }
+        case NONODE: {
+            //Removed while walking.
+            break;
+        }
+        default: {
+            if (failure == null) {
+                failure = KeeperException.create(code, node.path);
+            }
+        }
+        }
+
+        if (pending.decrementAndGet() == 0) {
+            queue.add(DONE);
+        }
+    }
+}
@@ -17,12 +17,20 @@
 package org.fusesource.meshkeeper.distribution.registry.zk;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.fusesource.meshkeeper.MavenTestSupport;
+import org.fusesource.meshkeeper.RegistryDiffWatcher;
 import org.fusesource.meshkeeper.distribution.registry.RegistryClient;
 
 /**
@@ -83,6 +91,26 @@ public class RegistryTest extends TestCase {
         assertNull(client.getRegistryObject("/add/foo/1"));
     }
 
+    public void testEphemeralServer() throws Exception {
+        LOG.info("Running: testEphemeralServer");
+        client.destroy();
+        server.destroy();
+
+        server = (ZooKeeperServer) new ZooKeeperServerFactory().createPlugin("tcp://localhost:2000?ephemeral=true&tick=2000");
+        server.start();
+        assertEquals(2000, server.getTick());
+        client = new ZooKeeperFactory().createPlugin(server.getServiceUri());
+
+        client.addRegistryObject("/ephemeral/foo", false, new TestObject());
+        assertNotNull(client.getRegistryObject("/ephemeral/foo"));
+        client.destroy();
+        server.destroy();
+
+        server.start();
+        client = new ZooKeeperFactory().createPlugin(server.getServiceUri());
+        assertNull(client.getRegistryObject("/ephemeral/foo"));
+    }
+
     public void testAddData() throws Exception {
         LOG.info("Running: testAddData");
 
@@ -111,6 +139,139 @@ public class RegistryTest extends TestCase {
         assertNotNull(client.waitForRegistration("/temp/foo/1", 20000));
     }
 
+    public void testDiffWatcher() throws Exception {
+        LOG.info("Running: testDiffWatcher");
+
+        final List<String> added = new ArrayList<String>();
+        final List<String> removed = new ArrayList<String>();
+        final AtomicInteger notifications = new AtomicInteger();
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        RegistryDiffWatcher watcher = new RegistryDiffWatcher(500, executor) {
+            public void onChildrenChanged(String path, List<String> a, List<String> r) {
+                synchronized (added) {
+                    notifications.incrementAndGet();
+                    added.addAll(a);
+                    removed.addAll(r);
+                    added.notifyAll();
+                }
+            }
+        };
+
+        try {
+            client.addRegistryWatcher("/diff", watcher);
+            for (int i = 0; i < 20; i++) {
+                client.addRegistryData("/diff/node", true, new byte[] { 1 });
+            }
+            synchronized (added) {
+                long timeout = System.currentTimeMillis() + 10000;
+                while (added.size() < 20 && System.currentTimeMillis() < timeout) {
+                    added.wait(500);
+                }
+            }
+            assertEquals(20, added.size());
+            assertTrue("Expected notifications to be coalesced: " + notifications, notifications.get() < 20);
+
+            client.removeRegistryData("/diff/" + added.get(0), false);
+            synchronized (added) {
+                long timeout = System.currentTimeMillis() + 10000;
+                while (removed.isEmpty() && System.currentTimeMillis() < timeout) {
+                    added.wait(500);
+                }
+            }
+            assertEquals(Arrays.asList(added.get(0)), removed);
+        } finally {
+            client.removeRegistryWatcher("/diff", watcher);
+            executor.shutdown();
+        }
+    }
+
+    public void testDiffWatcherRetry() throws Exception {
+        LOG.info("Running: testDiffWatcherRetry");
+
+        final List<String> added = new ArrayList<String>();
+        final AtomicInteger retries = new AtomicInteger();
+        RegistryDiffWatcher watcher = new RegistryDiffWatcher() {
+            public void onChildrenChanged(String path, List<String> a, List<String> r) {
+                synchronized (added) {
+                    added.addAll(a);
+                    added.notifyAll();
+                }
+                //Pretend the first child couldn't be looked up:
+                if (!a.isEmpty() && retries.getAndIncrement() == 0) {
+                    retry(path, a.get(0));
+                }
+            }
+        };
+
+        try {
+            String first = client.addRegistryData("/retry/node", true, new byte[] { 1 });
+            first = first.substring(first.lastIndexOf("/") + 1);
+            client.addRegistryWatcher("/retry", watcher);
+            waitForAdded(added, 1);
+            assertEquals(Arrays.asList(first), added);
+
+            //The retried child is reported again with the next change:
+            client.addRegistryData("/retry/node", true, new byte[] { 1 });
+            waitForAdded(added, 3);
+            assertEquals(3, added.size());
+            assertTrue(added.subList(1, 3).contains(first));
+
+            //Re-adding the watcher reports all of the current children:
+            client.removeRegistryWatcher("/retry", watcher);
+            synchronized (added) {
+                added.clear();
+            }
+            client.addRegistryWatcher("/retry", watcher);
+            waitForAdded(added, 2);
+            assertEquals(2, added.size());
+        } finally {
+            client.removeRegistryWatcher("/retry", watcher);
+        }
+    }
+
+    private static void waitForAdded(List<String> added, int count) throws InterruptedException {
+        synchronized (added) {
+            long timeout = System.currentTimeMillis() + 10000;
+            while (added.size() < count && System.currentTimeMillis() < timeout) {
+                added.wait(500);
+            }
+        }
+    }
+
+    public void testConcurrentWaiters() throws Exception {
+        LOG.info("Running: testConcurrentWaiters");
+
+        final int count = 20;
+        final AtomicInteger found = new AtomicInteger();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < count; i++) {
+            final String path = "/waiters/node" + i;
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        if (client.waitForRegistration(path, 20000) != null) {
+                            found.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+
+        for (int i = 0; i < count; i++) {
+            client.addRegistryObject("/waiters/node" + i, false, new TestObject());
+        }
+        assertEquals(count, client.waitForRegistrations("/waiters", count, 20000).size());
+
+        for (Thread t : threads) {
+            t.join(30000);
+        }
+        assertEquals(count, found.get());
+    }
+
     public void testRecursiveDelete() throws Exception {
         LOG.info("Running: testRecursiveDelete");
 
@@ -126,6 +287,112 @@ public class RegistryTest extends TestCase {
         assertNull(client.getRegistryData("/delete/d/e"));
     }
 
+    public void testBatchOperations() throws Exception {
+        LOG.info("Running: testBatchOperations");
+
+        ArrayList<String> paths = new ArrayList<String>();
+        ArrayList<TestObject> objects = new ArrayList<TestObject>();
+        for (int i = 0; i < 100; i++) {
+            paths.add("/batch/" + (i % 10) + "/" + i);
+            objects.add(new TestObject());
+        }
+        assertEquals(paths, client.addRegistryObjects(paths, false, objects));
+
+        paths.add("/batch/missing");
+        Map<String, TestObject> results = client.getRegistryObjects(paths);
+        assertEquals(101, results.size());
+        assertNotNull(results.get("/batch/9/99"));
+        assertNull(results.get("/batch/missing"));
+
+        client.removeRegistryData(paths, false);
+        assertNull(client.getRegistryData("/batch/0/0"));
+        assertNull(client.getRegistryData("/batch"));
+
+        //Known parents were removed, so they must be created again:
+        assertEquals(1, client.addRegistryData(paths.subList(0, 1), true, Arrays.asList(new byte[] { 1 })).size());
+    }
+
+    public void testSnapshot() throws Exception {
+        LOG.info("Running: testSnapshot");
+
+        client.addRegistryData("/snapshot/a/b", false, new byte[] { 1 });
+        client.addRegistryData("/snapshot/a/c", false, new byte[] { 2, 2 });
+        client.addRegistryData("/snapshot/d", false, new byte[] { 3 });
+
+        Map<String, byte[]> snapshot = client.snapshot("/snapshot");
+        assertEquals(Arrays.asList("/snapshot/a/b", "/snapshot/a/c", "/snapshot/d"), new ArrayList<String>(snapshot.keySet()));
+        assertEquals(2, snapshot.get("/snapshot/a/c").length);
+
+        assertEquals(Arrays.asList("/snapshot/a/b [1]", "/snapshot/a/c [2]"), client.list("/snapshot", true, "/snapshot/d"));
+        assertTrue(client.snapshot("/snapshot/missing").isEmpty());
+    }
+
+    public void testLargeValues() throws Exception {
+        LOG.info("Running: testLargeValues");
+        client.destroy();
+        client = new ZooKeeperFactory().createPlugin(server.getServiceUri() + "?blobThreshold=1024&blobChunkSize=4096&compress=true");
+        client.start();
+
+        //Random data doesn't compress, so is stored out of line:
+        byte[] random = new byte[20000];
+        new java.util.Random(0).nextBytes(random);
+        client.addRegistryData("/large/random", false, random);
+        client.addRegistryData("/large/random2", false, random);
+        assertTrue(Arrays.equals(random, client.getRegistryData("/large/random")));
+        assertTrue(Arrays.equals(random, client.snapshot("/large").get("/large/random2")));
+
+        //Zeros compress down to fit in the node:
+        byte[] zeros = new byte[20000];
+        client.addRegistryData("/large/zeros", false, zeros);
+        assertTrue(Arrays.equals(zeros, client.getRegistryData("/large/zeros")));
+
+        //Other clients resolve the pointers too:
+        RegistryClient other = new ZooKeeperFactory().createPlugin(server.getServiceUri());
+        other.start();
+        try {
+            assertTrue(Arrays.equals(random, other.getRegistryData("/large/random")));
+            client.removeRegistryData("/large/random", false);
+            assertTrue(Arrays.equals(random, other.getRegistryData("/large/random2")));
+            client.removeRegistryData("/large/random2", false);
+            //Including the session's blob directory:
+            assertTrue(client.list(ZooKeeperBlobStore.BLOB_ROOT, true).toString(), client.list(ZooKeeperBlobStore.BLOB_ROOT, true).isEmpty());
+        } finally {
+            other.destroy();
+        }
+    }
+
+    public void testCachedReads() throws Exception {
+        LOG.info("Running: testCachedReads");
+        client.destroy();
+        client = new ZooKeeperFactory().createPlugin(server.getServiceUri() + "?cacheSize=10");
+        client.start();
+        ZooKeeperRegistry registry = (ZooKeeperRegistry) client;
+        assertEquals(10, registry.getCacheSize());
+
+        assertNull(client.getRegistryData("/cache/a"));
+        client.addRegistryData("/cache/a", false, new byte[] { 1 });
+        assertEquals(1, client.getRegistryData("/cache/a")[0]);
+        long misses = registry.getCacheMisses();
+        assertEquals(1, client.getRegistryData("/cache/a")[0]);
+        assertEquals(misses, registry.getCacheMisses());
+        assertTrue(registry.getCacheHits() > 0);
+
+        //A change made by another client must invalidate the entry:
+        RegistryClient other = new ZooKeeperFactory().createPlugin(server.getServiceUri());
+        other.start();
+        try {
+            other.removeRegistryData("/cache/a", false);
+            long timeout = System.currentTimeMillis() + 10000;
+            while (client.getRegistryData("/cache/a") != null && System.currentTimeMillis() < timeout) {
+                Thread.sleep(100);
+            }
+            assertNull(client.getRegistryData("/cache/a"));
+            assertTrue(registry.getCacheInvalidations() > 0);
+        } finally {
+            other.destroy();
+        }
+    }
+
     public static class TestObject implements Serializable {
 
         private static final long serialVersionUID = 1L;